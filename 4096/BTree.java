@@ -3,7 +3,20 @@
  */
 import java.io.*;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+import java.util.zip.CRC32;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  *
@@ -11,7 +24,7 @@ import java.util.*;
  * @param <K> - Key
  * @param <V> - Value
  */
-public class BTree<K, V> implements Serializable
+public class BTree<K, V> implements Iterable<Map.Entry<K, V>>, Serializable
 {
 
     /**
@@ -19,12 +32,14 @@ public class BTree<K, V> implements Serializable
      * <p/>
      * In the Btree (B-tree) nodes, the key-value pairs are stored instead of just keys.
      * The values can be accessed through key
+     * <p/>
+     * The iterators return the entries of the nodes, setValue writes through. It isn't a change
+     * of the node for {@link #publish()} and {@link #checkpoint(String, Codec, Codec)}.
      *
      * @param <K> - Key
      * @param <V> - value
      */
-     @SuppressWarnings("unchecked")
-    private static class Entry<K, V> implements Serializable
+    private static class Entry<K, V> implements Map.Entry<K, V>, Serializable
     {
         private K key;
         private V value;
@@ -45,9 +60,27 @@ public class BTree<K, V> implements Serializable
             return value;
         }
 
-        public void setValue(V value)
+        public V setValue(V value)
         {
+            V oldValue = this.value;
             this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if(!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+            return (key == null ? entry.getKey() == null : key.equals(entry.getKey()))
+                    && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
         }
 
         @Override
@@ -58,82 +91,130 @@ public class BTree<K, V> implements Serializable
     }
 
     /**
-     * Search in the Btree and return results
+     * Nodes in Btree
      * <p/>
-     * Judge if the searching is successful
-     * if successful, show the search key's postion in Btree
-     * if fail, show the correct position should be in Btree
+     * In a concurrent B tree, a node is read under its latch in read mode and changed under
+     * its latch in write mode. The latch methods do nothing in a B tree that isn't concurrent.
      */
-    private static class SearchResult<V>
+    private static class BTreeNode<K, V> implements Serializable
     {
-        private boolean exist;
-        private int index;
-        private V value;
+        /** entry, the first size are used */
+        private Entry<K,V>[] entrys;//Key
+        /** children, the first childCount are used, null for a leaf */
+        private BTreeNode<K, V>[] children;//children
+        private int size;
+        private int childCount;
+        /** judge if it is the leaf node */
+        private boolean leaf;
+        /** Comparator function */
+        private Comparator<K> kComparator;
+        /** latch of the node in a concurrent B tree, null otherwise */
+        private transient StampedLock latch;
+        /** generation of the B tree when the node was created, the node is changed in place in this generation only */
+        private transient int generation;
+        /**
+         * position of the frame of the node in the file of the last checkpoint, 0 if the node or
+         * a node under it changed since, see {@link BTree#checkpoint(String, Codec, Codec)}
+         */
+        private transient long position;
 
-        public SearchResult(boolean exist, int index)
+        /**
+         * create a leaf
+         *
+         * @param kComparator - Comparator function, null if the keys are Comparable
+         * @param maxKeySize - capacity of the node, (2t - 1)
+         */
+        @SuppressWarnings("unchecked")
+        public BTreeNode(Comparator<K> kComparator, int maxKeySize)
         {
-            this.exist = exist;
-            this.index = index;
+            this.entrys = (Entry<K, V>[]) new Entry<?, ?>[maxKeySize];
+            this.leaf = true;
+            this.kComparator = kComparator;
         }
 
-        public SearchResult(boolean exist, int index, V value)
+        /**
+         * @return a copy of the node for the given generation, the entries and the children are shared
+         */
+        public BTreeNode<K, V> copy(int generation)
         {
-            this(exist, index);
-            this.value = value;
+            BTreeNode<K, V> copy = new BTreeNode<K, V>(kComparator, entrys.length);
+            copy.setLeaf(leaf);
+            copy.appendFrom(this, 0, size);
+            copy.generation = generation;
+            return copy;
         }
 
-        public boolean isExist()
+        /**
+         * the node or a node under it changed, it is written by the next checkpoint. The caller
+         * holds the write latch of the node. The position is only written if it is set.
+         */
+        public void markChanged()
         {
-            return exist;
+            if(position != 0)
+                position = 0;
         }
 
-        public int getIndex()
+        /**
+         * the node gets a latch, its B tree is concurrent
+         */
+        public void setLatched()
         {
-            return index;
+            latch = new StampedLock();
         }
 
-        public V getValue()
+        public void lockRead()
         {
-            return value;
+            if(latch != null)
+                latch.readLock();
         }
 
-        @Override
-        public String toString() {
-            return "SearchResult{" +
-                    "exist=" + exist +
-                    ", index=" + index +
-                    ", value=" + value +
-                    '}';
+        public void unlockRead()
+        {
+            if(latch != null)
+                latch.tryUnlockRead();
         }
-    }
 
-    /**
-     * Nodes in Btree
-     *
-     * TODO concurrent should be considered
-     */
-    private static class BTreeNode<K, V> implements Serializable
-    {
-        /** entry */
-        private List<Entry<K,V>> entrys;//Key
-        /** children */
-        private List<BTreeNode<K, V>> children;//children
-        /** judge if it is the leaf node */
-        private boolean leaf;
-        /** Comparator function */
-        private Comparator<K> kComparator;
+        public void lockWrite()
+        {
+            if(latch != null)
+                latch.writeLock();
+        }
 
-        private BTreeNode()
+        public void unlockWrite()
         {
-            entrys = new ArrayList<Entry<K, V>>();
-            children = new ArrayList<BTreeNode<K, V>>();
-            leaf = false;
+            if(latch != null)
+                latch.tryUnlockWrite();
         }
 
-        public BTreeNode(Comparator<K> kComparator)
+        /**
+         * @return the version of the node for an optimistic read, 0 if it is latched in write mode
+         */
+        public long optimisticRead()
         {
-            this();
-            this.kComparator = kComparator;
+            return latch.tryOptimisticRead();
+        }
+
+        /**
+         * @return if the node didn't change since the version was taken, so the reads are consistent
+         */
+        public boolean validate(long stamp)
+        {
+            return latch.validate(stamp);
+        }
+
+        /**
+         * latch the node in write mode if it didn't change since the version was taken
+         *
+         * @return the stamp to unlock, 0 if the node changed or is latched
+         */
+        public long tryLockWrite(long stamp)
+        {
+            return latch.tryConvertToWriteLock(stamp);
+        }
+
+        public void unlockWrite(long stamp)
+        {
+            latch.unlockWrite(stamp);
         }
 
         public boolean isLeaf()
@@ -141,9 +222,21 @@ public class BTree<K, V> implements Serializable
             return leaf;
         }
 
+        /**
+         * the array of the children is allocated when the node becomes an internal node
+         */
+        @SuppressWarnings("unchecked")
         public void setLeaf(boolean leaf)
         {
+            markChanged();
             this.leaf = leaf;
+            if(leaf)
+            {
+                children = null;
+                childCount = 0;
+            }
+            else if(children == null)
+                children = (BTreeNode<K, V>[]) new BTreeNode<?, ?>[entrys.length + 1];
         }
 
         /**
@@ -154,7 +247,7 @@ public class BTree<K, V> implements Serializable
          */
         public int size()
         {
-            return entrys.size();
+            return size;
         }
 
         @SuppressWarnings("unchecked")
@@ -165,50 +258,32 @@ public class BTree<K, V> implements Serializable
 
         /**
          * search "search key" in the nodes
-         * if the key can be found in the node, return results
-         * mark: searching is successful, the corresponding index and the corresponding value.
-         * if can not be found, return results
-         * mark: searching is fail, the correct position should be and null value
+         * if the key can be found in the node, return its index, in [0, {@link #size()} - 1]
+         * if can not be found, return (-(the correct position) - 1), the position is in [0, {@link #size()}]
          * <p/>
-         * If fail, the index domain[0, {@link #size()}]；
-         * If successful, the index domain[0, {@link #size()} - 1]
+         * The result is packed in an int, so a search allocates nothing.
          * <p/>
-         * Binary Search Algorithm, time complexity: O(log(t))。
+         * Binary Search Algorithm, one comparison per probe, time complexity: O(log(t))。
          *
          * @param key - search key
-         * @return - result found
+         * @return - index of the key, or (-(insertion point) - 1)
          */
-        public SearchResult<V> searchKey(K key)
+        public int searchKey(K key)
         {
             int low = 0;
-            int high = entrys.size() - 1;
-            int mid = 0;
+            int high = size - 1;
             while(low <= high)
             {
-                mid = (low + high) / 2;
-                Entry<K, V> entry = entrys.get(mid);
-                if(compare(entry.getKey(), key) == 0) // entrys.get(mid).getKey() == key
-                    break;
-                else if(compare(entry.getKey(), key) > 0) // entrys.get(mid).getKey() > key
-                    high = mid - 1;
-                else // entry.get(mid).getKey() < key
+                int mid = (low + high) >>> 1;
+                int cmp = compare(entrys[mid].getKey(), key);
+                if(cmp < 0) // entry.get(mid).getKey() < key
                     low = mid + 1;
+                else if(cmp > 0) // entrys.get(mid).getKey() > key
+                    high = mid - 1;
+                else // entrys.get(mid).getKey() == key
+                    return mid;
             }
-            boolean result = false;
-            int index = 0;
-            V value = null;
-            if(low <= high) // the searching is successful
-            {
-                result = true;
-                index = mid; // index presents the position of the record.
-                value = entrys.get(index).getValue();
-            }
-            else
-            {
-                result = false;
-                index = low; // index presents the correct position should be
-            }
-            return new SearchResult<V>(result, index, value);
+            return -(low + 1);
         }
 
         /**
@@ -218,7 +293,8 @@ public class BTree<K, V> implements Serializable
          */
         public void addEntry(Entry<K, V> entry)
         {
-            entrys.add(entry);
+            markChanged();
+            entrys[size ++] = entry;
         }
 
         /**
@@ -229,7 +305,35 @@ public class BTree<K, V> implements Serializable
          */
         public Entry<K, V> removeEntry(int index)
         {
-            return entrys.remove(index);
+            markChanged();
+            Entry<K, V> entry = entrys[index];
+            System.arraycopy(entrys, index + 1, entrys, index, size - index - 1);
+            entrys[-- size] = null;
+            return entry;
+        }
+
+        /**
+         * replace the entry of the given index
+         *
+         * @param entry - given entry
+         * @param index - given index
+         */
+        public void setEntry(Entry<K, V> entry, int index)
+        {
+            markChanged();
+            entrys[index] = entry;
+        }
+
+        /**
+         * delete the entries from the given index to the end
+         *
+         * @param index - first entry deleted
+         */
+        public void truncateEntries(int index)
+        {
+            markChanged();
+            Arrays.fill(entrys, index, size, null);
+            size = index;
         }
 
         /**
@@ -241,7 +345,7 @@ public class BTree<K, V> implements Serializable
          */
         public Entry<K, V> entryAt(int index)
         {
-            return entrys.get(index);
+            return entrys[index];
         }
 
         /**
@@ -253,16 +357,18 @@ public class BTree<K, V> implements Serializable
          */
         public V putEntry(Entry<K, V> entry)
         {
-            SearchResult<V> result = searchKey(entry.getKey());
-            if(result.isExist())
+            markChanged();
+            int index = searchKey(entry.getKey());
+            if(index >= 0)
             {
-                V oldValue = entrys.get(result.getIndex()).getValue();
-                entrys.get(result.getIndex()).setValue(entry.getValue());
+                // the entry is replaced, not changed: a copy of the node shares its entries
+                V oldValue = entrys[index].getValue();
+                entrys[index] = entry;
                 return oldValue;
             }
             else
             {
-                insertEntry(entry, result.getIndex());
+                insertEntry(entry, -index - 1);
                 return null;
             }
         }
@@ -279,12 +385,12 @@ public class BTree<K, V> implements Serializable
          */
         public boolean insertEntry(Entry<K, V> entry)
         {
-            SearchResult<V> result = searchKey(entry.getKey());
-            if(result.isExist())
+            int index = searchKey(entry.getKey());
+            if(index >= 0)
                 return false;
             else
             {
-                insertEntry(entry, result.getIndex());
+                insertEntry(entry, -index - 1);
                 return true;
             }
         }
@@ -297,19 +403,11 @@ public class BTree<K, V> implements Serializable
          */
         public void insertEntry(Entry<K, V> entry, int index)
         {
-			/*
-			 * ArrayList is used.
-			 */
-            List<Entry<K, V>> newEntrys = new ArrayList<Entry<K, V>>();
-            int i = 0;
-            // index = 0 or index = keys.size()
-            for(; i < index; ++ i)
-                newEntrys.add(entrys.get(i));
-            newEntrys.add(entry);
-            for(; i < entrys.size(); ++ i)
-                newEntrys.add(entrys.get(i));
-            entrys.clear();
-            entrys = newEntrys;
+            markChanged();
+            // the entries after index move by one, in place
+            System.arraycopy(entrys, index, entrys, index + 1, size - index);
+            entrys[index] = entry;
+            ++ size;
         }
 
         /**
@@ -321,7 +419,16 @@ public class BTree<K, V> implements Serializable
         {
             if(isLeaf())
                 throw new UnsupportedOperationException("Leaf node doesn't have children.");
-            return children.get(index);
+            return children[index];
+        }
+
+        /**
+         * replace the child of the given index
+         */
+        public void setChild(BTreeNode<K, V> child, int index)
+        {
+            markChanged();
+            children[index] = child;
         }
 
         /**
@@ -331,7 +438,8 @@ public class BTree<K, V> implements Serializable
          */
         public void addChild(BTreeNode<K, V> child)
         {
-            children.add(child);
+            markChanged();
+            children[childCount ++] = child;
         }
 
         /**
@@ -342,7 +450,40 @@ public class BTree<K, V> implements Serializable
          */
         public void removeChild(int index)
         {
-            children.remove(index);
+            markChanged();
+            System.arraycopy(children, index + 1, children, index, childCount - index - 1);
+            children[-- childCount] = null;
+        }
+
+        /**
+         * delete the children from the given index to the end
+         *
+         * @param index - first child deleted
+         */
+        public void truncateChildren(int index)
+        {
+            markChanged();
+            Arrays.fill(children, index, childCount, null);
+            childCount = index;
+        }
+
+        /**
+         * copy entries, and their children for an internal node, at the end of this node
+         *
+         * @param from - node copied
+         * @param index - first entry copied, the child before it is the first child copied
+         * @param count - number of entries copied, count + 1 children are copied
+         */
+        public void appendFrom(BTreeNode<K, V> from, int index, int count)
+        {
+            markChanged();
+            System.arraycopy(from.entrys, index, entrys, size, count);
+            size += count;
+            if(!from.isLeaf())
+            {
+                System.arraycopy(from.children, index, children, childCount, count + 1);
+                childCount += count + 1;
+            }
         }
 
         /**
@@ -353,21 +494,51 @@ public class BTree<K, V> implements Serializable
          */
         public void insertChild(BTreeNode<K, V> child, int index)
         {
-            List<BTreeNode<K, V>> newChildren = new ArrayList<BTreeNode<K, V>>();
-            int i = 0;
-            for(; i < index; ++ i)
-                newChildren.add(children.get(i));
-            newChildren.add(child);
-            for(; i < children.size(); ++ i)
-                newChildren.add(children.get(i));
-            children = newChildren;
+            markChanged();
+            System.arraycopy(children, index, children, index + 1, childCount - index);
+            children[index] = child;
+            ++ childCount;
         }
     }
 
     private static final int DEFAULT_T = 2;
+    /** nodes built by {@link #bulkLoad(Iterator)} are full */
+    private static final double DEFAULT_FILL_FACTOR = 1.0;
+    /** "BTR1", first int of a file written by {@link #writeTo(String, Codec, Codec)} */
+    private static final int TREE_MAGIC = 0x42545231;
+    private static final int TREE_VERSION = 1;
+    /** magic, version and t */
+    private static final int TREE_HEADER_SIZE = 12;
+    /** "BTN1", first int of a file of {@link #checkpoint(String, Codec, Codec)} */
+    private static final int NODE_FILE_MAGIC = 0x42544E31;
+    private static final int NODE_FILE_VERSION = 1;
+    /** magic, version, t and the two roots */
+    private static final int NODE_FILE_HEADER_SIZE = 96;
+    /** positions of the two roots, a checkpoint writes the older one */
+    private static final int ROOT_SLOT_0 = 16;
+    private static final int ROOT_SLOT_1 = 56;
+    /** sequence, position of the root frame, end of the frames, end at the last rewrite, CRC */
+    private static final int ROOT_SLOT_SIZE = 36;
+    /** the node file is rewritten when its frames grow over this times their size at the last rewrite */
+    private static final int NODE_FILE_GROWTH = 3;
+    private static final int FRAME_BUFFER_SIZE = 1 << 20;
+    /** operations of {@link #optimistic(int, Object, Object)} */
+    private static final int SEARCH = 0;
+    private static final int INSERT = 1;
+    private static final int PUT = 2;
+    private static final int DELETE = 3;
+    /** optimistic descents before the latched one */
+    private static final int OPTIMISTIC_ATTEMPTS = 4;
+    /** returned by an optimistic descent which read a node changed meanwhile */
+    private static final Object RETRY = new Object();
+    /** returned by an optimistic operation which needs the latched one */
+    private static final Object LATCHED = new Object();
 
-    /** Root Node of BTree */
-    private BTreeNode<K, V> root;
+    /**
+     * Root Node of BTree. In a concurrent B tree, it changes under the latch of the previous
+     * root, so a thread latching the root checks it is still the root, see {@link #lockRoot(boolean)}.
+     */
+    private volatile BTreeNode<K, V> root;
     /** the number of keys of the non-leaf nodes in BTree: (t - 1) <= n <= (2t - 1) */
     private int t = DEFAULT_T;
     /** smallest number */
@@ -376,22 +547,34 @@ public class BTree<K, V> implements Serializable
     private int maxKeySize = 2*t - 1;
     /** Comparatorfunction of key */
     private Comparator<K> kComparator;
+    /** if the nodes are latched, a deserialized B tree isn't concurrent */
+    private transient boolean concurrent;
+    /** generation of the nodes changed in place, the older ones are published and copied on write */
+    private transient int generation;
+    /** root at the last {@link #publish()}, null before */
+    private transient volatile BTreeNode<K, V> published;
+    /** if the B tree is a snapshot */
+    private transient boolean readOnly;
+    /** node file of the last checkpoint, the positions of the nodes are in it, null before */
+    private transient String checkpointFile;
+    /** sequence number of the last checkpoint */
+    private transient long checkpointSequence;
+    /** end of the frames of the node file */
+    private transient long checkpointEnd;
+    /** end of the frames at the last rewrite of the node file */
+    private transient long rewriteEnd;
 
     /**
      * create BTree
      */
     public BTree()
     {
-        root = new BTreeNode<K, V>();
-        root.setLeaf(true);
+        this(DEFAULT_T);
     }
 
     public BTree(int t)
     {
-        this();
-        this.t = t;
-        minKeySize = t - 1;
-        maxKeySize = 2*t - 1;
+        this(null, t);
     }
 
     /**
@@ -401,393 +584,1751 @@ public class BTree<K, V> implements Serializable
      */
     public BTree(Comparator<K> kComparator)
     {
-        root = new BTreeNode<K, V>(kComparator);
-        root.setLeaf(true);
-        this.kComparator = kComparator;
+        this(kComparator, DEFAULT_T);
     }
 
+    /**
+     * @param kComparator - Comparator function, null if the keys are Comparable
+     * @param t - the minimum degree, the nodes hold up to (2t - 1) keys
+     */
     public BTree(Comparator<K> kComparator, int t)
     {
-        this(kComparator);
+        this(kComparator, t, false);
+    }
+
+    /**
+     * A concurrent B tree is searched, updated and range searched by several threads at once.
+     * Every node has a reader/writer latch, the latches are coupled from the root down: the
+     * latch of a child is taken before the one of its parent is released. A search holds latches
+     * in read mode only. An insertion splits the full nodes on its path, so a child is never
+     * full once reached and the latch of its parent is released at once; a deletion fills the
+     * children on its path in the same way. A thread holds two or three latches at a time.
+     * <p/>
+     * The point operations first descend optimistically, see {@link #optimistic(int, Object, Object)}:
+     * a search doesn't write to the nodes, so the readers don't contend on the latch of the root.
+     * <p/>
+     * The iterators, the bulk load and the file writing don't latch, the B tree mustn't change
+     * during them.
+     *
+     * @param kComparator - Comparator function, null if the keys are Comparable
+     * @param t - the minimum degree, the nodes hold up to (2t - 1) keys
+     * @param concurrent - if the B tree is concurrent
+     */
+    public BTree(Comparator<K> kComparator, int t, boolean concurrent)
+    {
+        if(t < 2)
+            throw new IllegalArgumentException("A B tree needs t >= 2: " + t);
+        this.kComparator = kComparator;
         this.t = t;
+        this.concurrent = concurrent;
         minKeySize = t - 1;
         maxKeySize = 2*t - 1;
+        // t is set first, the nodes are sized by it
+        root = newNode(true);
     }
 
-    @SuppressWarnings("unchecked")
-    int compare(K key1, K key2)
+    /**
+     * snapshot of a B tree
+     *
+     * @param btree - B tree published
+     * @param root - root published, null for an empty B tree
+     */
+    private BTree(BTree<K, V> btree, BTreeNode<K, V> root)
     {
-        return kComparator == null ? ((Comparable<K>)key1).compareTo(key2) : kComparator.compare(key1, key2);
+        this(btree.kComparator, btree.t);
+        if(root != null)
+            this.root = root;
+        readOnly = true;
     }
 
     /**
-     * search key
-     *
-     * @param key - given key
-     * @return value if exists, or return null
+     * Publish the content of the B tree for {@link #snapshot()}. The nodes are frozen: the next
+     * changes copy the nodes they change, and the nodes above them up to the root, once per
+     * publication, so the published nodes are never changed. The writer calls it, at the end
+     * of a batch of insertions for example.
      */
-    public V search(K key)
+    public void publish()
     {
-        return search(root, key);
+        checkWritable();
+        if(concurrent)
+            throw new IllegalStateException("A concurrent B tree is searched during the changes, it isn't published.");
+        published = root;
+        ++ generation;
     }
 
     /**
-     * recursively search
+     * A consistent view of the B tree, as it was at the last {@link #publish()}, taken without
+     * lock while a thread changes the B tree. The snapshot is read only, the changes of the B
+     * tree don't show in it, and the entries it returns mustn't be changed. The nodes of a
+     * publication are garbage collected once the B tree and its snapshots don't refer to them.
      *
-     * @param node
-     * @param key
-     * @return value
+     * @return the snapshot, empty before the first publication
      */
-    private V search(BTreeNode<K, V> node, K key)
+    public BTree<K, V> snapshot()
     {
-        SearchResult<V> result = node.searchKey(key);
-        if(result.isExist())
-            return result.getValue();
-        else
-        {
-            if(node.isLeaf())
-                return null;
-            else {
-                return search(node.childAt(result.getIndex()), key);
-            }
-        }
+        if(concurrent)
+            throw new IllegalStateException("A concurrent B tree is searched during the changes, it isn't published.");
+        return new BTree<K, V>(this, published);
     }
 
     /**
-     * split node
+     * @return if the B tree is a snapshot, see {@link #snapshot()}
+     */
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    private void checkWritable()
+    {
+        if(readOnly)
+            throw new UnsupportedOperationException("A snapshot of a B tree is read only.");
+    }
+
+    /**
+     * the child of the given index, to be changed: a child of an older generation is replaced by a copy
      *
-     * @param parentNode
-     * @param childNode
-     * @param index
+     * @param node - parent, of the current generation
      */
-    private void splitNode(BTreeNode<K, V> parentNode, BTreeNode<K, V> childNode, int index)
+    private BTreeNode<K, V> ownChild(BTreeNode<K, V> node, int index)
     {
-        assert childNode.size() == maxKeySize;
+        BTreeNode<K, V> childNode = node.childAt(index);
+        if(childNode.generation == generation)
+            return childNode;
+        childNode = childNode.copy(generation);
+        node.setChild(childNode, index);
+        return childNode;
+    }
 
-        BTreeNode<K, V> siblingNode = new BTreeNode<K, V>(kComparator);
-        siblingNode.setLeaf(childNode.isLeaf());
-        // insert the (t - 1)entry to the new node
-        for(int i = 0; i < minKeySize; ++ i)
-            siblingNode.addEntry(childNode.entryAt(t + i));
-        // extract the index (t - 1)
-        Entry<K, V> entry = childNode.entryAt(t - 1);
-        // delete index: [t - 1, 2t - 2]'s t entry
-        for(int i = maxKeySize - 1; i >= t - 1; -- i)
-            childNode.removeEntry(i);
-        if(!childNode.isLeaf()) // if full node is not the leaf node
-        {
+    /**
+     * @return the minimum degree, the nodes hold up to (2t - 1) keys
+     */
+    public int getT()
+    {
+        return t;
+    }
+
+    /**
+     * @return if the B tree is concurrent, see {@link #BTree(Comparator, int, boolean)}
+     */
+    public boolean isConcurrent()
+    {
+        return concurrent;
+    }
 
-            for(int i = 0; i < minKeySize + 1; ++ i)
-                siblingNode.addChild(childNode.childAt(t + i));
+    /**
+     * @param leaf - if the node is a leaf
+     * @return an empty node sized for t
+     */
+    private BTreeNode<K, V> newNode(boolean leaf)
+    {
+        BTreeNode<K, V> node = new BTreeNode<K, V>(kComparator, maxKeySize);
+        node.setLeaf(leaf);
+        node.generation = generation;
+        if(concurrent)
+            node.setLatched();
+        return node;
+    }
 
-            for(int i = maxKeySize; i >= t; -- i)
-                childNode.removeChild(i);
+    /**
+     * An operation without latch coupling: the descent reads the version of every node before
+     * reading it and validates the version before moving to its child, it writes nothing.
+     * A node changed meanwhile restarts the descent from the root. The node found is only
+     * latched, in write mode from the version read, to insert or delete an entry of a leaf
+     * which doesn't split or underflow, or to replace a value. The latch of a node is taken in
+     * write mode for every change, which changes its version.
+     *
+     * @param operation - SEARCH, INSERT, PUT or DELETE
+     * @return the result of the operation, LATCHED if it must be done with latch coupling
+     */
+    private Object optimistic(int operation, K key, V value)
+    {
+        for(int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; ++ attempt)
+        {
+            Object result = tryOptimistic(operation, key, value);
+            if(result != RETRY)
+                return result;
         }
-        // insert entry to the parent node
-        parentNode.insertEntry(entry, index);
-        // insert new nodes for parent node
-        parentNode.insertChild(siblingNode, index + 1);
+        return LATCHED;
     }
 
     /**
-     * insert given entry in the non-full node
+     * one optimistic descent, see {@link #optimistic(int, Object, Object)}
      *
-     * @param node
-     * @param entry
-     * @return
+     * @return RETRY if a node changed during the descent
      */
-    private boolean insertNotFull(BTreeNode<K, V> node, Entry<K, V> entry)
+    private Object tryOptimistic(int operation, K key, V value)
     {
-        assert node.size() < maxKeySize;
+        BTreeNode<K, V> node = root;
+        long stamp = node.optimisticRead();
+        // the root changes under the latch of the previous root
+        if(node != root)
+            return RETRY;
+        int index;
+        Object result = null;
+        boolean change = false;
+        // if the ancestors of the node are marked for the next checkpoint, only the node changes
+        boolean pathMarked = true;
+        try
+        {
+            while(true)
+            {
+                index = node.searchKey(key);
+                if(index >= 0 || node.isLeaf())
+                    break;
+                pathMarked &= node.position == 0;
+                BTreeNode<K, V> childNode = node.childAt(-index - 1);
+                long childStamp = childNode.optimisticRead();
+                if(!node.validate(stamp))
+                    return RETRY;
+                node = childNode;
+                stamp = childStamp;
+            }
+            if(operation == SEARCH)
+                result = index >= 0 ? node.entryAt(index).getValue() : null;
+            else if(operation == INSERT && index >= 0)
+                result = Boolean.FALSE;
+            else if(operation != DELETE || index >= 0)
+                change = true;
+            // no room for an insertion, or a deletion from an internal node or from a leaf at its minimum
+            if(change && (index < 0 ? node.size() == maxKeySize : operation == DELETE && (!node.isLeaf() || node.size() <= minKeySize && node != root)))
+                return LATCHED;
+            // the ancestors are marked under their write latches, see markPath
+            if(change && !pathMarked)
+                return LATCHED;
+        }
+        catch(RuntimeException e)
+        {
+            // a node changed meanwhile, or the key isn't comparable
+            if(node.validate(stamp))
+                throw e;
+            return RETRY;
+        }
+        if(!change)
+        {
+            if(!node.validate(stamp))
+                return RETRY;
+            if(operation == DELETE)
+                System.out.println("The key: " + key + " isn't in this BTree.");
+            return result;
+        }
 
-        if(node.isLeaf()) // leaf node
-            return node.insertEntry(entry);
-        else
+        long writeStamp = node.tryLockWrite(stamp);
+        if(writeStamp == 0L)
+            return RETRY;
+        try
         {
-			/* Find the entry where the given node should be inserted, then the entry should be inserted
-			 * The location corresponds to the subtree
-			 */
-            SearchResult<V> result = node.searchKey(entry.getKey());
-            // if exists
-            if(result.isExist())
-                return false;
-            BTreeNode<K, V> childNode = node.childAt(result.getIndex());
-            if(childNode.size() == 2*t - 1) // if the children node is full
+            if(operation == DELETE)
+                return node.removeEntry(index);
+            if(index >= 0)
             {
-                // split firstly
-                splitNode(node, childNode, result.getIndex());
-				/* If the key of the given entry is greater than the key of the new entry after splitting, you need to insert the right of the new item,
-				 * otherwise left.
-				 */
-                if(compare(entry.getKey(), node.entryAt(result.getIndex()).getKey()) > 0)
-                    childNode = node.childAt(result.getIndex() + 1);
+                V previous = node.entryAt(index).getValue();
+                node.setEntry(new Entry<K, V>(key, value), index);
+                return previous;
             }
-            return insertNotFull(childNode, entry);
+            node.insertEntry(new Entry<K, V>(key, value), -index - 1);
+            return operation == INSERT ? Boolean.TRUE : null;
+        }
+        finally
+        {
+            node.unlockWrite(writeStamp);
         }
     }
 
     /**
-     * Insert a given key-value pair in the B-tree.
+     * latch the root in read mode
      *
-     * @param key
-     * @param value
+     * @return the root
      */
-    public boolean insert(K key, V value)
+    private BTreeNode<K, V> lockRootRead()
     {
-        if(root.size() == maxKeySize) // If the root node is full, the B tree is taller
+        while(true)
         {
-            BTreeNode<K, V> newRoot = new BTreeNode<K, V>(kComparator);
-            newRoot.setLeaf(false);
-            newRoot.addChild(root);
-            splitNode(newRoot, root, 0);
-            root = newRoot;
+            BTreeNode<K, V> node = root;
+            node.lockRead();
+            if(node == root)
+                return node;
+            // the root was split or merged meanwhile
+            node.unlockRead();
         }
-        return insertNotFull(root, new Entry<K, V>(key, value));
     }
 
     /**
-     * If a given key exists, the value associated with the update key is updated,
-     * Otherwise insert the given item.
+     * latch the root in write mode, it is of the current generation
      *
-     * @param node - non-full
-     * @param entry
-     * @return
+     * @param split - if a full root is split, the B tree is taller
+     * @return the root, not full if split
      */
-    private V putNotFull(BTreeNode<K, V> node, Entry<K, V> entry)
-    {
-        assert node.size() < maxKeySize;
-
-        if(node.isLeaf()) // If it is a leaf node, insert it directly
-            return node.putEntry(entry);
-        else
-        {
-			/* Find the entry where the given node should be inserted, then the entry should be inserted
-			 * The location corresponds to the subtree
-			 */
-            SearchResult<V> result = node.searchKey(entry.getKey());
-            // if exists, update
-            if(result.isExist())
-                return node.putEntry(entry);
-            BTreeNode<K, V> childNode = node.childAt(result.getIndex());
-            if(childNode.size() == 2*t - 1) // if childNode is full
+    private BTreeNode<K, V> lockRoot(boolean split)
+    {
+        while(true)
+        {
+            BTreeNode<K, V> node = root;
+            node.lockWrite();
+            if(node != root)
             {
-                // split firstly
-                splitNode(node, childNode, result.getIndex());
-				/* If the key of the given entry is greater than the key of the new entry after splitting, you need to insert the right of the new item,
-				 * otherwise left.
-				 */
-                if(compare(entry.getKey(), node.entryAt(result.getIndex()).getKey()) > 0)
-                    childNode = node.childAt(result.getIndex() + 1);
+                node.unlockWrite();
+                continue;
+            }
+            // a published root is copied, a concurrent B tree isn't published
+            if(node.generation != generation)
+            {
+                node = node.copy(generation);
+                root = node;
             }
-            return putNotFull(childNode, entry);
+            if(!split || node.size() < maxKeySize)
+                return node;
+            BTreeNode<K, V> newRoot = newNode(false);
+            newRoot.lockWrite();
+            newRoot.addChild(node);
+            splitNode(newRoot, node, 0);
+            // published before the previous root is released
+            root = newRoot;
+            node.unlockWrite();
+            return newRoot;
         }
     }
 
+    @SuppressWarnings("unchecked")
+    int compare(K key1, K key2)
+    {
+        return kComparator == null ? ((Comparable<K>)key1).compareTo(key2) : kComparator.compare(key1, key2);
+    }
+
     /**
-     * If a given key exists in the B tree, the value is updated.
-     * Otherwise insert
+     * search key
      *
-     * @param key
-     * @param value
-     * @return
+     * @param key - given key
+     * @return value if exists, or return null
      */
-    public V put(K key, V value)
+    @SuppressWarnings("unchecked")
+    public V search(K key)
     {
-        if(root.size() == maxKeySize) // If the root node is full, the B tree is taller
+        if(concurrent)
         {
-            BTreeNode<K, V> newRoot = new BTreeNode<K, V>(kComparator);
-            newRoot.setLeaf(false);
-            newRoot.addChild(root);
-            splitNode(newRoot, root, 0);
-            root = newRoot;
+            Object result = optimistic(SEARCH, key, null);
+            if(result != LATCHED)
+                return (V) result;
+        }
+        BTreeNode<K, V> node = lockRootRead();
+        try
+        {
+            while(true)
+            {
+                int index = node.searchKey(key);
+                if(index >= 0)
+                    return node.entryAt(index).getValue();
+                if(node.isLeaf())
+                    return null;
+                BTreeNode<K, V> childNode = node.childAt(-index - 1);
+                childNode.lockRead();
+                node.unlockRead();
+                node = childNode;
+            }
+        }
+        finally
+        {
+            node.unlockRead();
         }
-        return putNotFull(root, new Entry<K, V>(key, value));
     }
 
     /**
-     * Removes an item associated with a given key from the B tree.
+     * range search, the keys in [lo, hi]
      *
-     * @param key
-     * @return
+     * @param lo - smallest key, null for no lower bound
+     * @param hi - largest key, null for no upper bound
+     * @return copies of the entries in increasing order of their keys
      */
-    public Entry<K, V> delete(K key)
+    public List<Map.Entry<K, V>> rangeSearch(K lo, K hi)
     {
-        return delete(root, key);
+        return rangeSearch(lo, true, hi, true);
     }
 
     /**
-     * Removes the item associated with the given key from the subtree root with the given node.
+     * range search
      *
-     * @param node
-     * @param key
-     * @return
+     * @param lo - lower bound, null for none
+     * @param loInclusive - if lo is in the range
+     * @param hi - upper bound, null for none
+     * @param hiInclusive - if hi is in the range
+     * @return copies of the entries in increasing order of their keys
      */
-    private Entry<K, V> delete(BTreeNode<K, V> node, K key)
+    public List<Map.Entry<K, V>> rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive)
     {
-        // The process needs to ensure that the number of keywords is at least t when a delete operation is performed on a non-root node.
-        assert node.size() >= t || node == root;
+        final List<Map.Entry<K, V>> entries = new ArrayList<Map.Entry<K, V>>();
+        rangeSearch(lo, loInclusive, hi, hiInclusive, new RangeVisitor<K, V>() {
+            @Override
+            public boolean visit(K key, V value)
+            {
+                entries.add(new AbstractMap.SimpleImmutableEntry<K, V>(key, value));
+                return true;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * range search, the entries are passed to the visitor in increasing order of their keys
+     * until it stops the query.
+     * <p/>
+     * The query descends once to the first key of the range, then walks the tree in order up to
+     * the last one: time complexity: O(log(n) + number of entries)。
+     * <p/>
+     * In a concurrent B tree, the nodes from the root to the current one are latched in read
+     * mode during the walk, the visitor shouldn't block.
+     *
+     * @param lo - lower bound, null for none
+     * @param loInclusive - if lo is in the range
+     * @param hi - upper bound, null for none
+     * @param hiInclusive - if hi is in the range
+     * @param visitor - receives the entries
+     */
+    public void rangeSearch(K lo, boolean loInclusive, K hi, boolean hiInclusive, RangeVisitor<K, V> visitor)
+    {
+        if(lo != null && hi != null)
+        {
+            int cmp = compare(lo, hi);
+            if(cmp > 0 || cmp == 0 && !(loInclusive && hiInclusive))
+                return;
+        }
+        BTreeNode<K, V> node = lockRootRead();
+        try
+        {
+            rangeSearch(node, lo, loInclusive, hi, hiInclusive, visitor);
+        }
+        finally
+        {
+            node.unlockRead();
+        }
+    }
+
+    /**
+     * in order walk of the entries of the subtree in the range, node is latched by the caller
+     *
+     * @return false if the walk is over, the range is passed or the visitor stopped it
+     */
+    private boolean rangeSearch(BTreeNode<K, V> node, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+                                RangeVisitor<K, V> visitor)
+    {
+        // the first entry in the range, the children before it hold smaller keys
+        int i = 0;
+        boolean skipChild = false;
+        if(lo != null)
+        {
+            int index = node.searchKey(lo);
+            if(index >= 0)
+            {
+                // the child before lo holds smaller keys
+                skipChild = loInclusive;
+                i = loInclusive ? index : index + 1;
+            }
+            else
+                i = -index - 1;
+        }
+        for(; ; ++ i)
+        {
+            if(!node.isLeaf() && !skipChild)
+            {
+                BTreeNode<K, V> childNode = node.childAt(i);
+                childNode.lockRead();
+                try
+                {
+                    if(!rangeSearch(childNode, lo, loInclusive, hi, hiInclusive, visitor))
+                        return false;
+                }
+                finally
+                {
+                    childNode.unlockRead();
+                }
+            }
+            skipChild = false;
+            if(i == node.size())
+                return true;
+            Entry<K, V> entry = node.entryAt(i);
+            if(hi != null)
+            {
+                int cmp = compare(entry.getKey(), hi);
+                if(cmp > 0 || cmp == 0 && !hiInclusive)
+                    return false;
+            }
+            if(!visitor.visit(entry.getKey(), entry.getValue()))
+                return false;
+        }
+    }
+
+    /**
+     * Iterator of the entries of a subtree in increasing order of their keys.
+     * <p/>
+     * The iterator holds the path from the subtree root to the current node, with the index of
+     * the next entry of every node of the path, and advances one entry at a time.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<K, V>>
+    {
+        private final BTreeNode<K, V>[] nodes;
+        private final int[] indexes;
+        /** length of the path */
+        private int depth;
+        private Entry<K, V> next;
+
+        @SuppressWarnings("unchecked")
+        EntryIterator(BTreeNode<K, V> node)
+        {
+            int height = height(node);
+            nodes = (BTreeNode<K, V>[]) new BTreeNode<?, ?>[height + 1];
+            indexes = new int[height + 1];
+            pushLeftmost(node);
+            next = advance();
+        }
+
+        /**
+         * push the path from node to the leaf of its smallest key
+         */
+        private void pushLeftmost(BTreeNode<K, V> node)
+        {
+            while(true)
+            {
+                nodes[depth] = node;
+                indexes[depth ++] = 0;
+                if(node.isLeaf())
+                    return;
+                node = node.childAt(0);
+            }
+        }
+
+        /**
+         * @return the next entry, null at the end. In an internal node, the child before the
+         * next entry is already walked.
+         */
+        private Entry<K, V> advance()
+        {
+            while(depth > 0)
+            {
+                BTreeNode<K, V> node = nodes[depth - 1];
+                int index = indexes[depth - 1];
+                if(index < node.size())
+                {
+                    indexes[depth - 1] = index + 1;
+                    if(!node.isLeaf())
+                        pushLeftmost(node.childAt(index + 1));
+                    return node.entryAt(index);
+                }
+                nodes[-- depth] = null;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<K, V> next()
+        {
+            if(next == null)
+                throw new NoSuchElementException();
+            Entry<K, V> entry = next;
+            next = advance();
+            return entry;
+        }
+    }
+
+    /**
+     * Spliterator of the entries of a node, it splits on the boundaries of the subtrees.
+     * <p/>
+     * It covers a range of positions of the node: in an internal node, child i is at position 2i
+     * and entry i at position 2i + 1, in a leaf entry i is at position i. A range is split in two
+     * halves, a range of a single child is replaced by the positions of the child first.
+     */
+    private class EntrySpliterator implements Spliterator<Map.Entry<K, V>>
+    {
+        private BTreeNode<K, V> node;
+        /** height of node, 0 for a leaf */
+        private int height;
+        /** first position */
+        private int from;
+        /** end of the positions */
+        private int to;
+        /** iterator of the child at position from, while it is walked */
+        private EntryIterator child;
+
+        EntrySpliterator(BTreeNode<K, V> node, int height, int from, int to)
+        {
+            this.node = node;
+            this.height = height;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit()
+        {
+            if(child != null)
+                return null;
+            while(to - from == 1 && !node.isLeaf() && from % 2 == 0)
+            {
+                node = node.childAt(from / 2);
+                -- height;
+                from = 0;
+                to = node.isLeaf() ? node.size() : 2 * node.size() + 1;
+            }
+            if(to - from < 2)
+                return null;
+            int mid = (from + to) >>> 1;
+            EntrySpliterator prefix = new EntrySpliterator(node, height, from, mid);
+            from = mid;
+            return prefix;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action)
+        {
+            while(true)
+            {
+                if(child != null)
+                {
+                    if(child.hasNext())
+                    {
+                        action.accept(child.next());
+                        return true;
+                    }
+                    child = null;
+                    ++ from;
+                }
+                if(from >= to)
+                    return false;
+                if(node.isLeaf())
+                {
+                    action.accept(node.entryAt(from ++));
+                    return true;
+                }
+                if(from % 2 == 1)
+                {
+                    action.accept(node.entryAt(from ++ / 2));
+                    return true;
+                }
+                child = new EntryIterator(node.childAt(from / 2));
+            }
+        }
+
+        /**
+         * @return the entries of the range, the subtrees counted as holding t keys per node
+         */
+        @Override
+        public long estimateSize()
+        {
+            if(node.isLeaf())
+                return to - from;
+            long children = (to - from + 1 - from % 2) / 2;
+            long entries = to - from - children;
+            long subtree = subtreeSize(height - 1, t);
+            if(children > (Long.MAX_VALUE - entries) / subtree)
+                return Long.MAX_VALUE;
+            return entries + children * subtree;
+        }
+
+        @Override
+        public int characteristics()
+        {
+            return ORDERED | DISTINCT | NONNULL;
+        }
+    }
+
+    /**
+     * @return height of the subtree of node, 0 for a leaf
+     */
+    private static <K, V> int height(BTreeNode<K, V> node)
+    {
+        int height = 0;
+        for(; !node.isLeaf(); node = node.childAt(0))
+            ++ height;
+        return height;
+    }
+
+    /**
+     * Iterator of the entries in increasing order of their keys. It advances lazily, holding the
+     * path from the root to the current node only. The B tree mustn't change during the iteration.
+     */
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator()
+    {
+        return new EntryIterator(root);
+    }
+
+    /**
+     * Spliterator of the entries in increasing order of their keys, it splits on the boundaries
+     * of the subtrees. The B tree mustn't change during the traversal.
+     */
+    @Override
+    public Spliterator<Map.Entry<K, V>> spliterator()
+    {
+        return new EntrySpliterator(root, height(root), 0, root.isLeaf() ? root.size() : 2 * root.size() + 1);
+    }
+
+    /**
+     * @return a stream of the entries in increasing order of their keys, see {@link #spliterator()}.
+     *         A parallel stream walks the subtrees in parallel.
+     */
+    public Stream<Map.Entry<K, V>> stream()
+    {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * split node
+     *
+     * @param parentNode
+     * @param childNode
+     * @param index
+     */
+    private void splitNode(BTreeNode<K, V> parentNode, BTreeNode<K, V> childNode, int index)
+    {
+        assert childNode.size() == maxKeySize;
+
+        BTreeNode<K, V> siblingNode = newNode(childNode.isLeaf());
+        // move the (t - 1) last entries, and the t last children if full node is not the leaf node, to the new node at once
+        siblingNode.appendFrom(childNode, t, minKeySize);
+        // extract the index (t - 1)
+        Entry<K, V> entry = childNode.entryAt(t - 1);
+        // delete index: [t - 1, 2t - 2]'s t entry
+        childNode.truncateEntries(t - 1);
+        if(!childNode.isLeaf())
+            childNode.truncateChildren(t);
+        // insert entry to the parent node
+        parentNode.insertEntry(entry, index);
+        // insert new nodes for parent node
+        parentNode.insertChild(siblingNode, index + 1);
+    }
+
+    /**
+     * insert given entry in the non-full node
+     *
+     * @param node - latched in write mode by the caller, released here
+     * @param entry
+     * @return
+     */
+    private boolean insertNotFull(BTreeNode<K, V> node, Entry<K, V> entry, WritePath path)
+    {
+        try
+        {
+            while(true)
+            {
+                assert node.size() < maxKeySize;
+                path.add(node);
+
+                if(node.isLeaf()) // leaf node
+                    return node.insertEntry(entry);
+				/* Find the entry where the given node should be inserted, then the entry should be inserted
+				 * The location corresponds to the subtree
+				 */
+                int index = node.searchKey(entry.getKey());
+                // if exists
+                if(index >= 0)
+                    return false;
+                index = -index - 1;
+                BTreeNode<K, V> childNode = ownChild(node, index);
+                childNode.lockWrite();
+                if(childNode.size() == 2*t - 1) // if the children node is full
+                {
+                    // split firstly
+                    splitNode(node, childNode, index);
+					/* If the key of the given entry is greater than the key of the new entry after splitting, you need to insert the right of the new item,
+					 * otherwise left. If it is the key moved up, it exists.
+					 */
+                    int cmp = compare(entry.getKey(), node.entryAt(index).getKey());
+                    if(cmp == 0)
+                    {
+                        childNode.unlockWrite();
+                        return false;
+                    }
+                    if(cmp > 0)
+                        childNode = lockSibling(node, childNode, index);
+                }
+                // the child isn't full, the node won't change
+                node.unlockWrite();
+                node = childNode;
+            }
+        }
+        finally
+        {
+            node.unlockWrite();
+        }
+    }
+
+    /**
+     * The nodes latched in write mode by a change, from the root down
+     */
+    private static final class WritePath
+    {
+        private BTreeNode<?, ?>[] nodes = new BTreeNode<?, ?>[8];
+        private int size;
+
+        void add(BTreeNode<?, ?> node)
+        {
+            if(size == nodes.length)
+                nodes = Arrays.copyOf(nodes, 2 * size);
+            nodes[size ++] = node;
+        }
+    }
+
+    /**
+     * mark the nodes of the path of a change for the next checkpoint, once the change is done.
+     * The nodes changed are marked by the change, their ancestors are marked here under their
+     * write latch. A position is only set by a checkpoint, which runs without writers, so the
+     * nodes already marked aren't latched again.
+     */
+    private static void markPath(WritePath path)
+    {
+        for(int i = 0; i < path.size; ++ i)
+        {
+            BTreeNode<?, ?> node = path.nodes[i];
+            if(node.position == 0)
+                continue;
+            node.lockWrite();
+            node.markChanged();
+            node.unlockWrite();
+        }
+    }
+
+    /**
+     * after a split, latch the new sibling of a child and release the child
+     *
+     * @param node - parent, latched in write mode
+     * @param childNode - child index, latched in write mode
+     * @param index - index of the child
+     * @return the sibling, child index + 1
+     */
+    private BTreeNode<K, V> lockSibling(BTreeNode<K, V> node, BTreeNode<K, V> childNode, int index)
+    {
+        BTreeNode<K, V> siblingNode = node.childAt(index + 1);
+        siblingNode.lockWrite();
+        childNode.unlockWrite();
+        return siblingNode;
+    }
+
+    /**
+     * Insert a given key-value pair in the B-tree.
+     *
+     * @param key
+     * @param value
+     */
+    public boolean insert(K key, V value)
+    {
+        checkWritable();
+        if(concurrent)
+        {
+            Object result = optimistic(INSERT, key, value);
+            if(result != LATCHED)
+                return (Boolean) result;
+        }
+        // If the root node is full, the B tree is taller
+        WritePath path = new WritePath();
+        boolean inserted = insertNotFull(lockRoot(true), new Entry<K, V>(key, value), path);
+        if(inserted)
+            markPath(path);
+        return inserted;
+    }
+
+    /**
+     * If a given key exists, the value associated with the update key is updated,
+     * Otherwise insert the given item.
+     *
+     * @param node - non-full, latched in write mode by the caller, released here
+     * @param entry
+     * @return
+     */
+    private V putNotFull(BTreeNode<K, V> node, Entry<K, V> entry, WritePath path)
+    {
+        try
+        {
+            while(true)
+            {
+                assert node.size() < maxKeySize;
+                path.add(node);
+
+                if(node.isLeaf()) // If it is a leaf node, insert it directly
+                    return node.putEntry(entry);
+				/* Find the entry where the given node should be inserted, then the entry should be inserted
+				 * The location corresponds to the subtree
+				 */
+                int index = node.searchKey(entry.getKey());
+                // if exists, update
+                if(index >= 0)
+                    return node.putEntry(entry);
+                index = -index - 1;
+                BTreeNode<K, V> childNode = ownChild(node, index);
+                childNode.lockWrite();
+                if(childNode.size() == 2*t - 1) // if childNode is full
+                {
+                    // split firstly
+                    splitNode(node, childNode, index);
+					/* If the key of the given entry is greater than the key of the new entry after splitting, you need to insert the right of the new item,
+					 * otherwise left. If it is the key moved up, it is updated there.
+					 */
+                    int cmp = compare(entry.getKey(), node.entryAt(index).getKey());
+                    if(cmp == 0)
+                    {
+                        childNode.unlockWrite();
+                        return node.putEntry(entry);
+                    }
+                    if(cmp > 0)
+                        childNode = lockSibling(node, childNode, index);
+                }
+                // the child isn't full, the node won't change
+                node.unlockWrite();
+                node = childNode;
+            }
+        }
+        finally
+        {
+            node.unlockWrite();
+        }
+    }
+
+    /**
+     * If a given key exists in the B tree, the value is updated.
+     * Otherwise insert
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value)
+    {
+        checkWritable();
+        if(concurrent)
+        {
+            Object result = optimistic(PUT, key, value);
+            if(result != LATCHED)
+                return (V) result;
+        }
+        // If the root node is full, the B tree is taller
+        WritePath path = new WritePath();
+        V previous = putNotFull(lockRoot(true), new Entry<K, V>(key, value), path);
+        markPath(path);
+        return previous;
+    }
+
+    /**
+     * Removes an item associated with a given key from the B tree.
+     *
+     * @param key
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public Entry<K, V> delete(K key)
+    {
+        checkWritable();
+        if(concurrent)
+        {
+            Object result = optimistic(DELETE, key, null);
+            if(result != LATCHED)
+                return (Entry<K, V>) result;
+        }
+        WritePath path = new WritePath();
+        Entry<K, V> deleted = delete(lockRoot(false), key, path);
+        if(deleted != null)
+            markPath(path);
+        return deleted;
+    }
+
+    /**
+     * Removes the item associated with the given key from the subtree root with the given node.
+     * <p/>
+     * The node is latched in write mode by the caller and released here. The children changed
+     * are latched in write mode before, the child descended to stays latched.
+     *
+     * @param node
+     * @param key
+     * @return
+     */
+    private Entry<K, V> delete(BTreeNode<K, V> node, K key, WritePath path)
+    {
+        // The process needs to ensure that the number of keywords is at least t when a delete operation is performed on a non-root node.
+        assert node.size() >= t || node == root;
+        path.add(node);
+
+        int searched;
+        try
+        {
+            searched = node.searchKey(key);
+        }
+        catch(RuntimeException e)
+        {
+            node.unlockWrite();
+            throw e;
+        }
+        boolean exist = searched >= 0;
+        int index = exist ? searched : -searched - 1;
+		/*
+		 * it is the situation of the successful，0 <= index <= (node.size() - 1)，
+		 * So (index + 1) does not overflow.
+		 */
+        if(exist)
+        {
+            // If the keyword is in the node node and is a leaf node, it is deleted directly.
+            if(node.isLeaf())
+            {
+                Entry<K, V> deletedEntry = node.removeEntry(index);
+                node.unlockWrite();
+                return deletedEntry;
+            }
+            Entry<K, V> deletedEntry = node.entryAt(index);
+            // If the child node in the node node precedes the key contains at least t items
+            BTreeNode<K, V> leftChildNode = ownChild(node, index);
+            leftChildNode.lockWrite();
+            if(leftChildNode.size() >= t)
+            {
+                // Use the predecessor, the last item of the left subtree, instead of the item you want to delete in the node
+                Entry<K, V> predecessor = edgeEntry(leftChildNode, true);
+                // Recursively delete the predecessor in the left child node, the node stays latched until it is replaced
+                delete(leftChildNode, predecessor.getKey(), path);
+                node.setEntry(predecessor, index);
+                node.unlockWrite();
+                return deletedEntry;
+            }
+            // If the child node in the node node after the key contains at least t keywords
+            BTreeNode<K, V> rightChildNode = ownChild(node, index + 1);
+            rightChildNode.lockWrite();
+            if(rightChildNode.size() >= t)
+            {
+                leftChildNode.unlockWrite();
+                // Use the successor, the first item of the right subtree, instead of the item you want to delete in the node
+                Entry<K, V> successor = edgeEntry(rightChildNode, false);
+                // Recursively delete the successor in the right child node
+                delete(rightChildNode, successor.getKey(), path);
+                node.setEntry(successor, index);
+                node.unlockWrite();
+                return deletedEntry;
+            }
+            // The sub-nodes preceding the key and after the key contain only t-1 items
+            // Merge the items associated with key in the node and the items in the rightChildNode into the leftChildNode
+            merge(node, index);
+            rightChildNode.unlockWrite();
+            node.unlockWrite();
+            return delete(leftChildNode, key, path);
+        }
+		/*
+		 * Fail situation，0 <= index <= node.size()，
+		 * (index + 1) will overflow
+		 */
+        if(node.isLeaf()) // If the keyword is not in the node node and is the leaf node, nothing is done because the keyword is not in the B tree
+        {
+            node.unlockWrite();
+            System.out.println("The key: " + key + " isn't in this BTree.");
+            return null;
+        }
+        BTreeNode<K, V> childNode = ownChild(node, index);
+        childNode.lockWrite();
+        if(childNode.size() >= t) // If the child node has no less than t items, then recursively deleted
+        {
+            node.unlockWrite();
+            return delete(childNode, key, path);
+        }
+        // the adjacent siblings, the child borrows an item from one of them or is merged with one
+        BTreeNode<K, V> rightSiblingNode = index < node.size() ? node.childAt(index + 1) : null;
+        BTreeNode<K, V> leftSiblingNode = index > 0 ? node.childAt(index - 1) : null;
+        if(rightSiblingNode != null)
+            rightSiblingNode.lockWrite();
+        if(leftSiblingNode != null)
+            leftSiblingNode.lockWrite();
+        // Find the right sibling node first
+        if(rightSiblingNode != null && rightSiblingNode.size() >= t)
+        {
+            // the latched sibling is the one changed, a concurrent B tree isn't published
+            rightSiblingNode = ownChild(node, index + 1);
+            childNode.addEntry(node.entryAt(index));
+            node.setEntry(rightSiblingNode.removeEntry(0), index);
+            // Move the first child of the right sibling node to childNode
+            if(!rightSiblingNode.isLeaf())
+            {
+                childNode.addChild(rightSiblingNode.childAt(0));
+                rightSiblingNode.removeChild(0);
+            }
+        }
+        // If the right sibling node does not meet the criteria, try the left sibling node
+        else if(leftSiblingNode != null && leftSiblingNode.size() >= t)
+        {
+            leftSiblingNode = ownChild(node, index - 1);
+            childNode.insertEntry(node.entryAt(index - 1), 0);
+            node.setEntry(leftSiblingNode.removeEntry(leftSiblingNode.size() - 1), index - 1);
+            // Move the last child of the left brother node to childNode
+            if(!leftSiblingNode.isLeaf())
+            {
+                childNode.insertChild(leftSiblingNode.childAt(leftSiblingNode.size() + 1), 0);
+                leftSiblingNode.removeChild(leftSiblingNode.size() + 1);
+            }
+        }
+        // If its adjacent left and right nodes contain t-1 items
+        else if(rightSiblingNode != null) // There is the right brother, merged in the back
+            merge(node, index);
+        else // There is a left brother, merged in front
+        {
+            ownChild(node, index - 1);
+            merge(node, index - 1);
+            leftSiblingNode = childNode;
+            childNode = node.childAt(index - 1);
+        }
+        if(rightSiblingNode != null)
+            rightSiblingNode.unlockWrite();
+        if(leftSiblingNode != null)
+            leftSiblingNode.unlockWrite();
+        node.unlockWrite();
+        return delete(childNode, key, path);
+    }
+
+    /**
+     * the last or the first entry of a subtree, the nodes below node are latched in write mode on the way.
+     * <p/>
+     * A read latch doesn't change the version of a node: an optimistic writer which read the
+     * versions of the path before it was latched could still change the leaf once it is
+     * released, and add a key beyond the entry which replaces the deleted one. The write
+     * latches change the versions, so such a writer restarts, and the node latched by the
+     * caller stops the writers coming after, until the entry is deleted from the leaf.
+     *
+     * @param node - latched in write mode by the caller
+     * @param last - the last entry if true, else the first
+     */
+    private Entry<K, V> edgeEntry(BTreeNode<K, V> node, boolean last)
+    {
+        BTreeNode<K, V> edgeNode = node;
+        while(!edgeNode.isLeaf())
+        {
+            BTreeNode<K, V> childNode = edgeNode.childAt(last ? edgeNode.size() : 0);
+            childNode.lockWrite();
+            if(edgeNode != node)
+                edgeNode.unlockWrite();
+            edgeNode = childNode;
+        }
+        Entry<K, V> entry = edgeNode.entryAt(last ? edgeNode.size() - 1 : 0);
+        if(edgeNode != node)
+            edgeNode.unlockWrite();
+        return entry;
+    }
+
+    /**
+     * Merge the item of the given index of node and the items of the child after it into the child before it.
+     * Both children hold t - 1 items. If node is root and doesn't contain any items then, the merged child is the root.
+     * The node and both children are latched in write mode by the caller, the node and the
+     * child before are of the current generation.
+     *
+     * @param node
+     * @param index
+     */
+    private void merge(BTreeNode<K, V> node, int index)
+    {
+        BTreeNode<K, V> leftChildNode = node.childAt(index);
+        BTreeNode<K, V> rightChildNode = node.childAt(index + 1);
+        leftChildNode.addEntry(node.removeEntry(index));
+        node.removeChild(index + 1);
+        leftChildNode.appendFrom(rightChildNode, 0, rightChildNode.size());
+        if(node == root && node.size() == 0)
+            root = leftChildNode;
+    }
+
+    /**
+     * Build the B tree from entries sorted by key, replacing its content.
+     * See {@link #bulkLoad(Iterator, double)}, the nodes are filled completely.
+     *
+     * @param sorted - entries in increasing order of their keys
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> sorted)
+    {
+        bulkLoad(sorted, DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * Build the B tree from entries sorted by key, replacing its content.
+     * <p/>
+     * The nodes are built bottom-up from the sorted entries, every entry is placed once,
+     * without a descent or a split. The height is the smallest one for the given fill factor,
+     * the entries are spread evenly over the children of every node.
+     * <p/>
+     * time complexity: O(n)。
+     *
+     * @param sorted - entries in increasing order of their keys
+     * @param fillFactor - the part of the (2t - 1) keys of a node to fill, in (0, 1].
+     *                   Every node but the root keeps at least t - 1 keys.
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<K, V>> sorted, double fillFactor)
+    {
+        checkWritable();
+        if(!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("Fill factor must be in (0, 1]: " + fillFactor);
+        List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>();
+        while(sorted.hasNext())
+        {
+            Map.Entry<K, V> entry = sorted.next();
+            if(!entries.isEmpty())
+            {
+                K last = entries.get(entries.size() - 1).getKey();
+                if(compare(last, entry.getKey()) >= 0)
+                    throw new IllegalArgumentException("Key " + entry.getKey() + " comes after key " + last + ", the keys must be increasing.");
+            }
+            entries.add(new Entry<K, V>(entry.getKey(), entry.getValue()));
+        }
+        int keys = Math.max(minKeySize, Math.min(maxKeySize, (int) Math.round(fillFactor * maxKeySize)));
+        int n = entries.size();
+        // the smallest height for nodes of the given number of keys ...
+        int height = 0;
+        while(subtreeSize(height, keys) < n)
+            ++ height;
+        // ... lower if the root wouldn't have two children holding t - 1 keys at least
+        while(height > 0 && n < 2 * power(t, height) - 1)
+            -- height;
+        root = build(entries, 0, n, height, keys, true);
+    }
+
+    /**
+     * build a subtree of n entries
+     *
+     * @param entries - sorted entries
+     * @param from - first entry of the subtree
+     * @param n - number of entries
+     * @param height - height of the subtree, 0 for a leaf
+     * @param keys - number of keys of a node for the fill factor
+     * @param isRoot - if the subtree is the whole tree
+     * @return root of the subtree
+     */
+    private BTreeNode<K, V> build(List<Entry<K, V>> entries, int from, int n, int height, int keys, boolean isRoot)
+    {
+        BTreeNode<K, V> node = newNode(height == 0);
+        if(height == 0)
+        {
+            for(int i = from; i < from + n; ++ i)
+                node.addEntry(entries.get(i));
+            return node;
+        }
+        // a child takes a subtree and the entry after it
+        long target = subtreeSize(height - 1, keys) + 1;
+        long min = power(t, height);
+        long max = subtreeSize(height - 1, maxKeySize) + 1;
+        int minChildren = isRoot ? 2 : t;
+        long children = Math.max(minChildren, Math.min(2 * t, n / target + 1));
+        // children * max - 1 < n, the children can't hold the entries
+        while(children <= n / max)
+            ++ children;
+        // children * min - 1 > n, the children can't get t - 1 keys in every node
+        while(children > minChildren && children > (n + 1) / min)
+            -- children;
+        int c = (int) children;
+        int rest = n - (c - 1);
+        int index = from;
+        for(int i = 0; i < c; ++ i)
+        {
+            int size = rest / c + (i < rest % c ? 1 : 0);
+            node.addChild(build(entries, index, size, height - 1, keys, false));
+            index += size;
+            if(i < c - 1)
+                node.addEntry(entries.get(index ++));
+        }
+        return node;
+    }
 
-        SearchResult<V> result = node.searchKey(key);
-		/*
-		 * it is the situation of the successful，0 <= result.getIndex() <= (node.size() - 1)，
-		 * So (result.getIndex () + 1) does not overflow.
-		 */
-        if(result.isExist())
+    /**
+     * @return number of entries of a subtree of the given height, whose nodes have the given number of keys
+     */
+    private static long subtreeSize(int height, int keys)
+    {
+        return power(keys + 1, height + 1) - 1;
+    }
+
+    /**
+     * @return base ^ exp, Long.MAX_VALUE if it overflows
+     */
+    private static long power(long base, int exp)
+    {
+        long result = 1;
+        for(int i = 0; i < exp; ++ i)
         {
-            // If the keyword is in the node node and is a leaf node, it is deleted directly.
-            if(node.isLeaf())
-                return node.removeEntry(result.getIndex());
-            else
+            if(result > Long.MAX_VALUE / base)
+                return Long.MAX_VALUE;
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * Write the B tree to a file in the binary format, instead of Java serialization.
+     * <p/>
+     * The file holds the magic number, the format version and t, then the nodes in preorder.
+     * A node is a frame of its length, the leaf flag, the number of entries and the entries
+     * encoded by the codecs, the frames of its children follow it.
+     * <p/>
+     * The file is encoded in one buffer and written at once.
+     *
+     * @param filename - the file
+     * @param keyCodec - codec of the keys
+     * @param valueCodec - codec of the values
+     */
+    public void writeTo(String filename, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE + (int) frameSizes(root, keyCodec, valueCodec));
+        buffer.putInt(TREE_MAGIC).putInt(TREE_VERSION).putInt(t);
+        writeFrames(root, buffer, keyCodec, valueCodec);
+        buffer.flip();
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return number of bytes of the entries of a node, after the frame length
+     */
+    private int frameSize(BTreeNode<K, V> node, Codec<K> keyCodec, Codec<V> valueCodec)
+    {
+        int size = 1 + Codecs.varintSize(node.size());
+        for(int i = 0; i < node.size(); ++ i)
+            size += keyCodec.size(node.entryAt(i).getKey()) + valueCodec.size(node.entryAt(i).getValue());
+        return size;
+    }
+
+    /**
+     * @return number of bytes of the frames of a subtree
+     */
+    private long frameSizes(BTreeNode<K, V> node, Codec<K> keyCodec, Codec<V> valueCodec)
+    {
+        long size = 4 + frameSize(node, keyCodec, valueCodec);
+        if(!node.isLeaf())
+            for(int i = 0; i <= node.size(); ++ i)
+                size += frameSizes(node.childAt(i), keyCodec, valueCodec);
+        if(size > Integer.MAX_VALUE - TREE_HEADER_SIZE)
+            throw new IllegalStateException("The B tree takes more than 2 GB.");
+        return size;
+    }
+
+    private void writeFrames(BTreeNode<K, V> node, ByteBuffer buffer, Codec<K> keyCodec, Codec<V> valueCodec)
+    {
+        buffer.putInt(frameSize(node, keyCodec, valueCodec));
+        buffer.put((byte) (node.isLeaf() ? 1 : 0));
+        Codecs.putVarint(buffer, node.size());
+        for(int i = 0; i < node.size(); ++ i)
+        {
+            keyCodec.encode(node.entryAt(i).getKey(), buffer);
+            valueCodec.encode(node.entryAt(i).getValue(), buffer);
+        }
+        if(!node.isLeaf())
+            for(int i = 0; i <= node.size(); ++ i)
+                writeFrames(node.childAt(i), buffer, keyCodec, valueCodec);
+    }
+
+    /**
+     * Read a B tree written by {@link #writeTo(String, Codec, Codec)}, whose keys are Comparable.
+     *
+     * @param filename - the file
+     * @param keyCodec - codec of the keys
+     * @param valueCodec - codec of the values
+     * @return the B tree
+     */
+    public static <K, V> BTree<K, V> readFrom(String filename, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        return readFrom(filename, keyCodec, valueCodec, null);
+    }
+
+    /**
+     * Read a B tree written by {@link #writeTo(String, Codec, Codec)}.
+     * The file is read into one buffer at once and decoded from it.
+     *
+     * @param filename - the file
+     * @param keyCodec - codec of the keys
+     * @param valueCodec - codec of the values
+     * @param kComparator - order of the keys, null if they are Comparable
+     * @return the B tree
+     */
+    public static <K, V> BTree<K, V> readFrom(String filename, Codec<K> keyCodec, Codec<V> valueCodec,
+                                              Comparator<K> kComparator) throws IOException
+    {
+        ByteBuffer buffer = readTreeFile(filename);
+        try
+        {
+            int t = buffer.getInt();
+            BTree<K, V> btree = kComparator == null ? new BTree<K, V>(t) : new BTree<K, V>(kComparator, t);
+            btree.root = btree.readFrames(buffer, keyCodec, valueCodec);
+            if(buffer.hasRemaining())
+                throw new IOException("B tree file " + filename + " has " + buffer.remaining() + " bytes after the root.");
+            return btree;
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new IOException("B tree file " + filename + " is truncated.", e);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException("B tree file " + filename + " is corrupt.", e);
+        }
+    }
+
+    /**
+     * Read a file written by {@link #writeTo(String, Codec, Codec)} into one buffer at once and
+     * check its magic number and version. {@link IntBTree#readFrom(String, Codec)} decodes it too.
+     *
+     * @param filename - the file
+     * @return the buffer, at t, the frames of the nodes follow it
+     */
+    static ByteBuffer readTreeFile(String filename) throws IOException
+    {
+        ByteBuffer buffer;
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            if(channel.size() > Integer.MAX_VALUE)
+                throw new IOException("B tree file " + filename + " is larger than 2 GB.");
+            buffer = ByteBuffer.allocate((int) channel.size());
+            while(buffer.hasRemaining())
             {
-                // If the child node in the node node precedes the key contains at least t items
-                BTreeNode<K, V> leftChildNode = node.childAt(result.getIndex());
-                if(leftChildNode.size() >= t)
-                {
-                    // Use the last item in leftChildNode instead of the item you want to delete in the node
-                    node.removeEntry(result.getIndex());
-                    node.insertEntry(leftChildNode.entryAt(leftChildNode.size() - 1), result.getIndex());
-                    // Recursively delete the last item in the left child node
-                    return delete(leftChildNode, leftChildNode.entryAt(leftChildNode.size() - 1).getKey());
-                }
-                else
-                {
-                    // If the child node in the node node after the key contains at least t keywords
-                    BTreeNode<K, V> rightChildNode = node.childAt(result.getIndex() + 1);
-                    if(rightChildNode.size() >= t)
-                    {
-                        // Use the first entry in rightChildNode instead of the item you want to delete in the node
-                        node.removeEntry(result.getIndex());
-                        node.insertEntry(rightChildNode.entryAt(0), result.getIndex());
-                        // Recursively delete the first item in the right child node
-                        return delete(rightChildNode, rightChildNode.entryAt(0).getKey());
-                    }
-                    else // The sub-nodes preceding the key and after the key contain only t-1 items
-                    {
-                        Entry<K, V> deletedEntry = node.removeEntry(result.getIndex());
-                        node.removeChild(result.getIndex() + 1);
-                        // Merge the items associated with key in the node and the items in the rightChildNode into the leftChildNode
-                        leftChildNode.addEntry(deletedEntry);
-                        for(int i = 0; i < rightChildNode.size(); ++ i)
-                            leftChildNode.addEntry(rightChildNode.entryAt(i));
-                        // Merge the child nodes in rightChildNode into leftChildNode, if any
-                        if(!rightChildNode.isLeaf())
-                        {
-                            for(int i = 0; i <= rightChildNode.size(); ++ i)
-                                leftChildNode.addChild(rightChildNode.childAt(i));
-                        }
-                        return delete(leftChildNode, key);
-                    }
-                }
+                if(channel.read(buffer) < 0)
+                    throw new IOException("B tree file " + filename + " is truncated.");
             }
         }
-        else
+        finally
         {
-			/*
-			 * Fail situation，0 <= result.getIndex() <= node.size()，
-			 * (result.getIndex() + 1) will overflow
-			 */
-            if(node.isLeaf()) // If the keyword is not in the node node and is the leaf node, nothing is done because the keyword is not in the B tree
+            channel.close();
+        }
+        buffer.flip();
+        if(buffer.remaining() < TREE_HEADER_SIZE || buffer.getInt() != TREE_MAGIC)
+            throw new IOException(filename + " isn't a B tree file.");
+        int version = buffer.getInt();
+        if(version != TREE_VERSION)
+            throw new IOException("B tree file " + filename + " has version " + version + ", not " + TREE_VERSION + ".");
+        return buffer;
+    }
+
+    private BTreeNode<K, V> readFrames(ByteBuffer buffer, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        int frameSize = buffer.getInt();
+        int end = buffer.position() + frameSize;
+        BTreeNode<K, V> node = newNode(buffer.get() != 0);
+        int size = Codecs.getVarint(buffer);
+        if(size > maxKeySize)
+            throw new IOException("B tree node of " + size + " keys, at most " + maxKeySize + " are allowed.");
+        for(int i = 0; i < size; ++ i)
+            node.addEntry(new Entry<K, V>(keyCodec.decode(buffer), valueCodec.decode(buffer)));
+        if(buffer.position() != end)
+            throw new IOException("B tree node frame of " + frameSize + " bytes holds " + (buffer.position() - end + frameSize) + " bytes.");
+        if(!node.isLeaf())
+            for(int i = 0; i <= size; ++ i)
+                node.addChild(readFrames(buffer, keyCodec, valueCodec));
+        return node;
+    }
+
+    /**
+     * Incremental checkpoint: write the nodes changed since the last checkpoint to a node file.
+     * <p/>
+     * The node file is append only. A node is a frame, like the ones of
+     * {@link #writeTo(String, Codec, Codec)} followed by the positions of the frames of its
+     * children. A change marks the nodes of its path, a checkpoint appends the frames of the
+     * nodes marked, children first, so the nodes not marked keep their frames. The frames are
+     * forced, then the position of the root frame is written in the header and forced: a crash
+     * leaves the previous checkpoint. The header holds two roots written in turn, each with a
+     * CRC, so a torn write of one leaves the other.
+     * <p/>
+     * The cost of a checkpoint is the nodes changed and the nodes above them. The previous
+     * frames of the nodes written are garbage, the node file is rewritten from scratch, to a
+     * temporary file renamed over it, when its frames grow over {@link #NODE_FILE_GROWTH} times
+     * their size at the last rewrite, or when it isn't the file of the last checkpoint.
+     * <p/>
+     * A concurrent B tree mustn't change during the checkpoint, the searches go on.
+     *
+     * @param filename - node file
+     * @param keyCodec - codec of the keys
+     * @param valueCodec - codec of the values
+     * @return number of bytes of the frames written
+     */
+    public long checkpoint(String filename, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        checkWritable();
+        boolean rewrite = !filename.equals(checkpointFile) || checkpointEnd - NODE_FILE_HEADER_SIZE
+                > NODE_FILE_GROWTH * (rewriteEnd - NODE_FILE_HEADER_SIZE);
+        // the positions of the nodes are known again once the checkpoint is durable
+        checkpointFile = null;
+        long sequence = rewrite ? 1 : checkpointSequence + 1;
+        long start = rewrite ? NODE_FILE_HEADER_SIZE : checkpointEnd;
+        Path target = Paths.get(filename);
+        Path temporary = Paths.get(filename + ".tmp");
+        FileChannel channel = rewrite
+                ? FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+                : FileChannel.open(target, StandardOpenOption.WRITE);
+        long end;
+        try
+        {
+            if(rewrite)
             {
-                System.out.println("The key: " + key + " isn't in this BTree.");
-                return null;
+                ByteBuffer header = ByteBuffer.allocate(NODE_FILE_HEADER_SIZE);
+                header.putInt(NODE_FILE_MAGIC).putInt(NODE_FILE_VERSION).putInt(t);
+                header.clear();
+                while(header.hasRemaining())
+                    channel.write(header, header.position());
             }
-            BTreeNode<K, V> childNode = node.childAt(result.getIndex());
-            if(childNode.size() >= t) // If the child node has no less than t items, then recursively deleted
-                return delete(childNode, key);
-            else
+            // the frames of a checkpoint which failed after the end are overwritten
+            FrameWriter writer = new FrameWriter(channel, start);
+            long rootPosition = writeNodes(root, writer, rewrite, keyCodec, valueCodec);
+            writer.flush();
+            end = writer.position();
+            channel.force(false);
+            writeRoot(channel, sequence, rootPosition, end, rewrite ? end : rewriteEnd);
+            channel.force(false);
+        }
+        finally
+        {
+            channel.close();
+        }
+        if(rewrite)
+        {
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            rewriteEnd = end;
+        }
+        checkpointSequence = sequence;
+        checkpointEnd = end;
+        checkpointFile = filename;
+        return end - start;
+    }
+
+    /**
+     * append the frames of the subtree, children first
+     *
+     * @param all - if every node is written, else the nodes changed only
+     * @return position of the frame of node
+     */
+    private long writeNodes(BTreeNode<K, V> node, FrameWriter writer, boolean all, Codec<K> keyCodec,
+                            Codec<V> valueCodec) throws IOException
+    {
+        if(!all && node.position != 0)
+            return node.position;
+        if(!node.isLeaf())
+            for(int i = 0; i <= node.size(); ++ i)
+                writeNodes(node.childAt(i), writer, all, keyCodec, valueCodec);
+        int frameSize = frameSize(node, keyCodec, valueCodec) + (node.isLeaf() ? 0 : 8 * (node.size() + 1));
+        long position = writer.position();
+        ByteBuffer buffer = writer.reserve(4 + frameSize);
+        buffer.putInt(frameSize);
+        buffer.put((byte) (node.isLeaf() ? 1 : 0));
+        Codecs.putVarint(buffer, node.size());
+        for(int i = 0; i < node.size(); ++ i)
+        {
+            keyCodec.encode(node.entryAt(i).getKey(), buffer);
+            valueCodec.encode(node.entryAt(i).getValue(), buffer);
+        }
+        if(!node.isLeaf())
+            for(int i = 0; i <= node.size(); ++ i)
+                buffer.putLong(node.childAt(i).position);
+        node.position = position;
+        return position;
+    }
+
+    /**
+     * write a root in the header of a node file, in the slot of its sequence number
+     */
+    private static void writeRoot(FileChannel channel, long sequence, long rootPosition, long end, long rewriteEnd)
+            throws IOException
+    {
+        ByteBuffer slot = ByteBuffer.allocate(ROOT_SLOT_SIZE);
+        slot.putLong(sequence).putLong(rootPosition).putLong(end).putLong(rewriteEnd);
+        CRC32 crc = new CRC32();
+        crc.update(slot.array(), 0, ROOT_SLOT_SIZE - 4);
+        slot.putInt((int) crc.getValue());
+        slot.flip();
+        long position = sequence % 2 == 0 ? ROOT_SLOT_0 : ROOT_SLOT_1;
+        while(slot.hasRemaining())
+            channel.write(slot, position + slot.position());
+    }
+
+    /**
+     * Appends frames to a file through a buffer
+     */
+    private static class FrameWriter
+    {
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+        /** position in the file of the start of the buffer */
+        private long start;
+
+        FrameWriter(FileChannel channel, long start)
+        {
+            this.channel = channel;
+            this.start = start;
+        }
+
+        /**
+         * @return position in the file of the next byte
+         */
+        long position()
+        {
+            return start + buffer.position();
+        }
+
+        /**
+         * @return the buffer, with room for length bytes
+         */
+        ByteBuffer reserve(int length) throws IOException
+        {
+            if(buffer.remaining() < length)
             {
-                // Find the right sibling node first
-                BTreeNode<K, V> siblingNode = null;
-                int siblingIndex = -1;
-                if(result.getIndex() < node.size()) // exists
-                {
-                    if(node.childAt(result.getIndex() + 1).size() >= t)
-                    {
-                        siblingNode = node.childAt(result.getIndex() + 1);
-                        siblingIndex = result.getIndex() + 1;
-                    }
-                }
-                // If the right sibling node does not meet the criteria, try the left sibling node
-                if(siblingNode == null)
-                {
-                    if(result.getIndex() > 0) // exists
-                    {
-                        if(node.childAt(result.getIndex() - 1).size() >= t)
-                        {
-                            siblingNode = node.childAt(result.getIndex() - 1);
-                            siblingIndex = result.getIndex() - 1;
-                        }
-                    }
-                }
-                // There is an adjacent sibling node that contains at least t items
-                if(siblingNode != null)
-                {
-                    if(siblingIndex < result.getIndex()) // Left brother node satisfies condition
-                    {
-                        childNode.insertEntry(node.entryAt(siblingIndex), 0);
-                        node.removeEntry(siblingIndex);
-                        node.insertEntry(siblingNode.entryAt(siblingNode.size() - 1), siblingIndex);
-                        siblingNode.removeEntry(siblingNode.size() - 1);
-                        // Move the last child of the left brother node to childNode
-                        if(!siblingNode.isLeaf())
-                        {
-                            childNode.insertChild(siblingNode.childAt(siblingNode.size()), 0);
-                            siblingNode.removeChild(siblingNode.size());
-                        }
-                    }
-                    else // The right sibling node satisfies the condition
-                    {
-                        childNode.insertEntry(node.entryAt(result.getIndex()), childNode.size() - 1);
-                        node.removeEntry(result.getIndex());
-                        node.insertEntry(siblingNode.entryAt(0), result.getIndex());
-                        siblingNode.removeEntry(0);
-                        // Move the first child of the right sibling node to childNode
-                        // childNode.insertChild(siblingNode.childAt(0), childNode.size() + 1);
-                        if(!siblingNode.isLeaf())
-                        {
-                            childNode.addChild(siblingNode.childAt(0));
-                            siblingNode.removeChild(0);
-                        }
-                    }
-                    return delete(childNode, key);
-                }
-                else // If its adjacent left and right nodes contain t-1 items
-                {
-                    if(result.getIndex() < node.size()) // There is the right brother, added directly in the back
-                    {
-                        BTreeNode<K, V> rightSiblingNode = node.childAt(result.getIndex() + 1);
-                        childNode.addEntry(node.entryAt(result.getIndex()));
-                        node.removeEntry(result.getIndex());
-                        node.removeChild(result.getIndex() + 1);
-                        for(int i = 0; i < rightSiblingNode.size(); ++ i)
-                            childNode.addEntry(rightSiblingNode.entryAt(i));
-                        if(!rightSiblingNode.isLeaf())
-                        {
-                            for(int i = 0; i <= rightSiblingNode.size(); ++ i)
-                                childNode.addChild(rightSiblingNode.childAt(i));
-                        }
-                    }
-                    else // There is a left node that is inserted in front
-                    {
-                        BTreeNode<K, V> leftSiblingNode = node.childAt(result.getIndex() - 1);
-                        childNode.insertEntry(node.entryAt(result.getIndex() - 1), 0);
-                        node.removeEntry(result.getIndex() - 1);
-                        node.removeChild(result.getIndex() - 1);
-                        for(int i = leftSiblingNode.size() - 1; i >= 0; -- i)
-                            childNode.insertEntry(leftSiblingNode.entryAt(i), 0);
-                        if(!leftSiblingNode.isLeaf())
-                        {
-                            for(int i = leftSiblingNode.size(); i >= 0; -- i)
-                                childNode.insertChild(leftSiblingNode.childAt(i), 0);
-                        }
-                    }
-                    // If node is root and node does not contain any items
-                    if(node == root && node.size() == 0)
-                        root = childNode;
-                    return delete(childNode, key);
-                }
+                flush();
+                if(buffer.capacity() < length)
+                    buffer = ByteBuffer.allocate(length);
+            }
+            return buffer;
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while(buffer.hasRemaining())
+                start += channel.write(buffer, start);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads frames of a file through a window of it
+     */
+    private static class FrameReader
+    {
+        private final FileChannel channel;
+        /** end of the frames */
+        private final long end;
+        private ByteBuffer window = ByteBuffer.allocate(FRAME_BUFFER_SIZE);
+        /** position in the file of the window, -1 before the first read */
+        private long start = -1;
+
+        FrameReader(FileChannel channel, long end)
+        {
+            this.channel = channel;
+            this.end = end;
+        }
+
+        /**
+         * @return the frame at the position, without its length
+         */
+        ByteBuffer frame(long position) throws IOException
+        {
+            int length = load(position, 4).getInt();
+            if(length < 0 || position + 4 + length > end)
+                throw new IOException("Frame of " + length + " bytes at " + position + " is past the end of the frames, " + end + ".");
+            return load(position + 4, length);
+        }
+
+        private ByteBuffer load(long position, int length) throws IOException
+        {
+            if(start < 0 || position < start || position + length > start + window.limit())
+            {
+                if(window.capacity() < length)
+                    window = ByteBuffer.allocate(length);
+                window.clear();
+                start = position;
+                while(window.hasRemaining() && channel.read(window, start + window.position()) >= 0)
+                    ;
+                window.flip();
+                if(window.limit() < length)
+                    throw new IOException("Frame at " + position + " is truncated.");
+            }
+            ByteBuffer view = window.duplicate();
+            view.position((int) (position - start));
+            view.limit(view.position() + length);
+            return view;
+        }
+    }
+
+    /**
+     * Read the B tree of the last checkpoint of a node file, see {@link #checkpoint(String, Codec, Codec)}.
+     * The next checkpoints of the B tree to the file write the nodes changed only.
+     *
+     * @param filename - node file
+     * @param keyCodec - codec of the keys
+     * @param valueCodec - codec of the values
+     * @param kComparator - order of the keys, null if they are Comparable
+     * @param concurrent - if the B tree is concurrent, see {@link #BTree(Comparator, int, boolean)}
+     * @return the B tree
+     */
+    public static <K, V> BTree<K, V> readCheckpoint(String filename, Codec<K> keyCodec, Codec<V> valueCodec,
+                                                    Comparator<K> kComparator, boolean concurrent) throws IOException
+    {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(NODE_FILE_HEADER_SIZE);
+            while(header.hasRemaining() && channel.read(header, header.position()) >= 0)
+                ;
+            header.flip();
+            if(header.remaining() < NODE_FILE_HEADER_SIZE || header.getInt() != NODE_FILE_MAGIC)
+                throw new IOException(filename + " isn't a B tree node file.");
+            int version = header.getInt();
+            if(version != NODE_FILE_VERSION)
+                throw new IOException("B tree node file " + filename + " has version " + version + ", not " + NODE_FILE_VERSION + ".");
+            int t = header.getInt();
+            // the valid root of the largest sequence number
+            long[] slot = null;
+            for(int offset : new int[] {ROOT_SLOT_0, ROOT_SLOT_1})
+            {
+                CRC32 crc = new CRC32();
+                crc.update(header.array(), offset, ROOT_SLOT_SIZE - 4);
+                if((int) crc.getValue() != header.getInt(offset + ROOT_SLOT_SIZE - 4))
+                    continue;
+                long sequence = header.getLong(offset);
+                if(slot == null || sequence > slot[0])
+                    slot = new long[] {sequence, header.getLong(offset + 8), header.getLong(offset + 16), header.getLong(offset + 24)};
             }
+            if(slot == null)
+                throw new IOException("B tree node file " + filename + " has no valid root.");
+            if(slot[2] > channel.size() || slot[1] < NODE_FILE_HEADER_SIZE || slot[1] >= slot[2])
+                throw new IOException("B tree node file " + filename + " is truncated.");
+
+            BTree<K, V> btree = new BTree<K, V>(kComparator, t, concurrent);
+            btree.root = btree.readNode(new FrameReader(channel, slot[2]), slot[1], keyCodec, valueCodec);
+            btree.checkpointSequence = slot[0];
+            btree.checkpointEnd = slot[2];
+            btree.rewriteEnd = slot[3];
+            btree.checkpointFile = filename;
+            return btree;
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new IOException("B tree node file " + filename + " has a truncated frame.", e);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /**
+     * read the subtree of the frame at the position
+     */
+    private BTreeNode<K, V> readNode(FrameReader reader, long position, Codec<K> keyCodec, Codec<V> valueCodec)
+            throws IOException
+    {
+        ByteBuffer buffer = reader.frame(position);
+        BTreeNode<K, V> node = newNode(buffer.get() != 0);
+        int size = Codecs.getVarint(buffer);
+        if(size > maxKeySize)
+            throw new IOException("B tree node of " + size + " keys, at most " + maxKeySize + " are allowed.");
+        for(int i = 0; i < size; ++ i)
+            node.addEntry(new Entry<K, V>(keyCodec.decode(buffer), valueCodec.decode(buffer)));
+        // the frame is a view of the window of the reader, read it before the children move the window
+        long[] childPositions = new long[node.isLeaf() ? 0 : size + 1];
+        for(int i = 0; i < childPositions.length; ++ i)
+        {
+            childPositions[i] = buffer.getLong();
+            // the children are written before their parent, the positions can't loop
+            if(childPositions[i] < NODE_FILE_HEADER_SIZE || childPositions[i] >= position)
+                throw new IOException("B tree node at " + position + " has a child at " + childPositions[i] + ".");
         }
+        if(buffer.hasRemaining())
+            throw new IOException("B tree node frame at " + position + " has " + buffer.remaining() + " bytes left.");
+        for(long childPosition : childPositions)
+            node.addChild(readNode(reader, childPosition, keyCodec, valueCodec));
+        node.position = position;
+        return node;
     }
 
     /**
@@ -811,24 +2352,21 @@ public class BTree<K, V> implements Serializable
         }
     }
 
-    //Storage block number, start byte, size
+    //Storage block number, slot in the block
     public static class Data implements Serializable{
         public int blockNum;
-        public long startBytes;
-        public int sizeBytes;
+        public int slot;
 
-        public Data(int blockNum, long startBytes, int sizeBytes) {
+        public Data(int blockNum, int slot) {
             this.blockNum = blockNum;
-            this.startBytes = startBytes;
-            this.sizeBytes = sizeBytes;
+            this.slot = slot;
         }
 
         @Override
         public String toString() {
             return "Data{" +
                     "blockNum=" + blockNum +
-                    ", startBytes=" + startBytes +
-                    ", sizeBytes=" + sizeBytes +
+                    ", slot=" + slot +
                     '}';
         }
     }
@@ -840,26 +2378,33 @@ public class BTree<K, V> implements Serializable
         Map<Integer,List<Data>> map = new HashMap();
 
         long startTime = System.currentTimeMillis();
-        readFileAndSaveToHeap(map);
+        //the secondary indexes are filled in the same pass
+        IndexManager indexes = null;
+        if (secondaryIndexes) {
+            try {
+                indexes = IndexManager.pedestrian(filename, 3);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        readFileAndSaveToHeap(map, indexes);
         long endTime=System.currentTimeMillis();
         System.out.println("read the csv file and write the heapfile use time: "+(endTime - startTime));
 
-        for (Map.Entry<Integer, List<Data>> entry : map.entrySet()) {
-            int hour = entry.getKey();
-            List list = (List<Data>)entry.getValue();
-            btree.insert(hour,list);
-        }
+        //the keys are sorted and the tree is built bottom-up, without splits
+        SortedMap<Integer, List<Data>> sorted = new TreeMap<Integer, List<Data>>(map);
+        btree.bulkLoad(sorted.entrySet().iterator());
         long endTime1=System.currentTimeMillis();
         System.out.println("build B tree use time: "+(endTime1 - endTime));
 
         Integer hour = 7;
         List list = btree.search(hour);
-        for (int j = 0; j < list.size(); j++) {
-            Data data = (Data)list.get(j);
-            searchFromHeapFile(data);
-        }
+        //every page holding a record of the key is read once
+        searchFromHeapFile(list);
         long endTime2=System.currentTimeMillis();
         System.out.println("search key:7 by B tree use time: "+(endTime2 - endTime1));
+        printReadStats(list.size());
+        closeHeapReader();
 
       //  searchKeyByStupid(7);
       //  long endTime3=System.currentTimeMillis();
@@ -867,6 +2412,10 @@ public class BTree<K, V> implements Serializable
 
         //save object to indexfile
         saveToFile(btree,map);
+        //save the paged index, searched without loading it
+        savePagedIndex(sorted);
+        if (indexes != null)
+            saveIndexes(indexes);
 
         System.out.println("read the csv file and write the heapfile use time:  "+(endTime - startTime));
         System.out.println("build B tree use time: "+(endTime1 - endTime));
@@ -899,116 +2448,112 @@ public class BTree<K, V> implements Serializable
         System.out.println();
 //        readFromHeapfile();
 
-        //Test, whether to successfully read from a specific block and size to accurate data
-//        testReadBlockSize(4,266,65);
+        //Test, whether to successfully read from a specific block and slot to accurate data
+//        testReadBlockSize(4,3);
     }
 
     @SuppressWarnings("unchecked")
     public static void readFileAndSaveToHeap(Map map){
+        readFileAndSaveToHeap((Map<Integer, List<Data>>) map, null);
+    }
 
+    //indexes: the secondary indexes, their records are collected in the same pass, null for none
+    public static void readFileAndSaveToHeap(Map<Integer, List<Data>> map, IndexManager indexes){
+
+        //the heap file is rewritten, drop the old mapping
+        closeHeapReader();
+        if(ingestThreads > 1) {
+            try {
+                RecordCodec codec = compactRecords ? new RecordCodec() : null;
+                int blockNum = new ParallelIngest(filename, heapfile, pageSize, ingestThreads, codec).load(map, indexes);
+                if (codec != null)
+                    codec.save(dictfile);
+                System.out.println("end: blockNum: "+blockNum);
+                if (compressPages)
+                    System.out.println("compressed heapfile size: "+CompressedHeapFile.compress(heapfile, pageSize));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            return;
+        }
         try {
-            BufferedReader reader = new BufferedReader(new FileReader(filename));
-           reader.readLine();//The first line of information, for the title information
-            String line = null;
+            //The CSV file is scanned as raw bytes, the lines are never decoded to String
+            CsvScanner scanner = new CsvScanner(filename);
+            scanner.next();//The first line of information, for the title information
 
-            // To open the file in a readable and writable way, use RandomAccessFile to create the file.
-            RandomAccessFile fc = new RandomAccessFile(heapfile, "rw");
-            //The read and write of the file channel is based on the read and write of the file stream itself
-//            MappedByteBuffer out = fc.map(FileChannel.MapMode.READ_WRITE, 0, pageSize);
+            //Pages are filled in memory and written to the heap file a few pages at a time
+            HeapFileWriter writer = new HeapFileWriter(heapfile, pageSize);
 
-            //Record the block number
-            int blockNum = 0;
-            long byteSize = 0;
-            //Record the last one
-            long oldbyteSize = 0;
-            while((line=reader.readLine())!=null){
+            //the rows are stored as binary fields, the texts go to the dictionary
+            RecordCodec codec = compactRecords ? new RecordCodec() : null;
+            RecordCodec.Encoder encoder = codec == null ? null : codec.newEncoder();
 
-              //  System.out.println("current blockNum: " +blockNum);
-                String item[] = line.split(",");//The CSV format file is a comma delimited file, which is segmented by comma
+            IndexManager.Collector collector = indexes == null ? null : indexes.newCollector();
 
-                String last = item[item.length-1];//the data needed
+            while(scanner.next()){
 
-              //  System.out.println(last);
+                //The CSV format file is a comma delimited file, the last field is the data needed
+                int hourly_counts = scanner.lastIntField();
 
                 //store in map
-                int hourly_counts = Integer.valueOf(last);
-
-                List list =null;
-                if(map.containsKey(hourly_counts))
-                    list = (ArrayList<Data>)map.get(hourly_counts);
-                else {
-                    list = new ArrayList();
+                List<Data> list = map.get(hourly_counts);
+                if(list == null) {
+                    list = new Postings();
+                    map.put(hourly_counts,list);
                 }
 
                 //store to the heap file
-                //fixed page size
-                byteSize += line.getBytes().length;
-                if(byteSize <= pageSize) {
-                    fc.write(line.getBytes());
-
-                    Data data = new Data(blockNum,byteSize-line.getBytes().length,line.getBytes().length);
-                    list.add(data);
-                    map.put(hourly_counts,list);
-
-                }
+                //fixed page size, a line which doesn't fit starts the next block
+                Data data;
+                if (encoder == null)
+                    data = writer.append(scanner.record());
                 else {
-//                    long space = byteSize - pageSize;
-                    long space = pageSize - byteSize + line.getBytes().length;
-                    for (int i = 0; i < space; i++) {
-                        fc.write((byte)'X');
-                    }
-                    blockNum ++;
-                    byteSize = 0;
-
-                    byteSize += line.getBytes().length;
-                    fc.write(line.getBytes());
-
-                    Data data = new Data(blockNum,byteSize-line.getBytes().length,line.getBytes().length);
-                    list.add(data);
-                    map.put(hourly_counts,list);
+                    encoder.encode(scanner);
+                    data = writer.append(encoder.bytes(), 0, encoder.length());
                 }
-                oldbyteSize = line.getBytes().length;
-
+                list.add(data);
+                if (collector != null)
+                    collector.add(scanner, data);
             }
-            System.out.println("end: blockNum: "+blockNum);
-            fc.close();
-            reader.close();
+            if (collector != null)
+                indexes.merge(collector);
+            System.out.println("end: blockNum: "+writer.getBlockNum());
+            writer.close();
+            scanner.close();
+            if (codec != null)
+                codec.save(dictfile);
+            if (compressPages)
+                System.out.println("compressed heapfile size: "+CompressedHeapFile.compress(heapfile, pageSize));
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
 
-    //Test, from the heapfile file to read a certain size of the data
+    //Test, from the heapfile file to read the records of the first pages
     public static void readFromHeapfile(){
 
         try {
-            RandomAccessFile fc = new RandomAccessFile(heapfile, "r");
-            for (int i = 0; i < 5; i++) {
-                byte[] bytes = new byte[pageSize];
-                fc.read(bytes);
-                System.out.println(new String(bytes));
+            HeapFileReader reader = getHeapReader();
+            for (int i = 0; i < 5 && i < reader.pageCount(); i++) {
+                reader.readPage(i, new RecordCallback() {
+                    public void record(Data data, byte[] record, int offset, int len) {
+                        System.out.println(new String(record, offset, len));
+                    }
+                });
             }
-
-            fc.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     //test
-    public static void testReadBlockSize(int blockNum,int startBytes,int sizeBytes){
+    public static void testReadBlockSize(int blockNum,int slot){
         System.out.println();
 
         try {
-            RandomAccessFile fc = new RandomAccessFile(heapfile, "r");
-            int temp = blockNum * pageSize + startBytes;
-            fc.seek(temp);
-            byte[] bytes = new byte[sizeBytes];
-            fc.read(bytes);
-            System.out.println(new String(bytes));
-
-            fc.close();
+            byte[] bytes = getHeapReader().read(new Data(blockNum, slot));
+            System.out.println(bytes == null ? "no record" : new String(bytes));
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1019,23 +2564,60 @@ public class BTree<K, V> implements Serializable
     public static void searchFromHeapFile(Data data){
         System.out.println("search result： ");
 
-        int blockNum = data.blockNum;
-        long startBytes = data.startBytes;
-        int sizeBytes = data.sizeBytes;
         try {
-            RandomAccessFile fc = new RandomAccessFile(heapfile, "r");
-            long temp = blockNum * pageSize + startBytes;
-            fc.seek(temp);
-            byte[] bytes = new byte[sizeBytes];
-            fc.read(bytes);
-            System.out.println(new String(bytes));
-
-            fc.close();
+            byte[] bytes = getHeapReader().read(data);
+            if (bytes != null)
+                System.out.println(new String(bytes));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    //size of the heap file and bytes of it read by the searches
+    public static void printReadStats(int records){
+        try {
+            HeapFileReader reader = getHeapReader();
+            System.out.println("heapfile size: "+reader.length()+", reads: "+reader.readCount()+", bytes read: "+reader.bytesRead()
+                    +" for "+records+" records, "+(records == 0 ? 0 : reader.bytesRead() / records)+" per record");
+            System.out.println("buffer pool: "+reader.getBufferPool());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    //search a batch of records from heap file, sorted by page so every page is read once
+    public static void searchFromHeapFile(List<Data> batch){
+        try {
+            getHeapReader().read(batch, new RecordCallback() {
+                public void record(Data data, byte[] record, int offset, int len) {
+                    System.out.println("search result： ");
+                    System.out.println(new String(record, offset, len));
+                }
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    //the heap file is mapped once and shared by every search
+    public static synchronized HeapFileReader getHeapReader() throws IOException {
+        if (heapReader == null)
+            heapReader = new HeapFileReader(heapfile, pageSize, compactRecords ? RecordCodec.load(dictfile) : null,
+                    Math.max(1, bufferPoolSize / pageSize));
+        return heapReader;
+    }
+
+    public static synchronized void closeHeapReader(){
+        if (heapReader == null)
+            return;
+        try {
+            heapReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        heapReader = null;
+    }
+
     //Test, traversal
     public static void test(){
         Random random = new Random();
@@ -1082,12 +2664,7 @@ public class BTree<K, V> implements Serializable
 */
     public static void saveToFile(BTree<Integer, List<BTree.Data>> btree,Map<Integer,List<BTree.Data>> map ){
         try {
-            FileOutputStream outStream = new FileOutputStream(indexfile);
-            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outStream);
-            objectOutputStream.writeObject(btree);
-            objectOutputStream.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            btree.writeTo(indexfile, Codecs.INTEGER, Codecs.POSTINGS);
         } catch (IOException e) {
             e.printStackTrace();
         }catch (Exception e){
@@ -1096,9 +2673,48 @@ public class BTree<K, V> implements Serializable
     }
 
 
+    //build the secondary indexes and write them next to the index file, indexfile + "." + name
+    public static void saveIndexes(IndexManager indexes){
+        try {
+            indexes.build();
+            indexes.save(indexfile);
+            for (String name : indexes.names())
+                System.out.println("secondary index " + name + " saved to " + indexfile + "." + name
+                        + ", records without a key: " + indexes.skipped(name));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    //write the index as a B+tree of pages, see PagedIndex
+    public static void savePagedIndex(SortedMap<Integer, List<Data>> sorted){
+        try {
+            PagedIndex.write(pagedIndexfile, pageSize, sorted);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+
     public static String filename = "pedestrian.csv";
     public static String heapfile = "heapfile";
     public static String indexfile = "index";
+    //the index as a B+tree of pages
+    public static String pagedIndexfile = "index.pages";
+    //dictionary of the texts of the rows, when they are stored as binary fields
+    public static String dictfile = "heapfile.dict";
     public static int pageSize = 4096;
+    //threads of the load of the csv file, 1 for the sequential load, which writes the same heap file and map
+    public static int ingestThreads = Runtime.getRuntime().availableProcessors();
+    //store the rows as binary fields (see RecordCodec) instead of their text, more rows fit in a page
+    public static boolean compactRecords = false;
+    //compress the heap file page by page (see CompressedHeapFile), a search decompresses the page it reads
+    public static boolean compressPages = false;
+    //build the secondary indexes of sensor_id and Date_Time (see IndexManager#pedestrian) with the index of hourly_counts
+    public static boolean secondaryIndexes = false;
+    //memory of the buffer pool caching the pages of the heap file, in bytes
+    public static int bufferPoolSize = 4 << 20;
+
+    private static HeapFileReader heapReader;
 
 }
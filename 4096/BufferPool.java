@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed number of page frames caching the pages of a {@link PageStore}.
+ * <p/>
+ * A page is pinned while it is used, a pinned page stays in its frame. When every frame is
+ * taken, the CLOCK policy picks the frame to reuse: the hand moves over the frames, a frame
+ * used since the hand last passed it gets a second chance, the first unpinned frame which
+ * wasn't used is evicted. A page changed while it was pinned is dirty, it is written back
+ * when it is evicted or flushed.
+ * <p/>
+ * Frames are allocated when they are first needed, up to the capacity.
+ * The methods are synchronized, the bytes of a pinned page can be used by several threads.
+ * <p/>
+ * Only the pages pinned through the pool are cached: the record reads of {@link HeapFileReader}
+ * and the record reads and changes of {@link HeapFile}. The load of the heap file by
+ * {@link HeapFileWriter} and {@link ParallelIngest}, and {@link HeapFileReader#scan(RecordCallback)},
+ * read or write the file directly, they don't go through the frames and don't evict the pages
+ * of the searches. The pool doesn't see these writes, so a heap file is reloaded with no pool
+ * open on it, see {@link BTree#closeHeapReader()}.
+ */
+public class BufferPool
+{
+    /**
+     * A frame holding a page
+     */
+    public static class Frame
+    {
+        private final byte[] bytes;
+        private final ByteBuffer buffer;
+        private int blockNum = -1;
+        private int pins;
+        private boolean referenced;
+        private boolean dirty;
+
+        private Frame(int pageSize)
+        {
+            this.bytes = new byte[pageSize];
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+
+        public byte[] bytes()
+        {
+            return bytes;
+        }
+
+        /**
+         * @return the page as a buffer, the position and the limit aren't used
+         */
+        public ByteBuffer buffer()
+        {
+            return buffer;
+        }
+
+        public int blockNum()
+        {
+            return blockNum;
+        }
+    }
+
+    private final PageStore store;
+    private final int capacity;
+    private final List<Frame> frames = new ArrayList<Frame>();
+    private final Map<Integer, Frame> pages = new HashMap<Integer, Frame>();
+    /** the clock hand, index in frames */
+    private int hand = 0;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writes;
+
+    /**
+     * @param store - pages cached
+     * @param capacity - number of frames, at least 1
+     */
+    public BufferPool(PageStore store, int capacity)
+    {
+        if(capacity < 1)
+            throw new IllegalArgumentException("A buffer pool needs a frame: " + capacity);
+        this.store = store;
+        this.capacity = capacity;
+    }
+
+    /**
+     * pin a page, reading it if it isn't in a frame. The page must be unpinned after use.
+     *
+     * @param blockNum - page
+     * @return the frame holding the page
+     */
+    public synchronized Frame pin(int blockNum) throws IOException
+    {
+        Frame frame = pages.get(blockNum);
+        if(frame != null)
+        {
+            hits ++;
+            frame.pins ++;
+            frame.referenced = true;
+            return frame;
+        }
+        misses ++;
+        frame = victim();
+        try
+        {
+            store.load(blockNum, frame.bytes);
+        }
+        catch(IOException e)
+        {
+            frame.blockNum = -1;
+            throw e;
+        }
+        return install(frame, blockNum);
+    }
+
+    /**
+     * @return if the page is in a frame
+     */
+    public synchronized boolean contains(int blockNum)
+    {
+        return pages.containsKey(blockNum);
+    }
+
+    /**
+     * pin a page read by the caller, for reads of several pages at once. If the page is
+     * already in a frame, that frame is pinned and the bytes are ignored.
+     *
+     * @param blockNum - page
+     * @param page - bytes holding the page
+     * @param offset - start of the page in page
+     * @return the frame holding the page
+     */
+    public synchronized Frame pin(int blockNum, byte[] page, int offset) throws IOException
+    {
+        Frame frame = pages.get(blockNum);
+        if(frame != null)
+        {
+            hits ++;
+            frame.pins ++;
+            frame.referenced = true;
+            return frame;
+        }
+        misses ++;
+        frame = victim();
+        System.arraycopy(page, offset, frame.bytes, 0, frame.bytes.length);
+        return install(frame, blockNum);
+    }
+
+    /**
+     * pin a new page after the last page of the store, the frame is zeroed instead of read.
+     * The page must be unpinned as dirty, so it is written.
+     *
+     * @param blockNum - page
+     * @return the frame of the page
+     */
+    public synchronized Frame pinNew(int blockNum) throws IOException
+    {
+        if(pages.containsKey(blockNum))
+            throw new IllegalArgumentException("Page " + blockNum + " is already in the buffer pool.");
+        Frame frame = victim();
+        Arrays.fill(frame.bytes, (byte) 0);
+        return install(frame, blockNum);
+    }
+
+    private Frame install(Frame frame, int blockNum)
+    {
+        frame.blockNum = blockNum;
+        frame.pins = 1;
+        frame.referenced = true;
+        frame.dirty = false;
+        pages.put(blockNum, frame);
+        return frame;
+    }
+
+    /**
+     * @param frame - a pinned frame
+     * @param dirty - if the page was changed
+     */
+    public synchronized void unpin(Frame frame, boolean dirty)
+    {
+        if(frame.pins == 0)
+            throw new IllegalStateException("Page " + frame.blockNum + " isn't pinned.");
+        frame.pins --;
+        frame.dirty |= dirty;
+    }
+
+    /**
+     * @return an empty frame, a new one or an evicted one
+     */
+    private Frame victim() throws IOException
+    {
+        if(frames.size() < capacity)
+        {
+            Frame frame = new Frame(store.getPageSize());
+            frames.add(frame);
+            return frame;
+        }
+        // two turns of the hand clear every reference bit, a third finds no frame only if all are pinned
+        for(int i = 0; i < 3 * capacity; ++ i)
+        {
+            Frame frame = frames.get(hand);
+            hand = (hand + 1) % capacity;
+            if(frame.pins > 0)
+                continue;
+            if(frame.referenced)
+            {
+                frame.referenced = false;
+                continue;
+            }
+            if(frame.blockNum >= 0)
+            {
+                writeBack(frame);
+                pages.remove(frame.blockNum);
+                frame.blockNum = -1;
+                evictions ++;
+            }
+            return frame;
+        }
+        throw new IllegalStateException("All " + capacity + " frames of the buffer pool are pinned.");
+    }
+
+    private void writeBack(Frame frame) throws IOException
+    {
+        if(!frame.dirty)
+            return;
+        store.store(frame.blockNum, frame.bytes);
+        frame.dirty = false;
+        writes ++;
+    }
+
+    /**
+     * write every dirty page
+     */
+    public synchronized void flush() throws IOException
+    {
+        for(Frame frame : frames)
+            if(frame.blockNum >= 0)
+                writeBack(frame);
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    public synchronized long hits()
+    {
+        return hits;
+    }
+
+    public synchronized long misses()
+    {
+        return misses;
+    }
+
+    public synchronized long evictions()
+    {
+        return evictions;
+    }
+
+    /**
+     * @return number of dirty pages written back
+     */
+    public synchronized long writes()
+    {
+        return writes;
+    }
+
+    public synchronized double hitRatio()
+    {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "frames: " + frames.size() + "/" + capacity + ", hits: " + hits + ", misses: " + misses
+                + ", hit ratio: " + String.format("%.3f", hitRatio()) + ", evictions: " + evictions + ", writes: " + writes;
+    }
+}
@@ -0,0 +1,470 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived reader of the heap file.
+ * <p/>
+ * The heap file is opened and memory mapped once, every record is then served
+ * from the mapping, so reading a record costs a memory copy instead of an
+ * open/seek/close of the file.
+ * <p/>
+ * A single mapping is limited to 2 GB, so the file is mapped in segments.
+ * The segment size is a multiple of the page size, a page never spans two segments.
+ * <p/>
+ * The pages are slotted pages, see {@link HeapPage}. A record is found through the slot
+ * directory of its page.
+ * <p/>
+ * If the records are encoded by a {@link RecordCodec}, the reader decodes them, callers
+ * always get the text of the rows.
+ * <p/>
+ * A heap file compressed page by page (see {@link CompressedHeapFile}) is recognized by its
+ * header, then a page is read by decompressing its frame only.
+ * <p/>
+ * The pages read by the records are cached in a {@link BufferPool}, a page read again is
+ * served from its frame. A sequential scan bypasses the pool, so it doesn't evict the pages
+ * of the searches.
+ * <p/>
+ * The reader counts the bytes of the heap file it reads, a whole page or a whole frame per page.
+ */
+public class HeapFileReader implements Closeable, PageStore
+{
+    /** upper bound of the size of one mapped segment */
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final int DEFAULT_POOL_PAGES = 1024;
+    /** largest number of adjacent pages read at once by a batch */
+    private static final int MAX_RUN_PAGES = 32;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    /** mapped segments of the heap file */
+    private final MappedByteBuffer[] segments;
+    private final long segmentSize;
+    private final long length;
+    private final int pageSize;
+    /** codec of the records, null if they are stored as text */
+    private final RecordCodec codec;
+    /** offsets of the frames of a compressed heap file and the end of the last one, null if it isn't compressed */
+    private final long[] frames;
+    private final int pageCount;
+    private final AtomicLong bytesRead = new AtomicLong();
+    /** number of reads of the heap file, a read may take several pages */
+    private final AtomicLong reads = new AtomicLong();
+    private final BufferPool pool;
+
+    public HeapFileReader(String filename, int pageSize) throws IOException
+    {
+        this(filename, pageSize, null);
+    }
+
+    public HeapFileReader(String filename, int pageSize, RecordCodec codec) throws IOException
+    {
+        this(filename, pageSize, codec, DEFAULT_POOL_PAGES);
+    }
+
+    /**
+     * @param filename - heap file
+     * @param pageSize - page size of the heap file
+     * @param codec - codec of the records, null if they are stored as text
+     * @param poolPages - number of pages of the buffer pool
+     */
+    public HeapFileReader(String filename, int pageSize, RecordCodec codec, int poolPages) throws IOException
+    {
+        this.pageSize = pageSize;
+        this.codec = codec;
+        this.segmentSize = MAX_SEGMENT_SIZE / pageSize * pageSize;
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        this.length = channel.size();
+
+        int count = (int) ((length + segmentSize - 1) / segmentSize);
+        segments = new MappedByteBuffer[count];
+        for(int i = 0; i < count; ++ i)
+        {
+            long start = i * segmentSize;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start));
+        }
+
+        if(count > 0 && CompressedHeapFile.isCompressed(segments[0]))
+        {
+            ByteBuffer header = segments[0].duplicate();
+            if(header.getInt(4) != pageSize)
+                throw new IOException("Heap file " + filename + " has pages of " + header.getInt(4) + " bytes, not " + pageSize + ".");
+            pageCount = header.getInt(8);
+            byte[] table = new byte[(pageCount + 1) * 8];
+            read(CompressedHeapFile.tableEntry(0), table, 0, table.length);
+            frames = new long[pageCount + 1];
+            ByteBuffer.wrap(table).asLongBuffer().get(frames);
+        }
+        else
+        {
+            pageCount = (int) (length / pageSize);
+            frames = null;
+        }
+        pool = new BufferPool(this, poolPages);
+    }
+
+    /**
+     * the position of a byte of a page in the heap file, computed in long so heap files over 2 GB work
+     *
+     * @param blockNum - page
+     * @param offset - offset in the page
+     * @param pageSize - page size of the heap file
+     * @return byte offset in the heap file
+     */
+    public static long position(int blockNum, long offset, int pageSize)
+    {
+        return (long) blockNum * pageSize + offset;
+    }
+
+    /**
+     * @return number of pages of the heap file
+     */
+    @Override
+    public int pageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * @return if the pages are compressed
+     */
+    public boolean isCompressed()
+    {
+        return frames != null;
+    }
+
+    /**
+     * read the record addressed by data
+     *
+     * @param data - address of the record
+     * @return the bytes of the record, null if the slot doesn't hold a record
+     */
+    public byte[] read(BTree.Data data) throws IOException
+    {
+        BufferPool.Frame frame = pool.pin(data.blockNum);
+        try
+        {
+            ByteBuffer page = frame.buffer();
+            if(data.slot < 0 || data.slot >= HeapPage.slotCount(page, 0))
+                return null;
+            int offset = HeapPage.offset(page, 0, data.slot);
+            if(offset == 0)
+                return null;
+            int length = HeapPage.length(page, 0, data.slot);
+            if(codec != null)
+                return codec.decode(frame.bytes(), offset, length);
+            byte[] bytes = new byte[length];
+            System.arraycopy(frame.bytes(), offset, bytes, 0, length);
+            return bytes;
+        }
+        finally
+        {
+            pool.unpin(frame, false);
+        }
+    }
+
+    /**
+     * read a batch of records. The addresses are sorted by page, every page is read once and
+     * adjacent pages which aren't in the buffer pool are read together.
+     *
+     * @param batch - addresses of the records, in any order
+     * @param callback - receives the records in the order of the pages, a slot which doesn't
+     *                 hold a record is skipped
+     */
+    public void read(List<BTree.Data> batch, RecordCallback callback) throws IOException
+    {
+        BTree.Data[] sorted = batch.toArray(new BTree.Data[batch.size()]);
+        Arrays.sort(sorted, new Comparator<BTree.Data>() {
+            @Override
+            public int compare(BTree.Data a, BTree.Data b)
+            {
+                return a.blockNum != b.blockNum ? Integer.compare(a.blockNum, b.blockNum) : Integer.compare(a.slot, b.slot);
+            }
+        });
+        byte[] run = null;
+        byte[][] decoded = {new byte[pageSize]};
+        int i = 0;
+        while(i < sorted.length)
+        {
+            // the run of adjacent pages which aren't cached, starting at the page of sorted[i]
+            int first = sorted[i].blockNum;
+            int count = 0;
+            for(int j = i; j < sorted.length && count < MAX_RUN_PAGES; ++ j)
+            {
+                int blockNum = sorted[j].blockNum;
+                if(blockNum == first + count - 1)
+                    continue;
+                if(blockNum != first + count || blockNum >= pageCount || pool.contains(blockNum))
+                    break;
+                count ++;
+            }
+            if(count > 0)
+            {
+                if(run == null)
+                    run = new byte[MAX_RUN_PAGES * pageSize];
+                loadRun(first, count, run);
+            }
+            // the pages of the run, or the cached page when the run is empty
+            int last = first + Math.max(count, 1) - 1;
+            while(i < sorted.length && sorted[i].blockNum <= last)
+            {
+                int blockNum = sorted[i].blockNum;
+                BufferPool.Frame frame = blockNum - first < count
+                        ? pool.pin(blockNum, run, (blockNum - first) * pageSize) : pool.pin(blockNum);
+                try
+                {
+                    for(; i < sorted.length && sorted[i].blockNum == blockNum; ++ i)
+                        record(sorted[i], frame.bytes(), decoded, callback);
+                }
+                finally
+                {
+                    pool.unpin(frame, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * hand the record of a slot of a page to the callback, if the slot holds one
+     */
+    private void record(BTree.Data data, byte[] bytes, byte[][] decoded, RecordCallback callback)
+    {
+        ByteBuffer page = ByteBuffer.wrap(bytes);
+        if(data.slot < 0 || data.slot >= HeapPage.slotCount(page, 0))
+            return;
+        int offset = HeapPage.offset(page, 0, data.slot);
+        if(offset == 0)
+            return;
+        record(data, bytes, offset, HeapPage.length(page, 0, data.slot), decoded, callback);
+    }
+
+    /**
+     * hand a record to the callback, decoding it if the records are encoded
+     */
+    private void record(BTree.Data data, byte[] bytes, int offset, int length, byte[][] decoded, RecordCallback callback)
+    {
+        if(codec == null)
+        {
+            callback.record(data, bytes, offset, length);
+            return;
+        }
+        int size = codec.decodedLength(bytes, offset, length);
+        if(size > decoded[0].length)
+            decoded[0] = new byte[Math.max(size, decoded[0].length * 2)];
+        codec.decode(bytes, offset, length, decoded[0], 0);
+        callback.record(data, decoded[0], 0, size);
+    }
+
+    /**
+     * read adjacent pages with one read of the heap file
+     *
+     * @param first - first page
+     * @param count - number of pages
+     * @param dst - destination of count pages
+     */
+    private void loadRun(int first, int count, byte[] dst) throws IOException
+    {
+        if(frames == null)
+        {
+            read(position(first, 0, pageSize), dst, 0, count * pageSize);
+            bytesRead.addAndGet((long) count * pageSize);
+            reads.incrementAndGet();
+            return;
+        }
+        // the frames of adjacent pages are adjacent too
+        int len = (int) (frames[first + count] - frames[first]);
+        byte[] span = new byte[len];
+        read(frames[first], span, 0, len);
+        for(int i = 0; i < count; ++ i)
+        {
+            int from = (int) (frames[first + i] - frames[first]);
+            int size = (int) (frames[first + i + 1] - frames[first + i]);
+            if(size == pageSize)
+                System.arraycopy(span, from, dst, i * pageSize, pageSize);
+            else
+                PageCompressor.decompress(span, from, size, dst, i * pageSize, pageSize);
+        }
+        bytesRead.addAndGet(len);
+        reads.incrementAndGet();
+    }
+
+    /**
+     * copy a page to dst, decompressing it if the heap file is compressed
+     */
+    @Override
+    public void load(int blockNum, byte[] dst) throws IOException
+    {
+        if(blockNum < 0 || blockNum >= pageCount)
+            throw new IOException("Page " + blockNum + " is out of the heap file of " + pageCount + " pages.");
+        if(frames == null)
+        {
+            read(position(blockNum, 0, pageSize), dst, 0, pageSize);
+            bytesRead.addAndGet(pageSize);
+            reads.incrementAndGet();
+            return;
+        }
+        int len = (int) (frames[blockNum + 1] - frames[blockNum]);
+        if(len == pageSize)
+            read(frames[blockNum], dst, 0, pageSize);
+        else
+        {
+            byte[] frame = new byte[len];
+            read(frames[blockNum], frame, 0, len);
+            PageCompressor.decompress(frame, 0, len, dst, 0, pageSize);
+        }
+        bytesRead.addAndGet(len);
+        reads.incrementAndGet();
+    }
+
+    /**
+     * hand every record of a page to the callback, in the order of the slots
+     *
+     * @param blockNum - page
+     * @param callback - receives the records
+     */
+    public void readPage(int blockNum, RecordCallback callback) throws IOException
+    {
+        BufferPool.Frame frame = pool.pin(blockNum);
+        try
+        {
+            records(blockNum, frame.bytes(), new byte[][] {new byte[pageSize]}, callback);
+        }
+        finally
+        {
+            pool.unpin(frame, false);
+        }
+    }
+
+    /**
+     * hand the records of a page to the callback
+     *
+     * @param bytes - the page
+     * @param decoded - decoded[0] is the buffer of a decoded record, it is grown when needed
+     */
+    private void records(int blockNum, byte[] bytes, byte[][] decoded, RecordCallback callback)
+    {
+        ByteBuffer page = ByteBuffer.wrap(bytes);
+        int count = HeapPage.slotCount(page, 0);
+        for(int slot = 0; slot < count; ++ slot)
+        {
+            int offset = HeapPage.offset(page, 0, slot);
+            if(offset == 0)
+                continue;
+            record(new BTree.Data(blockNum, slot), bytes, offset, HeapPage.length(page, 0, slot), decoded, callback);
+        }
+    }
+
+    /**
+     * sequential scan of the heap file, the record boundaries are found in the slot directories
+     *
+     * @param callback - receives every record, in the order of the file
+     */
+    public void scan(RecordCallback callback) throws IOException
+    {
+        byte[] bytes = new byte[pageSize];
+        byte[][] decoded = {new byte[pageSize]};
+        int count = pageCount();
+        for(int blockNum = 0; blockNum < count; ++ blockNum)
+        {
+            load(blockNum, bytes);
+            records(blockNum, bytes, decoded, callback);
+        }
+    }
+
+    /**
+     * copy len bytes starting from position of the heap file to dst
+     *
+     * @param position - byte offset in the heap file
+     * @param dst - destination
+     * @param offset - offset in dst
+     * @param len - number of bytes
+     */
+    public void read(long position, byte[] dst, int offset, int len) throws IOException
+    {
+        if(position < 0 || position + len > length)
+            throw new IOException("Read [" + position + ", " + (position + len) + ") is out of the heap file of " + length + " bytes.");
+        while(len > 0)
+        {
+            int segment = (int) (position / segmentSize);
+            int inSegment = (int) (position % segmentSize);
+            int n = (int) Math.min(len, segmentSize - inSegment);
+            // duplicate, so concurrent readers don't share the buffer position
+            ByteBuffer buffer = segments[segment].duplicate();
+            buffer.position(inSegment);
+            buffer.get(dst, offset, n);
+            position += n;
+            offset += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * @return size of the heap file
+     */
+    public long length()
+    {
+        return length;
+    }
+
+    /**
+     * @return bytes of the heap file read for the records since the reader was opened
+     */
+    public long bytesRead()
+    {
+        return bytesRead.get();
+    }
+
+    /**
+     * @return number of reads of the heap file for the records since the reader was opened
+     */
+    public long readCount()
+    {
+        return reads.get();
+    }
+
+    /**
+     * the heap file reader doesn't write pages
+     */
+    @Override
+    public void store(int blockNum, byte[] src)
+    {
+        throw new UnsupportedOperationException("The heap file reader is read only.");
+    }
+
+    /**
+     * @return the buffer pool of the pages read by the records
+     */
+    public BufferPool getBufferPool()
+    {
+        return pool;
+    }
+
+    @Override
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * @return codec of the records, null if they are stored as text
+     */
+    public RecordCodec getCodec()
+    {
+        return codec;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+        file.close();
+    }
+}
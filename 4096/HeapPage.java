@@ -0,0 +1,407 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Slotted page of the heap file.
+ * <p/>
+ * Layout of a page:
+ * <pre>
+ * | header | slot 0 | slot 1 | ... -&gt;      free space      &lt;- ... | record 1 | record 0 |
+ * </pre>
+ * The header holds the number of slots, the start of the record area (freeEnd) and the
+ * number of bytes freed by deleted or shrunk records (fragmented). Every slot holds the
+ * offset and the length of its record, a slot with offset 0 is free. The slot directory
+ * grows from the header on, the records grow from the end of the page towards it.
+ * <p/>
+ * A record is addressed by (page, slot), see {@link BTree.Data}. Records can be moved in
+ * the page, compacting the free space, without changing their address.
+ * <p/>
+ * HeapPage is a view of a page in a buffer, the buffer may hold several pages.
+ */
+public class HeapPage
+{
+    /** slot count, freeEnd, fragmented, reserved */
+    public static final int HEADER_SIZE = 8;
+    /** offset and length */
+    public static final int SLOT_SIZE = 4;
+    /** offsets and lengths are kept as unsigned short */
+    public static final int MAX_PAGE_SIZE = 1 << 15;
+
+    private static final int SLOT_COUNT = 0;
+    private static final int FREE_END = 2;
+    private static final int FRAGMENTED = 4;
+
+    private ByteBuffer buffer;
+    /** offset of the page in the buffer */
+    private int base;
+    private int pageSize;
+
+    public HeapPage(int pageSize)
+    {
+        this(ByteBuffer.allocate(pageSize), 0, pageSize);
+    }
+
+    public HeapPage(ByteBuffer buffer, int base, int pageSize)
+    {
+        wrap(buffer, base, pageSize);
+    }
+
+    /**
+     * move the view to another page
+     *
+     * @param buffer - buffer holding the page
+     * @param base - offset of the page in the buffer
+     * @param pageSize - page size
+     * @return this
+     */
+    public HeapPage wrap(ByteBuffer buffer, int base, int pageSize)
+    {
+        if(pageSize > MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size " + pageSize + " is larger than " + MAX_PAGE_SIZE + ".");
+        this.buffer = buffer;
+        this.base = base;
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    /**
+     * @return the largest record a page can hold
+     */
+    public static int maxRecordSize(int pageSize)
+    {
+        return pageSize - HEADER_SIZE - SLOT_SIZE;
+    }
+
+    /**
+     * format the page as an empty page
+     */
+    public void init()
+    {
+        for(int i = 0; i < HEADER_SIZE; i += 2)
+            putShort(i, 0);
+        putShort(FREE_END, pageSize);
+    }
+
+    /**
+     * set the slot count and the start of the records of a page whose first slots and records
+     * are written by another writer
+     */
+    public void resume(int slotCount, int freeEnd)
+    {
+        putShort(SLOT_COUNT, slotCount);
+        setFreeEnd(freeEnd);
+    }
+
+    private int getShort(int offset)
+    {
+        return buffer.getShort(base + offset) & 0xFFFF;
+    }
+
+    /**
+     * @return the slot count of the page at base of the buffer, for readers which don't keep a view
+     */
+    public static int slotCount(ByteBuffer buffer, int base)
+    {
+        return buffer.getShort(base + SLOT_COUNT) & 0xFFFF;
+    }
+
+    public static int offset(ByteBuffer buffer, int base, int slot)
+    {
+        return buffer.getShort(base + HEADER_SIZE + slot * SLOT_SIZE) & 0xFFFF;
+    }
+
+    public static int length(ByteBuffer buffer, int base, int slot)
+    {
+        return buffer.getShort(base + HEADER_SIZE + slot * SLOT_SIZE + 2) & 0xFFFF;
+    }
+
+    private void putShort(int offset, int value)
+    {
+        buffer.putShort(base + offset, (short) value);
+    }
+
+    public int slotCount()
+    {
+        return getShort(SLOT_COUNT);
+    }
+
+    public int freeEnd()
+    {
+        return getShort(FREE_END);
+    }
+
+    private void setFreeEnd(int freeEnd)
+    {
+        putShort(FREE_END, freeEnd);
+    }
+
+    public int fragmented()
+    {
+        return getShort(FRAGMENTED);
+    }
+
+    /**
+     * @param slot - slot
+     * @return offset of the record in the page, 0 if the slot is free
+     */
+    public int offset(int slot)
+    {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE);
+    }
+
+    public int length(int slot)
+    {
+        return getShort(HEADER_SIZE + slot * SLOT_SIZE + 2);
+    }
+
+    private void setSlot(int slot, int offset, int length)
+    {
+        putShort(HEADER_SIZE + slot * SLOT_SIZE, offset);
+        putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, length);
+    }
+
+    /**
+     * @return if the slot holds a record
+     */
+    public boolean isUsed(int slot)
+    {
+        return slot >= 0 && slot < slotCount() && offset(slot) != 0;
+    }
+
+    /**
+     * @return the free space between the slot directory and the records
+     */
+    public int contiguousFreeSpace()
+    {
+        return freeEnd() - HEADER_SIZE - slotCount() * SLOT_SIZE;
+    }
+
+    /**
+     * @return the free space after compaction
+     */
+    public int freeSpace()
+    {
+        return contiguousFreeSpace() + fragmented();
+    }
+
+    /**
+     * @return the largest record which can be inserted, compacting the page if needed
+     */
+    public int insertableSize()
+    {
+        int free = freeSpace();
+        if(freeSlot() < 0)
+            free -= SLOT_SIZE;
+        return Math.max(0, free);
+    }
+
+    private int freeSlot()
+    {
+        int count = slotCount();
+        for(int i = 0; i < count; ++ i)
+            if(offset(i) == 0)
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return if a record of len bytes can be added in a new slot without compaction
+     */
+    public boolean canAppend(int len)
+    {
+        return contiguousFreeSpace() >= len + SLOT_SIZE;
+    }
+
+    /**
+     * add a record in a new slot, the page must have room for it, see {@link #canAppend(int)}
+     *
+     * @param record - from position to limit is the record, the position is moved to the limit
+     * @return the slot of the record
+     */
+    public int append(ByteBuffer record)
+    {
+        int slot = slotCount();
+        copy(record, allocate(slot, record.remaining()));
+        putShort(SLOT_COUNT, slot + 1);
+        return slot;
+    }
+
+    /**
+     * add a record in a new slot, the page must have room for it, see {@link #canAppend(int)}
+     *
+     * @param record - bytes of the record
+     * @param offset - start of the record in record
+     * @param len - size of the record
+     * @return the slot of the record
+     */
+    public int append(byte[] record, int offset, int len)
+    {
+        int slot = slotCount();
+        copy(record, offset, len, allocate(slot, len));
+        putShort(SLOT_COUNT, slot + 1);
+        return slot;
+    }
+
+    /**
+     * take len bytes from the free space for the record of the slot
+     *
+     * @return offset of the record
+     */
+    private int allocate(int slot, int len)
+    {
+        int offset = freeEnd() - len;
+        setSlot(slot, offset, len);
+        setFreeEnd(offset);
+        return offset;
+    }
+
+    private void copy(byte[] record, int from, int len, int offset)
+    {
+        if(buffer.hasArray())
+        {
+            System.arraycopy(record, from, buffer.array(), buffer.arrayOffset() + base + offset, len);
+            return;
+        }
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(base + offset);
+        dst.put(record, from, len);
+    }
+
+    private void copy(ByteBuffer record, int offset)
+    {
+        if(buffer.hasArray())
+        {
+            record.get(buffer.array(), buffer.arrayOffset() + base + offset, record.remaining());
+            return;
+        }
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(base + offset);
+        dst.put(record);
+    }
+
+    /**
+     * insert a record, reusing a free slot and compacting the page if needed
+     *
+     * @param record - from position to limit is the record
+     * @return the slot of the record, -1 if the page has no room for it
+     */
+    public int insert(ByteBuffer record)
+    {
+        int len = record.remaining();
+        if(len > insertableSize())
+            return -1;
+        int slot = freeSlot();
+        if(contiguousFreeSpace() < len + (slot < 0 ? SLOT_SIZE : 0))
+            compact();
+        if(slot < 0)
+            return append(record);
+        copy(record, allocate(slot, len));
+        return slot;
+    }
+
+    /**
+     * delete the record of the slot, its space is reclaimed by the next compaction
+     *
+     * @param slot - slot of the record
+     * @return false, if the slot doesn't hold a record
+     */
+    public boolean delete(int slot)
+    {
+        if(!isUsed(slot))
+            return false;
+        int offset = offset(slot);
+        int length = length(slot);
+        setSlot(slot, 0, 0);
+        if(offset == freeEnd())
+            setFreeEnd(offset + length);
+        else
+            putShort(FRAGMENTED, fragmented() + length);
+        // trailing free slots are given back to the free space
+        int count = slotCount();
+        while(count > 0 && offset(count - 1) == 0)
+            -- count;
+        putShort(SLOT_COUNT, count);
+        return true;
+    }
+
+    /**
+     * replace the record of the slot, in place if it isn't larger
+     *
+     * @param slot - slot of the record
+     * @param record - from position to limit is the new record
+     * @return false, if the page has no room for the new record, the page is unchanged then
+     */
+    public boolean update(int slot, ByteBuffer record)
+    {
+        if(!isUsed(slot))
+            throw new IllegalArgumentException("Slot " + slot + " doesn't hold a record.");
+        int len = record.remaining();
+        int offset = offset(slot);
+        int length = length(slot);
+        if(len <= length)
+        {
+            setSlot(slot, offset, len);
+            putShort(FRAGMENTED, fragmented() + length - len);
+            copy(record, offset);
+            return true;
+        }
+        if(len > freeSpace() + length)
+            return false;
+        // release the old record, then place the new one like an insert into the slot
+        setSlot(slot, 0, 0);
+        if(offset == freeEnd())
+            setFreeEnd(offset + length);
+        else
+            putShort(FRAGMENTED, fragmented() + length);
+        if(contiguousFreeSpace() < len)
+            compact();
+        copy(record, allocate(slot, len));
+        return true;
+    }
+
+    /**
+     * move the records to the end of the page, so all free space is contiguous.
+     * The records keep their slots.
+     */
+    public void compact()
+    {
+        int count = slotCount();
+        byte[] records = new byte[pageSize];
+        int freeEnd = pageSize;
+        for(int i = 0; i < count; ++ i)
+        {
+            int offset = offset(i);
+            if(offset == 0)
+                continue;
+            int length = length(i);
+            freeEnd -= length;
+            ByteBuffer src = buffer.duplicate();
+            src.position(base + offset);
+            src.get(records, freeEnd, length);
+            setSlot(i, freeEnd, length);
+        }
+        ByteBuffer dst = buffer.duplicate();
+        dst.position(base + freeEnd);
+        dst.put(records, freeEnd, pageSize - freeEnd);
+        setFreeEnd(freeEnd);
+        putShort(FRAGMENTED, 0);
+    }
+
+    /**
+     * copy the record of the slot to dst
+     *
+     * @param slot - slot of the record
+     * @param dst - destination, large enough for {@link #length(int)} bytes
+     * @param offset - offset in dst
+     */
+    public void get(int slot, byte[] dst, int offset)
+    {
+        if(buffer.hasArray())
+        {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + base + offset(slot), dst, offset, length(slot));
+            return;
+        }
+        ByteBuffer src = buffer.duplicate();
+        src.position(base + offset(slot));
+        src.get(dst, offset, length(slot));
+    }
+}
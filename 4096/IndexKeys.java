@@ -0,0 +1,96 @@
+/**
+ * Built-in {@link IndexKey}s: a column of ints, or the date, the hour or the weekday of a
+ * column of date-times, see {@link CsvScanner#dateTimeField(int)}.
+ */
+public final class IndexKeys
+{
+    private IndexKeys()
+    {
+    }
+
+    /**
+     * @param field - index of a column of decimal ints
+     * @return its value
+     */
+    public static IndexKey column(final int field)
+    {
+        return new IndexKey() {
+            @Override
+            public int key(CsvScanner scanner)
+            {
+                return scanner.intField(field);
+            }
+        };
+    }
+
+    /** the last column, a decimal int */
+    public static final IndexKey LAST_COLUMN = new IndexKey() {
+        @Override
+        public int key(CsvScanner scanner)
+        {
+            return scanner.lastIntField();
+        }
+    };
+
+    /**
+     * @param field - index of a column of date-times
+     * @return the date and the hour as the decimal yyyyMMddHH, so a range of keys is a range of hours
+     */
+    public static IndexKey dateHour(final int field)
+    {
+        return new IndexKey() {
+            @Override
+            public int key(CsvScanner scanner)
+            {
+                return scanner.dateTimeField(field);
+            }
+        };
+    }
+
+    /**
+     * @param field - index of a column of date-times
+     * @return the hour of the day, 0 to 23
+     */
+    public static IndexKey hour(final int field)
+    {
+        return new IndexKey() {
+            @Override
+            public int key(CsvScanner scanner)
+            {
+                return scanner.dateTimeField(field) % 100;
+            }
+        };
+    }
+
+    /**
+     * @param field - index of a column of date-times
+     * @return the day of the week, 1 for Monday to 7 for Sunday (ISO 8601)
+     */
+    public static IndexKey weekday(final int field)
+    {
+        return new IndexKey() {
+            @Override
+            public int key(CsvScanner scanner)
+            {
+                int date = scanner.dateTimeField(field) / 100;
+                return weekday(date / 10000, date / 100 % 100, date % 100);
+            }
+        };
+    }
+
+    /**
+     * @return the day of the week of a date of the Gregorian calendar, 1 for Monday to 7 for Sunday
+     */
+    static int weekday(int year, int month, int day)
+    {
+        // days since 1970-01-01, a Thursday, counting the years from March so February is the last month
+        if(month <= 2)
+            -- year;
+        int era = Math.floorDiv(year, 400);
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return (int) Math.floorMod(days + 3, 7L) + 1;
+    }
+}
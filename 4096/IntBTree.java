@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * B tree of int keys, the {@link BTree} of the indexes specialized for primitive keys.
+ * <p/>
+ * A node holds its keys in an int[] and its values and children in arrays parallel to it,
+ * a lookup is a binary search of ints: no boxing, no entry objects and no comparator.
+ * The arrays are allocated full size with the node, an insertion or a removal shifts them.
+ * <p/>
+ * The API is the one of {@link BTree}, the removal returns the value of the key removed.
+ * {@link Search} looks the keys up in the index file loaded in an IntBTree, see
+ * {@link #readFrom(String, Codec)}.
+ *
+ * @param <V> - value
+ */
+public class IntBTree<V> implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private static final int DEFAULT_T = 2;
+    /** returned by the internal insertion and removal when there is no previous value */
+    private static final Object NONE = new Object();
+
+    /**
+     * Nodes in IntBTree
+     */
+    private static class Node implements Serializable
+    {
+        private static final long serialVersionUID = 1L;
+        private final int[] keys;
+        private final Object[] values;
+        /** null for a leaf */
+        private final Node[] children;
+        private int size;
+
+        Node(int maxKeySize, boolean leaf)
+        {
+            keys = new int[maxKeySize];
+            values = new Object[maxKeySize];
+            children = leaf ? null : new Node[maxKeySize + 1];
+        }
+
+        boolean isLeaf()
+        {
+            return children == null;
+        }
+
+        /**
+         * @return index of the key, or (-(insertion point) - 1) if the key isn't in the node
+         */
+        int indexOf(int key)
+        {
+            return Arrays.binarySearch(keys, 0, size, key);
+        }
+
+        /**
+         * insert an entry at index, moving the entries after it
+         */
+        void insertEntry(int index, int key, Object value)
+        {
+            System.arraycopy(keys, index, keys, index + 1, size - index);
+            System.arraycopy(values, index, values, index + 1, size - index);
+            keys[index] = key;
+            values[index] = value;
+            ++ size;
+        }
+
+        /**
+         * remove the entry at index, the children are left unchanged
+         */
+        void removeEntry(int index)
+        {
+            System.arraycopy(keys, index + 1, keys, index, size - index - 1);
+            System.arraycopy(values, index + 1, values, index, size - index - 1);
+            -- size;
+            values[size] = null;
+        }
+
+        /**
+         * remove child index, the entries are left unchanged so the node has size + 1 children
+         */
+        void removeChild(int index)
+        {
+            System.arraycopy(children, index + 1, children, index, size - index);
+            children[size] = null;
+        }
+    }
+
+    private Node root;
+    /** the number of keys of the non-root nodes: (t - 1) <= n <= (2t - 1) */
+    private final int t;
+    private final int maxKeySize;
+    /** number of keys */
+    private int size;
+
+    public IntBTree()
+    {
+        this(DEFAULT_T);
+    }
+
+    public IntBTree(int t)
+    {
+        if(t < 2)
+            throw new IllegalArgumentException("A B tree needs t >= 2: " + t);
+        this.t = t;
+        this.maxKeySize = 2*t - 1;
+        root = new Node(maxKeySize, true);
+    }
+
+    /**
+     * Read a B tree file of int keys, written by {@link BTree#writeTo(String, Codec, Codec)} with
+     * {@link Codecs#INTEGER} keys. The nodes of the file are decoded straight into the nodes of
+     * the IntBTree, with the minimum degree of the file: the keys are never boxed.
+     *
+     * @param filename - B tree file
+     * @param valueCodec - codec of the values
+     * @return the B tree
+     */
+    public static <V> IntBTree<V> readFrom(String filename, Codec<V> valueCodec) throws IOException
+    {
+        ByteBuffer buffer = BTree.readTreeFile(filename);
+        try
+        {
+            IntBTree<V> btree = new IntBTree<V>(buffer.getInt());
+            btree.root = btree.readFrames(buffer, valueCodec);
+            if(buffer.hasRemaining())
+                throw new IOException("B tree file " + filename + " has " + buffer.remaining() + " bytes after the root.");
+            return btree;
+        }
+        catch(BufferUnderflowException e)
+        {
+            throw new IOException("B tree file " + filename + " is truncated.", e);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new IOException("B tree file " + filename + " is corrupt.", e);
+        }
+    }
+
+    /**
+     * decode a node of the file and its subtree, see {@link BTree#writeTo(String, Codec, Codec)}
+     */
+    private Node readFrames(ByteBuffer buffer, Codec<V> valueCodec) throws IOException
+    {
+        int frameSize = buffer.getInt();
+        int end = buffer.position() + frameSize;
+        boolean leaf = buffer.get() != 0;
+        int n = Codecs.getVarint(buffer);
+        if(n > maxKeySize)
+            throw new IOException("B tree node of " + n + " keys, at most " + maxKeySize + " are allowed.");
+        Node node = new Node(maxKeySize, leaf);
+        for(int i = 0; i < n; ++ i)
+        {
+            // the 4 bytes of Codecs.INTEGER
+            node.keys[i] = buffer.getInt();
+            node.values[i] = valueCodec.decode(buffer);
+        }
+        node.size = n;
+        size += n;
+        if(buffer.position() != end)
+            throw new IOException("B tree node frame of " + frameSize + " bytes holds " + (buffer.position() - end + frameSize) + " bytes.");
+        if(!leaf)
+            for(int i = 0; i <= n; ++ i)
+                node.children[i] = readFrames(buffer, valueCodec);
+        return node;
+    }
+
+    /**
+     * Build the B tree from entries sorted by key, replacing its content. The nodes are filled
+     * completely like {@link BTree#bulkLoad(Iterator)}, without splits.
+     *
+     * @param sorted - entries in increasing order of their keys
+     */
+    public void bulkLoad(Iterator<? extends Map.Entry<Integer, ? extends V>> sorted)
+    {
+        int[] keys = new int[16];
+        Object[] values = new Object[16];
+        int n = 0;
+        while(sorted.hasNext())
+        {
+            Map.Entry<Integer, ? extends V> entry = sorted.next();
+            int key = entry.getKey();
+            if(n > 0 && keys[n - 1] >= key)
+                throw new IllegalArgumentException("Key " + key + " comes after key " + keys[n - 1] + ", the keys must be increasing.");
+            if(n == keys.length)
+            {
+                keys = Arrays.copyOf(keys, 2 * n);
+                values = Arrays.copyOf(values, 2 * n);
+            }
+            keys[n] = key;
+            values[n ++] = entry.getValue();
+        }
+        // the smallest height for full nodes, lower if the root wouldn't have two children holding t - 1 keys at least
+        int height = 0;
+        while(subtreeSize(height, maxKeySize) < n)
+            ++ height;
+        while(height > 0 && n < 2 * power(t, height) - 1)
+            -- height;
+        root = build(keys, values, 0, n, height, true);
+        size = n;
+    }
+
+    /**
+     * build a subtree of n entries, see {@link BTree#bulkLoad(Iterator, double)}
+     */
+    private Node build(int[] keys, Object[] values, int from, int n, int height, boolean isRoot)
+    {
+        Node node = new Node(maxKeySize, height == 0);
+        if(height == 0)
+        {
+            System.arraycopy(keys, from, node.keys, 0, n);
+            System.arraycopy(values, from, node.values, 0, n);
+            node.size = n;
+            return node;
+        }
+        // a child takes a subtree and the entry after it
+        long target = subtreeSize(height - 1, maxKeySize) + 1;
+        long min = power(t, height);
+        int minChildren = isRoot ? 2 : t;
+        long children = Math.max(minChildren, Math.min(2 * t, n / target + 1));
+        while(children <= n / target)
+            ++ children;
+        while(children > minChildren && children > (n + 1) / min)
+            -- children;
+        int c = (int) children;
+        int rest = n - (c - 1);
+        int index = from;
+        for(int i = 0; i < c; ++ i)
+        {
+            int childSize = rest / c + (i < rest % c ? 1 : 0);
+            node.children[i] = build(keys, values, index, childSize, height - 1, false);
+            index += childSize;
+            if(i < c - 1)
+            {
+                node.keys[i] = keys[index];
+                node.values[i] = values[index ++];
+            }
+        }
+        node.size = c - 1;
+        return node;
+    }
+
+    /**
+     * @return number of entries of a subtree of the given height, whose nodes have the given number of keys
+     */
+    private static long subtreeSize(int height, int keys)
+    {
+        return power(keys + 1, height + 1) - 1;
+    }
+
+    /**
+     * @return base ^ exp, Long.MAX_VALUE if it overflows
+     */
+    private static long power(long base, int exp)
+    {
+        long result = 1;
+        for(int i = 0; i < exp; ++ i)
+        {
+            if(result > Long.MAX_VALUE / base)
+                return Long.MAX_VALUE;
+            result *= base;
+        }
+        return result;
+    }
+
+    /**
+     * search key
+     *
+     * @param key - given key
+     * @return value if exists, or return null
+     */
+    @SuppressWarnings("unchecked")
+    public V search(int key)
+    {
+        Node node = root;
+        while(true)
+        {
+            int i = node.indexOf(key);
+            if(i >= 0)
+                return (V) node.values[i];
+            if(node.isLeaf())
+                return null;
+            node = node.children[-i - 1];
+        }
+    }
+
+    /**
+     * Insert a given key-value pair in the B-tree.
+     *
+     * @return false if the key is already in the B tree, which is left unchanged
+     */
+    public boolean insert(int key, V value)
+    {
+        return insert(key, value, false) == NONE;
+    }
+
+    /**
+     * If a given key exists in the B tree, the value is updated.
+     * Otherwise insert
+     *
+     * @return the previous value of the key, null if it wasn't in the B tree
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value)
+    {
+        Object previous = insert(key, value, true);
+        return previous == NONE ? null : (V) previous;
+    }
+
+    /**
+     * Descend from the root to the leaf of the key, splitting the full nodes on the way,
+     * so the node receiving the entry is never full.
+     *
+     * @param replace - if the value of a key already in the B tree is replaced
+     * @return the previous value of the key, NONE if it wasn't in the B tree
+     */
+    private Object insert(int key, Object value, boolean replace)
+    {
+        if(root.size == maxKeySize) // If the root node is full, the B tree is taller
+        {
+            Node newRoot = new Node(maxKeySize, false);
+            newRoot.children[0] = root;
+            splitChild(newRoot, 0);
+            root = newRoot;
+        }
+        Node node = root;
+        while(true)
+        {
+            int i = node.indexOf(key);
+            if(i >= 0)
+                return replace(node, i, value, replace);
+            i = -i - 1;
+            if(node.isLeaf())
+            {
+                node.insertEntry(i, key, value);
+                ++ size;
+                return NONE;
+            }
+            if(node.children[i].size == maxKeySize)
+            {
+                splitChild(node, i);
+                // the middle key of the child moved up to index i
+                if(key == node.keys[i])
+                    return replace(node, i, value, replace);
+                if(key > node.keys[i])
+                    ++ i;
+            }
+            node = node.children[i];
+        }
+    }
+
+    private static Object replace(Node node, int index, Object value, boolean replace)
+    {
+        Object previous = node.values[index];
+        if(replace)
+            node.values[index] = value;
+        return previous;
+    }
+
+    /**
+     * split the full child index of parent, its middle entry moves up to parent
+     *
+     * @param parent - a non-full node
+     * @param index - index of the child
+     */
+    private void splitChild(Node parent, int index)
+    {
+        Node child = parent.children[index];
+        Node sibling = new Node(maxKeySize, child.isLeaf());
+        // the last t - 1 entries and t children go to the sibling
+        System.arraycopy(child.keys, t, sibling.keys, 0, t - 1);
+        System.arraycopy(child.values, t, sibling.values, 0, t - 1);
+        if(!child.isLeaf())
+        {
+            System.arraycopy(child.children, t, sibling.children, 0, t);
+            Arrays.fill(child.children, t, maxKeySize + 1, null);
+        }
+        sibling.size = t - 1;
+        int key = child.keys[t - 1];
+        Object value = child.values[t - 1];
+        Arrays.fill(child.values, t - 1, maxKeySize, null);
+        child.size = t - 1;
+
+        System.arraycopy(parent.children, index + 1, parent.children, index + 2, parent.size - index);
+        parent.children[index + 1] = sibling;
+        parent.insertEntry(index, key, value);
+    }
+
+    /**
+     * Removes an item associated with a given key from the B tree.
+     *
+     * @return the value of the key, null if the key isn't in the B tree
+     */
+    @SuppressWarnings("unchecked")
+    public V delete(int key)
+    {
+        Object value = delete(root, key);
+        // the entry of the root moved down to its merged children
+        if(root.size == 0 && !root.isLeaf())
+            root = root.children[0];
+        if(value == NONE)
+            return null;
+        -- size;
+        return (V) value;
+    }
+
+    /**
+     * Removes the key from the subtree of node. Before descending to a child, the child gets
+     * t keys at least, borrowing from a sibling or merging with it, so the removal from a
+     * leaf never leaves a node under t - 1 keys.
+     *
+     * @param node - the root, or a node of t keys at least
+     * @return the value of the key, NONE if the key isn't in the subtree
+     */
+    private Object delete(Node node, int key)
+    {
+        int i = node.indexOf(key);
+        if(node.isLeaf())
+        {
+            if(i < 0)
+                return NONE;
+            Object value = node.values[i];
+            node.removeEntry(i);
+            return value;
+        }
+        if(i >= 0)
+        {
+            Object value = node.values[i];
+            Node left = node.children[i];
+            Node right = node.children[i + 1];
+            if(left.size >= t)
+            {
+                // replace the entry by its predecessor, the last entry of the left subtree
+                Node last = left;
+                while(!last.isLeaf())
+                    last = last.children[last.size];
+                int predecessor = last.keys[last.size - 1];
+                node.values[i] = delete(left, predecessor);
+                node.keys[i] = predecessor;
+            }
+            else if(right.size >= t)
+            {
+                // replace the entry by its successor, the first entry of the right subtree
+                Node first = right;
+                while(!first.isLeaf())
+                    first = first.children[0];
+                int successor = first.keys[0];
+                node.values[i] = delete(right, successor);
+                node.keys[i] = successor;
+            }
+            else
+            {
+                // both children hold t - 1 keys, merge them around the entry and remove it from the merged node
+                merge(node, i);
+                delete(left, key);
+            }
+            return value;
+        }
+
+        i = -i - 1;
+        Node child = node.children[i];
+        if(child.size < t)
+        {
+            if(i > 0 && node.children[i - 1].size >= t)
+                borrowLeft(node, i);
+            else if(i < node.size && node.children[i + 1].size >= t)
+                borrowRight(node, i);
+            else if(i < node.size)
+                merge(node, i);
+            else
+            {
+                merge(node, i - 1);
+                child = node.children[i - 1];
+            }
+        }
+        return delete(child, key);
+    }
+
+    /**
+     * merge child index + 1 and entry index of node into child index
+     */
+    private void merge(Node node, int index)
+    {
+        Node left = node.children[index];
+        Node right = node.children[index + 1];
+        left.keys[left.size] = node.keys[index];
+        left.values[left.size] = node.values[index];
+        System.arraycopy(right.keys, 0, left.keys, left.size + 1, right.size);
+        System.arraycopy(right.values, 0, left.values, left.size + 1, right.size);
+        if(!left.isLeaf())
+            System.arraycopy(right.children, 0, left.children, left.size + 1, right.size + 1);
+        left.size += 1 + right.size;
+        node.removeChild(index + 1);
+        node.removeEntry(index);
+    }
+
+    /**
+     * move the last entry of child index - 1 up to node and entry index - 1 of node down to child index
+     */
+    private void borrowLeft(Node node, int index)
+    {
+        Node child = node.children[index];
+        Node left = node.children[index - 1];
+        System.arraycopy(child.keys, 0, child.keys, 1, child.size);
+        System.arraycopy(child.values, 0, child.values, 1, child.size);
+        child.keys[0] = node.keys[index - 1];
+        child.values[0] = node.values[index - 1];
+        if(!child.isLeaf())
+        {
+            System.arraycopy(child.children, 0, child.children, 1, child.size + 1);
+            child.children[0] = left.children[left.size];
+            left.children[left.size] = null;
+        }
+        ++ child.size;
+        -- left.size;
+        node.keys[index - 1] = left.keys[left.size];
+        node.values[index - 1] = left.values[left.size];
+        left.values[left.size] = null;
+    }
+
+    /**
+     * move the first entry of child index + 1 up to node and entry index of node down to child index
+     */
+    private void borrowRight(Node node, int index)
+    {
+        Node child = node.children[index];
+        Node right = node.children[index + 1];
+        child.keys[child.size] = node.keys[index];
+        child.values[child.size] = node.values[index];
+        if(!child.isLeaf())
+        {
+            child.children[child.size + 1] = right.children[0];
+            right.removeChild(0);
+        }
+        ++ child.size;
+        node.keys[index] = right.keys[0];
+        node.values[index] = right.values[0];
+        right.removeEntry(0);
+    }
+
+    /**
+     * @return number of keys
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * A simple hierarchical traversal for outputting the B tree.
+     */
+    public void output()
+    {
+        Queue<Node> queue = new LinkedList<Node>();
+        queue.offer(root);
+        while(!queue.isEmpty())
+        {
+            Node node = queue.poll();
+            for(int i = 0; i < node.size; ++ i)
+                System.out.print(node.keys[i] + ":" + node.values[i] + " ");
+            System.out.println();
+            if(!node.isLeaf())
+            {
+                for(int i = 0; i <= node.size; ++ i)
+                    queue.offer(node.children[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.Arrays;
+
+/**
+ * LZ77 compression of a page, in the block format of LZ4.
+ * <p/>
+ * The compressed page is a list of sequences. A sequence is a token byte, holding the number
+ * of literals in its high 4 bits and the length of the match - 4 in its low 4 bits, the
+ * literals, the offset of the match back from the current position (2 bytes, little endian)
+ * and the rest of the lengths which don't fit in 4 bits, as bytes of 255 and a last byte
+ * below 255. The last sequence has literals only.
+ * <p/>
+ * Matches are found through a hash table of the positions of 4 byte sequences, so a page is
+ * compressed in one pass. The repeated texts of the rows and the zeroed free space of a page
+ * compress well.
+ * <p/>
+ * A compressor keeps its hash table, it is used by one thread at a time.
+ */
+public class PageCompressor
+{
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_BITS = 12;
+
+    /** last position of every hash of 4 bytes */
+    private final int[] table = new int[1 << HASH_BITS];
+
+    /**
+     * @return the largest compression of len bytes
+     */
+    public static int maxCompressedSize(int len)
+    {
+        return len + len / 255 + 16;
+    }
+
+    /**
+     * compress len bytes of src
+     *
+     * @param src - bytes to compress
+     * @param offset - start in src
+     * @param len - number of bytes
+     * @param dst - destination, at least {@link #maxCompressedSize(int)} bytes
+     * @return size of the compressed bytes
+     */
+    public int compress(byte[] src, int offset, int len, byte[] dst)
+    {
+        Arrays.fill(table, -1);
+        int end = offset + len;
+        int anchor = offset;
+        int i = offset;
+        int n = 0;
+        while(i + MIN_MATCH <= end)
+        {
+            int value = getInt(src, i);
+            int hash = (value * -1640531535) >>> (32 - HASH_BITS);
+            int ref = table[hash];
+            table[hash] = i;
+            if(ref < 0 || i - ref > MAX_OFFSET || getInt(src, ref) != value)
+            {
+                ++ i;
+                continue;
+            }
+            int match = MIN_MATCH;
+            while(i + match < end && src[ref + match] == src[i + match])
+                ++ match;
+            n = sequence(src, anchor, i - anchor, dst, n, i - ref, match);
+            i += match;
+            anchor = i;
+        }
+        return sequence(src, anchor, end - anchor, dst, n, 0, 0);
+    }
+
+    /**
+     * write a sequence, without a match if match is 0
+     *
+     * @return the end of the sequence in dst
+     */
+    private static int sequence(byte[] src, int literalStart, int literals, byte[] dst, int n, int offset, int match)
+    {
+        int token = n ++;
+        dst[token] = (byte) (Math.min(literals, 15) << 4);
+        if(literals >= 15)
+            n = putLength(dst, n, literals - 15);
+        System.arraycopy(src, literalStart, dst, n, literals);
+        n += literals;
+        if(match == 0)
+            return n;
+        dst[n ++] = (byte) offset;
+        dst[n ++] = (byte) (offset >>> 8);
+        int length = match - MIN_MATCH;
+        dst[token] |= (byte) Math.min(length, 15);
+        if(length >= 15)
+            n = putLength(dst, n, length - 15);
+        return n;
+    }
+
+    private static int putLength(byte[] dst, int n, int length)
+    {
+        while(length >= 255)
+        {
+            dst[n ++] = (byte) 255;
+            length -= 255;
+        }
+        dst[n ++] = (byte) length;
+        return n;
+    }
+
+    private static int getInt(byte[] src, int i)
+    {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | src[i + 3] << 24;
+    }
+
+    /**
+     * decompress a page
+     *
+     * @param src - compressed bytes
+     * @param offset - start in src
+     * @param len - number of compressed bytes
+     * @param dst - destination
+     * @param dstOffset - start in dst
+     * @param dstLen - size of the decompressed bytes
+     */
+    public static void decompress(byte[] src, int offset, int len, byte[] dst, int dstOffset, int dstLen)
+    {
+        int end = offset + len;
+        int dstEnd = dstOffset + dstLen;
+        int i = offset;
+        int n = dstOffset;
+        try
+        {
+            while(i < end)
+            {
+                int token = src[i ++] & 0xFF;
+                int literals = token >>> 4;
+                if(literals == 15)
+                {
+                    int b;
+                    do
+                    {
+                        b = src[i ++] & 0xFF;
+                        literals += b;
+                    }
+                    while(b == 255);
+                }
+                if(n + literals > dstEnd)
+                    throw new IllegalArgumentException("Compressed page overflows " + dstLen + " bytes.");
+                System.arraycopy(src, i, dst, n, literals);
+                i += literals;
+                n += literals;
+                if(i == end)
+                    break;
+                int distance = (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8;
+                i += 2;
+                int match = (token & 0x0F) + MIN_MATCH;
+                if((token & 0x0F) == 15)
+                {
+                    int b;
+                    do
+                    {
+                        b = src[i ++] & 0xFF;
+                        match += b;
+                    }
+                    while(b == 255);
+                }
+                int ref = n - distance;
+                if(distance == 0 || ref < dstOffset || n + match > dstEnd)
+                    throw new IllegalArgumentException("Bad match in a compressed page at " + (i - offset) + ".");
+                // the match may overlap the bytes it produces, so it is copied byte by byte
+                for(int k = 0; k < match; ++ k)
+                    dst[n ++] = dst[ref + k];
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException e)
+        {
+            throw new IllegalArgumentException("Truncated compressed page.", e);
+        }
+        if(n != dstEnd)
+            throw new IllegalArgumentException("Compressed page holds " + (n - dstOffset) + " bytes instead of " + dstLen + ".");
+    }
+}
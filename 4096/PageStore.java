@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ * Pages of a file, read and written whole, see {@link BufferPool}
+ */
+public interface PageStore
+{
+    int getPageSize();
+
+    /**
+     * @return number of pages
+     */
+    int pageCount();
+
+    /**
+     * copy a page to dst
+     *
+     * @param blockNum - page
+     * @param dst - destination of pageSize bytes
+     */
+    void load(int blockNum, byte[] dst) throws IOException;
+
+    /**
+     * write a page, a page after the last one extends the file
+     *
+     * @param blockNum - page
+     * @param src - pageSize bytes
+     */
+    void store(int blockNum, byte[] src) throws IOException;
+}
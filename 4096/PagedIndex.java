@@ -0,0 +1,654 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk resident B+tree from int keys to lists of {@link BTree.Data}.
+ * <p/>
+ * Every node is a page of the index file, so a lookup reads the pages on the path from the
+ * root to a leaf and the postings of the key, instead of deserializing the whole index.
+ * Layout of the file:
+ * <pre>
+ * | header | leaves | internal nodes, level by level up to the root | postings |
+ * </pre>
+ * <ul>
+ * <li>the header holds the magic number, the page size, the root, the height, the number of keys
+ * and the first page of the postings,</li>
+ * <li>a leaf holds sorted entries of (key, number of postings, offset of the postings)
+ * and the page of the next leaf,</li>
+ * <li>an internal node holds n sorted keys and n + 1 children, key i is the smallest key
+ * of child i + 1,</li>
+ * <li>the postings of a key are (blockNum, slot) pairs of ints, one after the other.</li>
+ * </ul>
+ * The fanout is the number of keys or entries filling a page.
+ * <p/>
+ * The tree is written in one pass from the sorted keys and is read only. The nodes read by the
+ * lookups are cached in a {@link BufferPool}.
+ * <p/>
+ * The file has no pointers, a node refers to its children by page number and a key to its
+ * postings by offset, so the file can also be memory mapped by {@link #map(String, int)} and
+ * searched in place: opening it reads the header only, a lookup decodes the few ints of the
+ * nodes on its path straight from the mapping, and only the pages touched are brought in memory.
+ */
+public class PagedIndex implements Closeable, PageStore
+{
+    /** "BPT1" */
+    private static final int MAGIC = 0x42505431;
+    private static final int DEFAULT_CACHE_PAGES = 64;
+    /** upper bound of the size of one mapped segment */
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+
+    /** header of the file */
+    private static final int ROOT = 8;
+    private static final int HEIGHT = 12;
+    private static final int KEY_COUNT = 16;
+    private static final int POSTINGS_PAGE = 20;
+    private static final int HEADER_END = 24;
+
+    /** header of a node: leaf flag, number of keys, next leaf */
+    private static final int NODE_LEAF = 0;
+    private static final int NODE_COUNT = 2;
+    private static final int NODE_NEXT = 4;
+    private static final int NODE_HEADER_SIZE = 8;
+    /** key, number of postings, offset of the postings */
+    private static final int LEAF_ENTRY_SIZE = 16;
+    /** blockNum, slot */
+    private static final int POSTING_SIZE = 8;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final int pageCount;
+    private final int root;
+    private final int height;
+    private final int keyCount;
+    private final long postingsStart;
+    /** cache of the nodes, null if the file is mapped */
+    private final BufferPool pool;
+    /** mapped segments of the file, null if the nodes are read through the pool */
+    private final MappedByteBuffer[] segments;
+    private final long segmentSize;
+    private final AtomicLong nodeReads = new AtomicLong();
+
+    public PagedIndex(String filename, int pageSize) throws IOException
+    {
+        this(filename, pageSize, DEFAULT_CACHE_PAGES);
+    }
+
+    /**
+     * open an index file
+     *
+     * @param filename - index file
+     * @param pageSize - page size of the index file
+     * @param cachePages - number of nodes cached
+     */
+    public PagedIndex(String filename, int pageSize, int cachePages) throws IOException
+    {
+        this(filename, pageSize, cachePages, false);
+    }
+
+    /**
+     * open an index file memory mapped, the lookups read the nodes and the postings from the
+     * mapping instead of a buffer pool
+     *
+     * @param filename - index file
+     * @param pageSize - page size of the index file
+     */
+    public static PagedIndex map(String filename, int pageSize) throws IOException
+    {
+        return new PagedIndex(filename, pageSize, 0, true);
+    }
+
+    private PagedIndex(String filename, int pageSize, int cachePages, boolean mapped) throws IOException
+    {
+        this.pageSize = pageSize;
+        // neither a page nor a posting spans two segments
+        this.segmentSize = MAX_SEGMENT_SIZE / ((long) pageSize * POSTING_SIZE) * pageSize * POSTING_SIZE;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_END);
+            read(header, 0);
+            if(header.getInt(0) != MAGIC)
+                throw new IOException(filename + " isn't a paged index.");
+            if(header.getInt(4) != pageSize)
+                throw new IOException("Index " + filename + " has pages of " + header.getInt(4) + " bytes, not " + pageSize + ".");
+            root = header.getInt(ROOT);
+            height = header.getInt(HEIGHT);
+            keyCount = header.getInt(KEY_COUNT);
+            pageCount = header.getInt(POSTINGS_PAGE);
+            postingsStart = (long) pageCount * pageSize;
+            if(mapped)
+            {
+                long length = channel.size();
+                if(length < postingsStart)
+                    throw new IOException("Index file " + filename + " is truncated at " + length + ".");
+                int count = (int) ((length + segmentSize - 1) / segmentSize);
+                segments = new MappedByteBuffer[count];
+                for(int i = 0; i < count; ++ i)
+                {
+                    long start = i * segmentSize;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, length - start));
+                }
+            }
+            else
+                segments = null;
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        this.pool = mapped ? null : new BufferPool(this, cachePages);
+    }
+
+    /**
+     * @return the largest number of keys of an internal node
+     */
+    private static int internalCapacity(int pageSize)
+    {
+        return (pageSize - NODE_HEADER_SIZE - 4) / 8;
+    }
+
+    /**
+     * @return the largest number of entries of a leaf
+     */
+    private static int leafCapacity(int pageSize)
+    {
+        return (pageSize - NODE_HEADER_SIZE) / LEAF_ENTRY_SIZE;
+    }
+
+    /**
+     * @return offset of key i of an internal node
+     */
+    private static int keyAt(int i)
+    {
+        return NODE_HEADER_SIZE + i * 4;
+    }
+
+    /**
+     * @return offset of child i of an internal node
+     */
+    private static int childAt(int pageSize, int i)
+    {
+        return NODE_HEADER_SIZE + internalCapacity(pageSize) * 4 + i * 4;
+    }
+
+    /**
+     * look up the postings of a key
+     *
+     * @param key - key
+     * @return the postings in the order they were written, null if the key isn't in the index
+     */
+    public List<BTree.Data> search(int key) throws IOException
+    {
+        int page = leafOf(key);
+        int count;
+        long offset;
+        if(segments != null)
+        {
+            // in the mapping, nothing is copied but the postings found
+            long position = node(page);
+            ByteBuffer leaf = segments[(int) (position / segmentSize)];
+            int entry = entry(leaf, (int) (position % segmentSize), key);
+            if(entry < 0)
+                return null;
+            count = leaf.getInt(entry + 4);
+            offset = leaf.getLong(entry + 8);
+        }
+        else
+        {
+            BufferPool.Frame frame = pool.pin(page);
+            try
+            {
+                ByteBuffer leaf = frame.buffer();
+                int entry = entry(leaf, 0, key);
+                if(entry < 0)
+                    return null;
+                count = leaf.getInt(entry + 4);
+                offset = leaf.getLong(entry + 8);
+            }
+            finally
+            {
+                pool.unpin(frame, false);
+            }
+        }
+        return postings(key, count, offset);
+    }
+
+    /**
+     * range search, the keys in [lo, hi], the postings are passed to the visitor in increasing
+     * order of their keys until it stops the query.
+     * <p/>
+     * The query descends once to the leaf of lo, then walks the leaves through their links.
+     *
+     * @param lo - lower bound
+     * @param loInclusive - if lo is in the range
+     * @param hi - upper bound
+     * @param hiInclusive - if hi is in the range
+     * @param visitor - receives the keys and their postings
+     */
+    public void rangeSearch(int lo, boolean loInclusive, int hi, boolean hiInclusive,
+                            RangeVisitor<Integer, List<BTree.Data>> visitor) throws IOException
+    {
+        if(!loInclusive)
+        {
+            if(lo == Integer.MAX_VALUE)
+                return;
+            ++ lo;
+        }
+        if(!hiInclusive)
+        {
+            if(hi == Integer.MIN_VALUE)
+                return;
+            -- hi;
+        }
+        if(lo > hi)
+            return;
+        ByteBuffer leaf = ByteBuffer.allocate(pageSize);
+        int page = leafOf(lo);
+        copyLeaf(page, leaf);
+        int i = lowerBound(leaf, lo);
+        while(true)
+        {
+            int count = leaf.getShort(NODE_COUNT) & 0xFFFF;
+            for(; i < count; ++ i)
+            {
+                int at = NODE_HEADER_SIZE + i * LEAF_ENTRY_SIZE;
+                int key = leaf.getInt(at);
+                if(key > hi)
+                    return;
+                if(!visitor.visit(key, postings(key, leaf.getInt(at + 4), leaf.getLong(at + 8))))
+                    return;
+            }
+            page = leaf.getInt(NODE_NEXT);
+            if(page < 0)
+                return;
+            copyLeaf(page, leaf);
+            i = 0;
+        }
+    }
+
+    /**
+     * @return the leaf whose range holds key
+     */
+    private int leafOf(int key) throws IOException
+    {
+        int page = root;
+        for(int level = height; level > 1; -- level)
+        {
+            if(segments != null)
+            {
+                long position = node(page);
+                page = child(segments[(int) (position / segmentSize)], (int) (position % segmentSize), key);
+                continue;
+            }
+            BufferPool.Frame frame = pool.pin(page);
+            try
+            {
+                page = child(frame.buffer(), 0, key);
+            }
+            finally
+            {
+                pool.unpin(frame, false);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * copy a leaf, so it isn't pinned while the postings of its entries are read
+     */
+    private void copyLeaf(int page, ByteBuffer dst) throws IOException
+    {
+        if(segments != null)
+        {
+            long position = node(page);
+            ByteBuffer segment = segments[(int) (position / segmentSize)].duplicate();
+            segment.limit((int) (position % segmentSize) + pageSize).position((int) (position % segmentSize));
+            dst.clear();
+            dst.put(segment);
+            return;
+        }
+        BufferPool.Frame frame = pool.pin(page);
+        try
+        {
+            System.arraycopy(frame.bytes(), 0, dst.array(), 0, pageSize);
+        }
+        finally
+        {
+            pool.unpin(frame, false);
+        }
+    }
+
+    /**
+     * read the postings of a key
+     *
+     * @param count - number of postings
+     * @param offset - offset of the postings in the postings of the file
+     */
+    private Postings postings(int key, int count, long offset) throws IOException
+    {
+        long start = postingsStart + offset;
+        Postings list = new Postings();
+        if(segments == null)
+        {
+            ByteBuffer postings = ByteBuffer.allocate(count * POSTING_SIZE);
+            read(postings, start);
+            for(int i = 0; i < count; ++ i)
+                list.add(postings.getInt(i * POSTING_SIZE), postings.getInt(i * POSTING_SIZE + 4));
+            return list;
+        }
+        if(count < 0 || start + (long) count * POSTING_SIZE > (long) (segments.length - 1) * segmentSize + segments[segments.length - 1].limit())
+            throw new IOException("Postings of key " + key + " are past the end of the index file.");
+        for(long p = start; p < start + (long) count * POSTING_SIZE; p += POSTING_SIZE)
+        {
+            ByteBuffer segment = segments[(int) (p / segmentSize)];
+            int at = (int) (p % segmentSize);
+            list.add(segment.getInt(at), segment.getInt(at + 4));
+        }
+        return list;
+    }
+
+    /**
+     * @return position of a node in the file
+     */
+    private long node(int page) throws IOException
+    {
+        if(page < 1 || page >= pageCount)
+            throw new IOException("Page " + page + " isn't a node of the index.");
+        nodeReads.incrementAndGet();
+        return (long) page * pageSize;
+    }
+
+    /**
+     * @param node - buffer holding an internal node
+     * @param base - start of the node in node
+     * @return the child after the last key <= key
+     */
+    private int child(ByteBuffer node, int base, int key)
+    {
+        int low = 0;
+        int high = node.getShort(base + NODE_COUNT) & 0xFFFF;
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if(node.getInt(base + keyAt(mid)) <= key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return node.getInt(base + childAt(pageSize, low));
+    }
+
+    /**
+     * @param leaf - buffer holding a leaf
+     * @param base - start of the leaf in leaf
+     * @return offset of the entry of key in leaf, -1 if the key isn't in the leaf
+     */
+    private static int entry(ByteBuffer leaf, int base, int key)
+    {
+        int low = 0;
+        int high = (leaf.getShort(base + NODE_COUNT) & 0xFFFF) - 1;
+        while(low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int at = base + NODE_HEADER_SIZE + mid * LEAF_ENTRY_SIZE;
+            int k = leaf.getInt(at);
+            if(k < key)
+                low = mid + 1;
+            else if(k > key)
+                high = mid - 1;
+            else
+                return at;
+        }
+        return -1;
+    }
+
+    /**
+     * @param leaf - buffer holding a leaf at its start
+     * @return index of the first entry whose key >= key
+     */
+    private static int lowerBound(ByteBuffer leaf, int key)
+    {
+        int low = 0;
+        int high = leaf.getShort(NODE_COUNT) & 0xFFFF;
+        while(low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if(leaf.getInt(NODE_HEADER_SIZE + mid * LEAF_ENTRY_SIZE) < key)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException
+    {
+        buffer.clear();
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Index file is truncated at " + (position + buffer.position()) + ".");
+        }
+    }
+
+    @Override
+    public void load(int blockNum, byte[] dst) throws IOException
+    {
+        if(blockNum < 1 || blockNum >= pageCount)
+            throw new IOException("Page " + blockNum + " isn't a node of the index.");
+        nodeReads.incrementAndGet();
+        read(ByteBuffer.wrap(dst, 0, pageSize), (long) blockNum * pageSize);
+    }
+
+    @Override
+    public void store(int blockNum, byte[] src)
+    {
+        throw new UnsupportedOperationException("The paged index is read only.");
+    }
+
+    @Override
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    /**
+     * @return number of pages of the header and the nodes
+     */
+    @Override
+    public int pageCount()
+    {
+        return pageCount;
+    }
+
+    /**
+     * @return number of levels, 1 if the root is a leaf
+     */
+    public int height()
+    {
+        return height;
+    }
+
+    public int size()
+    {
+        return keyCount;
+    }
+
+    /**
+     * @return the cache of the nodes, null if the file is mapped
+     */
+    public BufferPool getBufferPool()
+    {
+        return pool;
+    }
+
+    public boolean isMapped()
+    {
+        return segments != null;
+    }
+
+    /**
+     * @return number of node pages read from the file, or visited in the mapping if it is mapped
+     */
+    public long nodeReads()
+    {
+        return nodeReads.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+    }
+
+    /**
+     * write an index file
+     *
+     * @param filename - index file
+     * @param pageSize - page size
+     * @param map - keys and their postings
+     */
+    public static void write(String filename, int pageSize, SortedMap<Integer, ? extends List<BTree.Data>> map) throws IOException
+    {
+        if(pageSize > HeapPage.MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size " + pageSize + " is larger than " + HeapPage.MAX_PAGE_SIZE + ".");
+        int n = map.size();
+        int leaves = Math.max(1, (n + leafCapacity(pageSize) - 1) / leafCapacity(pageSize));
+        // number of nodes of every level, from the leaves up
+        List<Integer> levels = new ArrayList<Integer>();
+        levels.add(leaves);
+        int nodes = leaves;
+        for(int count = leaves; count > 1; )
+        {
+            count = (count + internalCapacity(pageSize)) / (internalCapacity(pageSize) + 1);
+            levels.add(count);
+            nodes += count;
+        }
+        int postingsPage = 1 + nodes;
+
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            ByteBuffer postings = ByteBuffer.allocate(1 << 16);
+            long postingsOffset = 0;
+            long postingsPosition = (long) postingsPage * pageSize;
+
+            // the leaves, the keys are spread evenly
+            int[] firstKeys = new int[leaves];
+            int[] pages = new int[leaves];
+            Iterator<? extends Map.Entry<Integer, ? extends List<BTree.Data>>> entries = map.entrySet().iterator();
+            for(int i = 0; i < leaves; ++ i)
+            {
+                int count = n / leaves + (i < n % leaves ? 1 : 0);
+                clear(page);
+                page.putShort(NODE_LEAF, (short) 1);
+                page.putShort(NODE_COUNT, (short) count);
+                page.putInt(NODE_NEXT, i + 1 < leaves ? 2 + i : -1);
+                for(int j = 0; j < count; ++ j)
+                {
+                    Map.Entry<Integer, ? extends List<BTree.Data>> entry = entries.next();
+                    List<BTree.Data> list = entry.getValue();
+                    if(j == 0)
+                        firstKeys[i] = entry.getKey();
+                    int at = NODE_HEADER_SIZE + j * LEAF_ENTRY_SIZE;
+                    page.putInt(at, entry.getKey());
+                    page.putInt(at + 4, list.size());
+                    page.putLong(at + 8, postingsOffset);
+                    for(BTree.Data data : list)
+                    {
+                        if(postings.remaining() < POSTING_SIZE)
+                            postingsPosition = flush(channel, postings, postingsPosition);
+                        postings.putInt(data.blockNum).putInt(data.slot);
+                    }
+                    postingsOffset += (long) list.size() * POSTING_SIZE;
+                }
+                pages[i] = 1 + i;
+                write(channel, page, pages[i], pageSize);
+            }
+            flush(channel, postings, postingsPosition);
+
+            // the internal levels, the children are spread evenly
+            int next = 1 + leaves;
+            for(int level = 1; level < levels.size(); ++ level)
+            {
+                int count = levels.get(level);
+                int[] upperKeys = new int[count];
+                int[] upperPages = new int[count];
+                int child = 0;
+                for(int i = 0; i < count; ++ i)
+                {
+                    int children = pages.length / count + (i < pages.length % count ? 1 : 0);
+                    clear(page);
+                    page.putShort(NODE_COUNT, (short) (children - 1));
+                    page.putInt(NODE_NEXT, -1);
+                    upperKeys[i] = firstKeys[child];
+                    for(int j = 0; j < children; ++ j, ++ child)
+                    {
+                        if(j > 0)
+                            page.putInt(keyAt(j - 1), firstKeys[child]);
+                        page.putInt(childAt(pageSize, j), pages[child]);
+                    }
+                    upperPages[i] = next ++;
+                    write(channel, page, upperPages[i], pageSize);
+                }
+                firstKeys = upperKeys;
+                pages = upperPages;
+            }
+
+            clear(page);
+            page.putInt(0, MAGIC);
+            page.putInt(4, pageSize);
+            page.putInt(ROOT, pages[0]);
+            page.putInt(HEIGHT, levels.size());
+            page.putInt(KEY_COUNT, n);
+            page.putInt(POSTINGS_PAGE, postingsPage);
+            write(channel, page, 0, pageSize);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    private static void clear(ByteBuffer page)
+    {
+        Arrays.fill(page.array(), (byte) 0);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer page, int pageNum, int pageSize) throws IOException
+    {
+        page.clear();
+        long position = (long) pageNum * pageSize;
+        while(page.hasRemaining())
+            channel.write(page, position + page.position());
+    }
+
+    /**
+     * write the buffered postings
+     *
+     * @return position of the next postings
+     */
+    private static long flush(FileChannel channel, ByteBuffer postings, long position) throws IOException
+    {
+        postings.flip();
+        while(postings.hasRemaining())
+            position += channel.write(postings, position);
+        postings.clear();
+        return position;
+    }
+}
@@ -1,7 +1,6 @@
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -10,18 +9,24 @@ import java.util.List;
  @SuppressWarnings("unchecked")
 public class Search {
 
-    private static BTree<Integer, List<BTree.Data>> btree = new BTree<Integer, List<BTree.Data>>(3);
+    //the keys are ints, the index is searched without boxing them
+    private static IntBTree<List<BTree.Data>> btree = new IntBTree<List<BTree.Data>>(3);
 
     public static void main(String[] args) {
-        read();
+        //the paged index isn't loaded, only the pages on the path to the key are read
+        boolean paged = new File(BTree.pagedIndexfile).exists();
+        if (!paged)
+            read();
         Integer hour = 7;
         long endTime1=System.currentTimeMillis();
-        List list = btree.search(hour);
-        for (int j = 0; j < list.size(); j++) {
-            BTree.Data data = (BTree.Data)list.get(j);
-            BTree.searchFromHeapFile(data);
-        }
+        List list = paged ? searchPagedIndex(hour) : btree.search(hour);
+        if (list == null)
+            list = Collections.emptyList();
+        //every page holding a record of the key is read once
+        BTree.searchFromHeapFile(list);
         long endTime2=System.currentTimeMillis();
+        BTree.printReadStats(list.size());
+        BTree.closeHeapReader();
 
       //  BTree.searchKeyByStupid(7);
       //  long endTime3=System.currentTimeMillis();
@@ -31,18 +36,39 @@ public class Search {
 
     }
 
-    //at the start of the program, read object from file
-    public static void read(){
+    //look up a key in the paged index
+    public static List<BTree.Data> searchPagedIndex(int key){
         try {
-            FileInputStream reader = new FileInputStream(BTree.indexfile);
-            ObjectInputStream objectInputStream = new ObjectInputStream(reader);
-            btree = (BTree<Integer, List<BTree.Data>>)objectInputStream.readObject();
-            objectInputStream.close();
-        } catch (FileNotFoundException e) {
+            //mapped, so opening it reads the header only
+            PagedIndex index = PagedIndex.map(BTree.pagedIndexfile, BTree.pageSize);
+            try {
+                List<BTree.Data> list = index.search(key);
+                System.out.println("paged index: height "+index.height()+", node pages read: "+index.nodeReads());
+                return list;
+            } finally {
+                index.close();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
+            return null;
+        }
+    }
+
+    //look up a key in a secondary index saved by BTree#saveIndexes, picked by name: sensor_id, date_hour, hour or weekday
+    public static List<BTree.Data> searchIndex(String name, int key){
+        try {
+            return IndexManager.read(BTree.indexfile, name).search(name, key);
         } catch (IOException e) {
             e.printStackTrace();
-        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    //at the start of the program, read object from file
+    public static void read(){
+        try {
+            btree = IntBTree.readFrom(BTree.indexfile, Codecs.POSTINGS);
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -0,0 +1,24 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of the keys or the values of an index, see {@link Codecs} for the built-in ones
+ *
+ * @param <T> - type of the encoded objects
+ */
+public interface Codec<T>
+{
+    /**
+     * @return number of bytes of the encoding of value
+     */
+    int size(T value);
+
+    /**
+     * write value at the position of out, moving it after the encoding
+     */
+    void encode(T value, ByteBuffer out);
+
+    /**
+     * read a value at the position of in, moving it after the encoding
+     */
+    T decode(ByteBuffer in);
+}
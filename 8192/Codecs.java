@@ -0,0 +1,223 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Built-in {@link Codec}s.
+ * <p/>
+ * Counts, lengths and the fields of {@link BTree.Data} are stored as varints of 7 bits per
+ * byte, the high bit of a byte tells if another byte follows.
+ */
+public final class Codecs
+{
+    private Codecs()
+    {
+    }
+
+    /** 4 bytes, big endian */
+    public static final Codec<Integer> INTEGER = new Codec<Integer>() {
+        @Override
+        public int size(Integer value)
+        {
+            return 4;
+        }
+
+        @Override
+        public void encode(Integer value, ByteBuffer out)
+        {
+            out.putInt(value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer in)
+        {
+            return in.getInt();
+        }
+    };
+
+    /** 8 bytes, big endian */
+    public static final Codec<Long> LONG = new Codec<Long>() {
+        @Override
+        public int size(Long value)
+        {
+            return 8;
+        }
+
+        @Override
+        public void encode(Long value, ByteBuffer out)
+        {
+            out.putLong(value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer in)
+        {
+            return in.getLong();
+        }
+    };
+
+    /** length and UTF-8 bytes */
+    public static final Codec<String> STRING = new Codec<String>() {
+        @Override
+        public int size(String value)
+        {
+            int len = value.getBytes(StandardCharsets.UTF_8).length;
+            return varintSize(len) + len;
+        }
+
+        @Override
+        public void encode(String value, ByteBuffer out)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarint(out, bytes.length);
+            out.put(bytes);
+        }
+
+        @Override
+        public String decode(ByteBuffer in)
+        {
+            int len = getVarint(in);
+            byte[] bytes = new byte[len];
+            in.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /** blockNum and slot */
+    public static final Codec<BTree.Data> DATA = new Codec<BTree.Data>() {
+        @Override
+        public int size(BTree.Data value)
+        {
+            return varintSize(value.blockNum) + varintSize(value.slot);
+        }
+
+        @Override
+        public void encode(BTree.Data value, ByteBuffer out)
+        {
+            putVarint(out, value.blockNum);
+            putVarint(out, value.slot);
+        }
+
+        @Override
+        public BTree.Data decode(ByteBuffer in)
+        {
+            int blockNum = getVarint(in);
+            return new BTree.Data(blockNum, getVarint(in));
+        }
+    };
+
+    /** number of addresses, number of bytes and the bytes of {@link Postings}, decoded as Postings */
+    public static final Codec<List<BTree.Data>> POSTINGS = new Codec<List<BTree.Data>>() {
+        @Override
+        public int size(List<BTree.Data> value)
+        {
+            int bytes = postings(value).byteSize();
+            return varintSize(value.size()) + varintSize(bytes) + bytes;
+        }
+
+        @Override
+        public void encode(List<BTree.Data> value, ByteBuffer out)
+        {
+            Postings postings = postings(value);
+            putVarint(out, postings.size());
+            putVarint(out, postings.byteSize());
+            out.put(postings.bytes(), 0, postings.byteSize());
+        }
+
+        @Override
+        public List<BTree.Data> decode(ByteBuffer in)
+        {
+            int size = getVarint(in);
+            int length = getVarint(in);
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            return Postings.wrap(bytes, length, size);
+        }
+
+        private Postings postings(List<BTree.Data> value)
+        {
+            if(value instanceof Postings)
+                return (Postings) value;
+            Postings postings = new Postings();
+            postings.addAll(value);
+            return postings;
+        }
+    };
+
+    /**
+     * @return a codec of lists, stored as the size and the elements
+     */
+    public static <T> Codec<List<T>> list(final Codec<T> element)
+    {
+        return new Codec<List<T>>() {
+            @Override
+            public int size(List<T> value)
+            {
+                int size = varintSize(value.size());
+                for(T t : value)
+                    size += element.size(t);
+                return size;
+            }
+
+            @Override
+            public void encode(List<T> value, ByteBuffer out)
+            {
+                putVarint(out, value.size());
+                for(T t : value)
+                    element.encode(t, out);
+            }
+
+            @Override
+            public List<T> decode(ByteBuffer in)
+            {
+                int size = getVarint(in);
+                List<T> list = new ArrayList<T>(size);
+                for(int i = 0; i < size; ++ i)
+                    list.add(element.decode(in));
+                return list;
+            }
+        };
+    }
+
+    /**
+     * @return number of bytes of the varint of value, negative values take 5 bytes
+     */
+    public static int varintSize(int value)
+    {
+        int size = 1;
+        while((value & ~0x7F) != 0)
+        {
+            value >>>= 7;
+            ++ size;
+        }
+        return size;
+    }
+
+    public static void putVarint(ByteBuffer out, int value)
+    {
+        while((value & ~0x7F) != 0)
+        {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    public static int getVarint(ByteBuffer in)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            if(shift > 28)
+                throw new IllegalArgumentException("Varint longer than 5 bytes at " + in.position() + ".");
+            b = in.get();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while(b < 0);
+        return value;
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Heap file whose pages are compressed one by one, see {@link PageCompressor}.
+ * <p/>
+ * Layout of the file:
+ * <pre>
+ * | header | offset table | frame 0 | frame 1 | ... |
+ * </pre>
+ * The header holds the magic number, the page size and the number of pages. The offset
+ * table holds the offset of every frame and the end of the last one, so the frame of a page
+ * is found without reading the other ones. A frame of pageSize bytes is a page stored as it
+ * is, because it didn't get smaller.
+ * <p/>
+ * The magic number can't start a slotted page, its slot count would be larger than a page,
+ * so {@link HeapFileReader} tells the two formats apart. A compressed heap file is read only.
+ */
+public class CompressedHeapFile
+{
+    /** "HLZ1" */
+    public static final int MAGIC = 0x484C5A31;
+    /** magic, page size, page count, reserved */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * @return offset of the offset table entry of a page
+     */
+    public static long tableEntry(int blockNum)
+    {
+        return HEADER_SIZE + (long) blockNum * 8;
+    }
+
+    /**
+     * @return if the first bytes of a heap file are the header of a compressed heap file
+     */
+    public static boolean isCompressed(ByteBuffer start)
+    {
+        return start.remaining() >= HEADER_SIZE && start.getInt(start.position()) == MAGIC;
+    }
+
+    /**
+     * replace a heap file by its compressed form
+     *
+     * @param heapfile - heap file of slotted pages
+     * @param pageSize - page size
+     * @return size of the compressed heap file
+     */
+    public static long compress(String heapfile, int pageSize) throws IOException
+    {
+        Path source = Paths.get(heapfile);
+        Path target = Paths.get(heapfile + ".tmp");
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try
+        {
+            int pageCount = (int) (in.size() / pageSize);
+            ByteBuffer table = ByteBuffer.allocate((pageCount + 1) * 8);
+            ByteBuffer page = ByteBuffer.allocate(pageSize);
+            byte[] frame = new byte[PageCompressor.maxCompressedSize(pageSize)];
+            PageCompressor compressor = new PageCompressor();
+            long position = tableEntry(pageCount + 1);
+            for(int blockNum = 0; blockNum < pageCount; ++ blockNum)
+            {
+                page.clear();
+                while(page.hasRemaining())
+                {
+                    if(in.read(page, HeapFileReader.position(blockNum, page.position(), pageSize)) < 0)
+                        throw new IOException("Page " + blockNum + " is truncated.");
+                }
+                int len = compressor.compress(page.array(), 0, pageSize, frame);
+                ByteBuffer bytes = len < pageSize ? ByteBuffer.wrap(frame, 0, len) : ByteBuffer.wrap(page.array());
+                table.putLong(position);
+                while(bytes.hasRemaining())
+                    position += out.write(bytes, position);
+            }
+            table.putLong(position);
+            table.flip();
+            write(out, table, HEADER_SIZE);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(pageSize).putInt(pageCount).putInt(0).flip();
+            write(out, header, 0);
+        }
+        finally
+        {
+            out.close();
+            in.close();
+        }
+        Files.move(target, source, StandardCopyOption.REPLACE_EXISTING);
+        return Files.size(source);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while(buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Scanner of a CSV file working on the raw bytes of a memory-mapped file.
+ * <p/>
+ * {@link #next()} moves to the next record and finds its field boundaries in one pass,
+ * no String is created. The fields are parsed in place and the raw bytes of the record
+ * can be copied straight to a page buffer through {@link #record()}.
+ * <p/>
+ * The file is mapped in windows of at most 1 GB, a record crossing the end of a window
+ * is read again from a window starting at the record.
+ */
+public class CsvScanner implements Closeable
+{
+    private static final long MAX_WINDOW_SIZE = 1L << 30;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long windowSize;
+    /** end of the scanned range */
+    private final long end;
+
+    private MappedByteBuffer window;
+    /** size of the window */
+    private int windowLength;
+    /** file offset of the window */
+    private long windowStart;
+    /** file offset of the next record */
+    private long next;
+
+    /** the current record, offsets in the window */
+    private int recordStart;
+    private int recordEnd;
+    /** offsets of the commas of the current record, fields[i] ends at commas[i] */
+    private int[] commas = new int[16];
+    private int commaCount;
+    /** the field last parsed by {@link #dateTimeField(int)} in the current record, -1 for none */
+    private int dateTimeIndex = -1;
+    private int dateTime;
+    /** runs of digits of the field parsed by {@link #dateTimeField(int)} */
+    private final int[] dateTimeGroups = new int[4];
+
+    public CsvScanner(String filename) throws IOException
+    {
+        this(filename, 0, -1);
+    }
+
+    /**
+     * scan the records in [start, end) of the file, start and end must be at the start of a line
+     *
+     * @param filename - CSV file
+     * @param start - first byte
+     * @param end - end of the range, -1 for the end of the file
+     */
+    public CsvScanner(String filename, long start, long end) throws IOException
+    {
+        this(filename, start, end, MAX_WINDOW_SIZE);
+    }
+
+    CsvScanner(String filename, long start, long end, long windowSize) throws IOException
+    {
+        this.file = new RandomAccessFile(filename, "r");
+        this.channel = file.getChannel();
+        this.end = end < 0 ? channel.size() : Math.min(end, channel.size());
+        this.windowSize = windowSize;
+        this.next = start;
+        map(start);
+    }
+
+    private void map(long start) throws IOException
+    {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, end - start));
+        windowLength = window.limit();
+    }
+
+    /**
+     * move to the next record, empty lines are skipped
+     *
+     * @return false, if there are no more records
+     */
+    public boolean next() throws IOException
+    {
+        window.clear();
+        dateTimeIndex = -1;
+        while(next < end)
+        {
+            if(!scan())
+            {
+                // the record crosses the end of the window
+                if(next == windowStart)
+                    throw new IOException("Record at " + next + " is longer than " + windowSize + " bytes.");
+                map(next);
+                continue;
+            }
+            if(recordEnd > recordStart)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * scan the record at next in the window
+     *
+     * @return false, if the record isn't complete in the window
+     */
+    private boolean scan()
+    {
+        int limit = windowLength;
+        int start = (int) (next - windowStart);
+        int i = start;
+        commaCount = 0;
+        while(i < limit)
+        {
+            byte b = window.get(i);
+            if(b == '\n')
+                break;
+            if(b == ',')
+            {
+                if(commaCount == commas.length)
+                {
+                    int[] grown = new int[commas.length * 2];
+                    System.arraycopy(commas, 0, grown, 0, commaCount);
+                    commas = grown;
+                }
+                commas[commaCount ++] = i;
+            }
+            ++ i;
+        }
+        if(i == limit && windowStart + limit < end)
+            return false;
+        recordStart = start;
+        recordEnd = i;
+        if(recordEnd > recordStart && window.get(recordEnd - 1) == '\r')
+            recordEnd --;
+        next = windowStart + Math.min(i + 1, limit);
+        return true;
+    }
+
+    /**
+     * @return the window, from position to limit is the current record. Valid until the next call of {@link #next()}
+     */
+    public ByteBuffer record()
+    {
+        window.limit(recordEnd);
+        window.position(recordStart);
+        return window;
+    }
+
+    /**
+     * copy the current record to dst
+     *
+     * @param dst - destination
+     * @param offset - offset in dst
+     */
+    public void copyTo(byte[] dst, int offset)
+    {
+        window.position(recordStart);
+        window.get(dst, offset, recordEnd - recordStart);
+    }
+
+    /**
+     * @return size of the current record in bytes, without the line terminator
+     */
+    public int length()
+    {
+        return recordEnd - recordStart;
+    }
+
+    /**
+     * @return file offset of the current record
+     */
+    public long position()
+    {
+        return windowStart + recordStart;
+    }
+
+    /**
+     * @return file offset of the record after the current one
+     */
+    public long nextPosition()
+    {
+        return next;
+    }
+
+    public int fieldCount()
+    {
+        return commaCount + 1;
+    }
+
+    /**
+     * @param field - index of the field
+     * @return offset of the field in the window
+     */
+    private int fieldStart(int field)
+    {
+        return field == 0 ? recordStart : commas[field - 1] + 1;
+    }
+
+    private int fieldEnd(int field)
+    {
+        return field == commaCount ? recordEnd : commas[field];
+    }
+
+    /**
+     * parse a field of the current record as a decimal int, like {@link Integer#parseInt(String)}
+     *
+     * @param field - index of the field
+     * @return the value
+     */
+    public int intField(int field)
+    {
+        int i = fieldStart(field);
+        int to = fieldEnd(field);
+        boolean negative = false;
+        if(i < to && (window.get(i) == '-' || window.get(i) == '+'))
+        {
+            negative = window.get(i) == '-';
+            ++ i;
+        }
+        if(i == to)
+            throw new NumberFormatException("Empty number in field " + field + " of the record at " + position());
+        // accumulate negatively, so Integer.MIN_VALUE can be parsed
+        int value = 0;
+        for(; i < to; ++ i)
+        {
+            int digit = window.get(i) - '0';
+            if(digit < 0 || digit > 9 || value < (Integer.MIN_VALUE + digit) / 10)
+                throw new NumberFormatException("Bad number in field " + field + " of the record at " + position());
+            value = value * 10 - digit;
+        }
+        if(!negative)
+        {
+            if(value == Integer.MIN_VALUE)
+                throw new NumberFormatException("Bad number in field " + field + " of the record at " + position());
+            value = -value;
+        }
+        return value;
+    }
+
+    /**
+     * parse a field of the current record as a date and an hour, like the Date_Time field
+     * "11/01/2019 05:00:00 PM" (month/day/year, 12 hour clock) or "2019-11-01T17:00:00"
+     * (ISO 8601). The minutes and the seconds are ignored. The value is kept until the next
+     * record, the keys derived from the field parse it once.
+     *
+     * @param field - index of the field
+     * @return the date and the hour packed as the decimal yyyyMMddHH, 2019110117 for the examples
+     * @throws NumberFormatException if the field isn't a date and an hour of these formats
+     */
+    public int dateTimeField(int field)
+    {
+        if(field == dateTimeIndex)
+            return dateTime;
+        int i = fieldStart(field);
+        int to = fieldEnd(field);
+        // the first four runs of digits: the date in either order and the hour
+        int[] groups = dateTimeGroups;
+        int count = 0;
+        int firstDigits = 0;
+        // 0 for a 24 hour clock, else 'A' or 'P'
+        int marker = 0;
+        while(i < to)
+        {
+            byte b = window.get(i);
+            if(b >= '0' && b <= '9')
+            {
+                int value = 0;
+                int digits = 0;
+                for(; i < to && window.get(i) >= '0' && window.get(i) <= '9'; ++ i, ++ digits)
+                    value = value * 10 + window.get(i) - '0';
+                if(count < groups.length && digits > 4)
+                    throw badDateTime(field);
+                if(count == 0)
+                    firstDigits = digits;
+                if(count < groups.length)
+                    groups[count ++] = value;
+                continue;
+            }
+            // AM or PM, after the time only
+            int upper = b & ~0x20;
+            if((upper == 'A' || upper == 'P') && count == groups.length && marker == 0 && i + 1 < to
+                    && (window.get(i + 1) & ~0x20) == 'M')
+            {
+                marker = upper;
+                i += 2;
+                continue;
+            }
+            // the separators, and the time zone of ISO 8601 which is ignored
+            if(b != '/' && b != '-' && b != ':' && b != ' ' && b != 'T' && b != '.' && b != '+' && b != 'Z')
+                throw badDateTime(field);
+            ++ i;
+        }
+        if(count < groups.length || firstDigits != 4 && firstDigits > 2)
+            throw badDateTime(field);
+        int year = firstDigits == 4 ? groups[0] : groups[2];
+        int month = firstDigits == 4 ? groups[1] : groups[0];
+        int day = firstDigits == 4 ? groups[2] : groups[1];
+        int hour = groups[3];
+        if(marker != 0)
+        {
+            if(hour < 1 || hour > 12)
+                throw badDateTime(field);
+            hour = hour % 12 + (marker == 'P' ? 12 : 0);
+        }
+        if(month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || year > 2146)
+            throw badDateTime(field);
+        dateTime = ((year * 100 + month) * 100 + day) * 100 + hour;
+        dateTimeIndex = field;
+        return dateTime;
+    }
+
+    private NumberFormatException badDateTime(int field)
+    {
+        return new NumberFormatException("Bad date and hour in field " + field + " of the record at " + position());
+    }
+
+    /**
+     * @return the last field of the current record parsed as a decimal int
+     */
+    public int lastIntField()
+    {
+        return intField(commaCount);
+    }
+
+    /**
+     * decode a field of the current record, for the fields which are needed as String
+     *
+     * @param field - index of the field
+     * @return the field
+     */
+    public String field(int field)
+    {
+        int from = fieldStart(field);
+        byte[] bytes = new byte[fieldEnd(field) - from];
+        window.position(from);
+        window.get(bytes);
+        return new String(bytes);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,271 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-write access to the records of the heap file.
+ * <p/>
+ * Records are inserted, updated in place and deleted in the slotted pages (see {@link HeapPage})
+ * without rewriting the heap file. The free space of every page is kept in memory, so an
+ * insert reuses the space of deleted records before the file grows.
+ * <p/>
+ * The pages are read and changed in the frames of a {@link BufferPool}. A changed page is
+ * written when it is evicted, or by {@link #flush()} and {@link #close()}.
+ * <p/>
+ * A compressed heap file (see {@link CompressedHeapFile}) is read-only, it is refused.
+ */
+public class HeapFile implements Closeable, PageStore
+{
+    private static final int DEFAULT_POOL_PAGES = 1024;
+
+    private final FileChannel channel;
+    private final int pageSize;
+    /** number of pages */
+    private int pageCount;
+    /** largest record every page can take */
+    private int[] freeSpace;
+    /** first page to look for room, the pages before it had no room at the last insert */
+    private int hint = 0;
+
+    private final BufferPool pool;
+    /** view of a pinned page */
+    private final HeapPage page;
+
+    public HeapFile(String filename, int pageSize) throws IOException
+    {
+        this(filename, pageSize, DEFAULT_POOL_PAGES);
+    }
+
+    /**
+     * @param filename - heap file
+     * @param pageSize - page size
+     * @param poolPages - number of pages of the buffer pool
+     */
+    public HeapFile(String filename, int pageSize, int poolPages) throws IOException
+    {
+        this.pageSize = pageSize;
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            checkNotCompressed(filename);
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        this.pool = new BufferPool(this, poolPages);
+        this.page = new HeapPage(pageSize);
+
+        pageCount = (int) (channel.size() / pageSize);
+        freeSpace = new int[Math.max(16, pageCount)];
+        for(int blockNum = 0; blockNum < pageCount; ++ blockNum)
+        {
+            BufferPool.Frame frame = pin(blockNum);
+            freeSpace[blockNum] = page.insertableSize();
+            pool.unpin(frame, false);
+        }
+    }
+
+    /**
+     * the frames of a compressed heap file aren't slotted pages, a change would corrupt them
+     */
+    private void checkNotCompressed(String filename) throws IOException
+    {
+        ByteBuffer start = ByteBuffer.allocate(CompressedHeapFile.HEADER_SIZE);
+        while(start.hasRemaining() && channel.read(start, start.position()) >= 0)
+            ;
+        start.flip();
+        if(CompressedHeapFile.isCompressed(start))
+            throw new IOException("Heap file " + filename + " is compressed, it can only be read, see HeapFileReader.");
+    }
+
+    @Override
+    public void load(int blockNum, byte[] dst) throws IOException
+    {
+        if(blockNum < 0 || blockNum >= pageCount)
+            throw new IOException("Page " + blockNum + " is out of the heap file of " + pageCount + " pages.");
+        ByteBuffer buffer = ByteBuffer.wrap(dst, 0, pageSize);
+        long position = HeapFileReader.position(blockNum, 0, pageSize);
+        while(buffer.hasRemaining())
+        {
+            if(channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Page " + blockNum + " is truncated.");
+        }
+    }
+
+    @Override
+    public void store(int blockNum, byte[] src) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(src, 0, pageSize);
+        long position = HeapFileReader.position(blockNum, 0, pageSize);
+        while(buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+    }
+
+    /**
+     * pin a page and point the page view to it
+     */
+    private BufferPool.Frame pin(int blockNum) throws IOException
+    {
+        BufferPool.Frame frame = pool.pin(blockNum);
+        page.wrap(frame.buffer(), 0, pageSize);
+        return frame;
+    }
+
+    /**
+     * unpin a changed page and keep its free space
+     */
+    private void unpinDirty(BufferPool.Frame frame)
+    {
+        int blockNum = frame.blockNum();
+        int free = page.insertableSize();
+        if(free > freeSpace[blockNum])
+            hint = Math.min(hint, blockNum);
+        freeSpace[blockNum] = free;
+        pool.unpin(frame, true);
+    }
+
+    /**
+     * read a record
+     *
+     * @param data - address of the record
+     * @return the record, null if the slot doesn't hold a record
+     */
+    public synchronized byte[] read(BTree.Data data) throws IOException
+    {
+        BufferPool.Frame frame = pin(data.blockNum);
+        try
+        {
+            if(!page.isUsed(data.slot))
+                return null;
+            byte[] bytes = new byte[page.length(data.slot)];
+            page.get(data.slot, bytes, 0);
+            return bytes;
+        }
+        finally
+        {
+            pool.unpin(frame, false);
+        }
+    }
+
+    /**
+     * insert a record in the first page with room for it, or in a new page
+     *
+     * @param record - bytes of the record
+     * @return the address of the record
+     */
+    public synchronized BTree.Data insert(byte[] record) throws IOException
+    {
+        if(record.length > HeapPage.maxRecordSize(pageSize))
+            throw new IllegalArgumentException("Record of " + record.length + " bytes doesn't fit in a page of " + pageSize + " bytes.");
+        int blockNum = hint;
+        while(blockNum < pageCount && freeSpace[blockNum] < record.length)
+            ++ blockNum;
+        hint = blockNum;
+        BufferPool.Frame frame;
+        if(blockNum == pageCount)
+        {
+            if(pageCount == freeSpace.length)
+            {
+                int[] grown = new int[freeSpace.length * 2];
+                System.arraycopy(freeSpace, 0, grown, 0, pageCount);
+                freeSpace = grown;
+            }
+            frame = pool.pinNew(blockNum);
+            pageCount ++;
+            page.wrap(frame.buffer(), 0, pageSize).init();
+        }
+        else
+            frame = pin(blockNum);
+        int slot = page.insert(ByteBuffer.wrap(record));
+        unpinDirty(frame);
+        return new BTree.Data(blockNum, slot);
+    }
+
+    /**
+     * replace a record. The record stays in its page if the page has room for it,
+     * otherwise it is moved to another page and gets a new address.
+     *
+     * @param data - address of the record
+     * @param record - the new record
+     * @return the address of the record
+     */
+    public synchronized BTree.Data update(BTree.Data data, byte[] record) throws IOException
+    {
+        BufferPool.Frame frame = pin(data.blockNum);
+        if(!page.isUsed(data.slot))
+        {
+            pool.unpin(frame, false);
+            throw new IllegalArgumentException("Slot " + data.slot + " of page " + data.blockNum + " doesn't hold a record.");
+        }
+        if(page.update(data.slot, ByteBuffer.wrap(record)))
+        {
+            unpinDirty(frame);
+            return data;
+        }
+        pool.unpin(frame, false);
+        delete(data);
+        return insert(record);
+    }
+
+    /**
+     * delete a record, its space is reused by later inserts
+     *
+     * @param data - address of the record
+     * @return false, if the slot doesn't hold a record
+     */
+    public synchronized boolean delete(BTree.Data data) throws IOException
+    {
+        BufferPool.Frame frame = pin(data.blockNum);
+        if(!page.delete(data.slot))
+        {
+            pool.unpin(frame, false);
+            return false;
+        }
+        unpinDirty(frame);
+        return true;
+    }
+
+    /**
+     * write the changed pages
+     */
+    public synchronized void flush() throws IOException
+    {
+        pool.flush();
+    }
+
+    @Override
+    public int pageCount()
+    {
+        return pageCount;
+    }
+
+    @Override
+    public int getPageSize()
+    {
+        return pageSize;
+    }
+
+    public BufferPool getBufferPool()
+    {
+        return pool;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try
+        {
+            pool.flush();
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Page-at-a-time writer of the heap file.
+ * <p/>
+ * Records are appended to a slotted page (see {@link HeapPage}) in a page buffer in memory.
+ * When a record doesn't fit into the free space of the page, the record starts the next page.
+ * Full pages are written through a {@link FileChannel}, several pages per write.
+ * <p/>
+ * Pages are written at their position in the file, so several writers can share one
+ * channel and fill disjoint ranges of pages, see {@link ParallelIngest}. A page can be
+ * shared by two writers: the second one continues the slots and the records of the first one.
+ * Then each writer only writes its own slots and records, and the page header is written
+ * by the writer which adds the last record of the page.
+ */
+public class HeapFileWriter implements Closeable
+{
+    private static final int DEFAULT_PAGES_PER_WRITE = 16;
+
+    private final FileChannel channel;
+    /** if the writer opened the channel and closes it */
+    private final boolean ownsChannel;
+    private final int pageSize;
+    /** buffer of pagesPerWrite pages */
+    private final byte[] buffer;
+    private final ByteBuffer byteBuffer;
+    /** view of the current page */
+    private final HeapPage page;
+    /** start of the current page in the buffer */
+    private int pageStart = 0;
+    /** the current page */
+    private int blockNum;
+    /** file offset of the buffer */
+    private long bufferPosition;
+
+    /** the first page in the buffer is continued from another writer */
+    private boolean continued;
+    /** slots and records of the first page written by the other writer */
+    private final int firstSlot;
+    private final int firstFreeEnd;
+    /** if the header of the last page is written, false if another writer continues the page */
+    private final boolean writeTailHeader;
+
+    public HeapFileWriter(String filename, int pageSize) throws IOException
+    {
+        this(filename, pageSize, DEFAULT_PAGES_PER_WRITE);
+    }
+
+    public HeapFileWriter(String filename, int pageSize, int pagesPerWrite) throws IOException
+    {
+        this(FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), true, pageSize, pagesPerWrite, 0, 0, pageSize, true);
+    }
+
+    /**
+     * create a writer which continues the heap file from the given page.
+     * The channel is shared, it is not closed by the writer.
+     *
+     * @param channel - channel of the heap file
+     * @param pageSize - page size
+     * @param pagesPerWrite - number of pages written at once
+     * @param blockNum - page of the first record
+     * @param slotCount - slots of the page used by the previous writer
+     * @param freeEnd - start of the records of the previous writer in the page
+     * @param writeTailHeader - false, if the next writer continues the last page
+     */
+    public HeapFileWriter(FileChannel channel, int pageSize, int pagesPerWrite, int blockNum, int slotCount, int freeEnd,
+                          boolean writeTailHeader)
+    {
+        this(channel, false, pageSize, pagesPerWrite, blockNum, slotCount, freeEnd, writeTailHeader);
+    }
+
+    private HeapFileWriter(FileChannel channel, boolean ownsChannel, int pageSize, int pagesPerWrite, int blockNum,
+                           int slotCount, int freeEnd, boolean writeTailHeader)
+    {
+        if(pagesPerWrite < 1)
+            throw new IllegalArgumentException("pagesPerWrite must be positive: " + pagesPerWrite);
+        this.channel = channel;
+        this.ownsChannel = ownsChannel;
+        this.pageSize = pageSize;
+        this.buffer = new byte[pageSize * pagesPerWrite];
+        this.byteBuffer = ByteBuffer.wrap(buffer);
+        this.blockNum = blockNum;
+        this.bufferPosition = (long) blockNum * pageSize;
+        this.firstSlot = slotCount;
+        this.firstFreeEnd = freeEnd;
+        this.continued = slotCount > 0;
+        this.writeTailHeader = writeTailHeader;
+        this.page = new HeapPage(byteBuffer, 0, pageSize);
+        page.init();
+        if(continued)
+            page.resume(slotCount, freeEnd);
+    }
+
+    /**
+     * append a record to the heap file
+     *
+     * @param record - bytes of the record
+     * @param offset - start of the record in record
+     * @param len - size of the record
+     * @return the address of the record
+     */
+    public BTree.Data append(byte[] record, int offset, int len) throws IOException
+    {
+        reserve(len);
+        return new BTree.Data(blockNum, page.append(record, offset, len));
+    }
+
+    /**
+     * append a record to the heap file, copying it straight from a buffer to the page buffer
+     *
+     * @param record - from position to limit is the record
+     * @return the address of the record
+     */
+    public BTree.Data append(ByteBuffer record) throws IOException
+    {
+        reserve(record.remaining());
+        return new BTree.Data(blockNum, page.append(record));
+    }
+
+    /**
+     * make room for a record of len bytes in the current page, starting the next page if needed
+     */
+    private void reserve(int len) throws IOException
+    {
+        if(len > HeapPage.maxRecordSize(pageSize))
+            throw new IllegalArgumentException("Record of " + len + " bytes doesn't fit in a page of " + pageSize + " bytes.");
+        if(!page.canAppend(len))
+            nextPage();
+    }
+
+    /**
+     * start the next page
+     */
+    private void nextPage() throws IOException
+    {
+        pageStart += pageSize;
+        if(pageStart == buffer.length)
+        {
+            flush(buffer.length / pageSize, false);
+            bufferPosition += buffer.length;
+            pageStart = 0;
+        }
+        blockNum ++;
+        // clear the page in one step, the free space of the page is written as zero
+        Arrays.fill(buffer, pageStart, pageStart + pageSize, (byte) 0);
+        page.wrap(byteBuffer, pageStart, pageSize).init();
+    }
+
+    /**
+     * write the first pages of the buffer
+     *
+     * @param pages - number of pages
+     * @param tail - if the last page is the last page of the writer
+     */
+    private void flush(int pages, boolean tail) throws IOException
+    {
+        int from = 0;
+        if(continued)
+        {
+            // the header is written if this writer adds the last record of the page
+            writePart(0, firstSlot, firstFreeEnd, !tail || pages > 1 || writeTailHeader);
+            continued = false;
+            from = 1;
+        }
+        boolean sharedTail = tail && !writeTailHeader && pages > from;
+        int to = sharedTail ? pages - 1 : pages;
+        if(to > from)
+            write(from * pageSize, (to - from) * pageSize);
+        if(sharedTail)
+            writePart(to, 0, pageSize, false);
+    }
+
+    /**
+     * write the slots from fromSlot on and the records before recordEnd of a page of the buffer
+     */
+    private void writePart(int index, int fromSlot, int recordEnd, boolean header) throws IOException
+    {
+        int base = index * pageSize;
+        HeapPage part = new HeapPage(byteBuffer, base, pageSize);
+        if(header)
+            write(base, HeapPage.HEADER_SIZE);
+        int slots = HeapPage.HEADER_SIZE + fromSlot * HeapPage.SLOT_SIZE;
+        write(base + slots, (part.slotCount() - fromSlot) * HeapPage.SLOT_SIZE);
+        write(base + part.freeEnd(), recordEnd - part.freeEnd());
+    }
+
+    private void write(int offset, int len) throws IOException
+    {
+        byteBuffer.limit(offset + len);
+        byteBuffer.position(offset);
+        while(byteBuffer.hasRemaining())
+            channel.write(byteBuffer, bufferPosition + byteBuffer.position());
+        byteBuffer.clear();
+    }
+
+    /**
+     * @return the current page, the last one when all records are appended
+     */
+    public int getBlockNum()
+    {
+        return blockNum;
+    }
+
+    /**
+     * write the buffered pages and close the file if the writer opened it
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush(pageStart / pageSize + 1, true);
+        }
+        finally
+        {
+            if(ownsChannel)
+                channel.close();
+        }
+    }
+}
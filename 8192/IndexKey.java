@@ -0,0 +1,14 @@
+/**
+ * Key of a secondary index, computed from a record of the CSV file, see {@link IndexKeys}
+ * for the built-in ones and {@link IndexManager}
+ */
+public interface IndexKey
+{
+    /**
+     * @param scanner - scanner on the record, the key is computed from its fields in place
+     * @return the key of the record
+     * @throws IllegalArgumentException if the record has no key, like a field which doesn't
+     * parse, the record is left out of the index
+     */
+    int key(CsvScanner scanner);
+}
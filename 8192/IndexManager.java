@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Secondary indexes of the heap file, built in the pass loading it.
+ * <p/>
+ * An index is a {@link BTree} from a key, an {@link IndexKey} computed from a column of the
+ * CSV file, to the addresses of the records of the key. The indexes are defined by a name
+ * and their key, then every record written to the heap file goes to a {@link Collector},
+ * which adds its address to the postings of its key in every index: the indexes share the
+ * addresses of the heap file, the records are read and written once. A record without a key,
+ * see {@link IndexKey#key(CsvScanner)}, is left out of the index and counted, the load goes on.
+ * <p/>
+ * A parallel load gives a collector to every chunk and merges them in the order of the
+ * chunks, so the postings are in the order of the heap file like the sequential load.
+ * {@link #build()} then loads the indexes bottom-up, they are searched by name.
+ * <p/>
+ * An index is saved to the file prefix + "." + name by {@link #save(String)}.
+ */
+public class IndexManager
+{
+    private final int t;
+    /** the keys of the indexes, by name, in the order of their definition */
+    private final Map<String, IndexKey> keys = new LinkedHashMap<String, IndexKey>();
+    /** postings of the indexes merged so far, by name, null once built */
+    private Map<String, Map<Integer, List<BTree.Data>>> maps = new HashMap<String, Map<Integer, List<BTree.Data>>>();
+    /** records left out of the indexes, by name */
+    private final Map<String, Long> skipped = new HashMap<String, Long>();
+    /** the built indexes, by name */
+    private final Map<String, BTree<Integer, List<BTree.Data>>> indexes = new LinkedHashMap<String, BTree<Integer, List<BTree.Data>>>();
+
+    /**
+     * @param t - the minimum degree of the B trees
+     */
+    public IndexManager(int t)
+    {
+        if(t < 2)
+            throw new IllegalArgumentException("A B tree needs t >= 2: " + t);
+        this.t = t;
+    }
+
+    /**
+     * The indexes of the queries on pedestrian.csv: the sensor, and the date and hour, the
+     * hour of the day and the day of the week of Date_Time. The columns are found by the
+     * title line of the file.
+     *
+     * @param filename - CSV file
+     * @param t - the minimum degree of the B trees
+     */
+    public static IndexManager pedestrian(String filename, int t) throws IOException
+    {
+        List<String> titles = new ArrayList<String>();
+        CsvScanner scanner = new CsvScanner(filename);
+        try
+        {
+            if(scanner.next())
+                for(int i = 0; i < scanner.fieldCount(); ++ i)
+                    titles.add(scanner.field(i).trim().toLowerCase());
+        }
+        finally
+        {
+            scanner.close();
+        }
+        int sensor = column(filename, titles, "sensor_id");
+        int dateTime = column(filename, titles, "date_time");
+        return new IndexManager(t)
+                .add("sensor_id", IndexKeys.column(sensor))
+                .add("date_hour", IndexKeys.dateHour(dateTime))
+                .add("hour", IndexKeys.hour(dateTime))
+                .add("weekday", IndexKeys.weekday(dateTime));
+    }
+
+    private static int column(String filename, List<String> titles, String title) throws IOException
+    {
+        int column = titles.indexOf(title);
+        if(column < 0)
+            throw new IOException(filename + " has no column " + title + ".");
+        return column;
+    }
+
+    /**
+     * define an index, before the load
+     *
+     * @param name - name of the index
+     * @param key - key of the records in the index
+     * @return this
+     */
+    public IndexManager add(String name, IndexKey key)
+    {
+        if(maps == null)
+            throw new IllegalStateException("The indexes are built, " + name + " can't be added.");
+        if(keys.containsKey(name))
+            throw new IllegalArgumentException("Index " + name + " is already defined.");
+        keys.put(name, key);
+        maps.put(name, new HashMap<Integer, List<BTree.Data>>());
+        skipped.put(name, 0L);
+        return this;
+    }
+
+    /**
+     * @return the names of the indexes, in the order of their definition
+     */
+    public Set<String> names()
+    {
+        return Collections.unmodifiableSet(keys.isEmpty() ? indexes.keySet() : keys.keySet());
+    }
+
+    /**
+     * @return a collector of the records of a sequential load, or of a chunk of a parallel load
+     */
+    public Collector newCollector()
+    {
+        if(maps == null)
+            throw new IllegalStateException("The indexes are built.");
+        return new Collector();
+    }
+
+    /**
+     * Adds the records to the postings of their keys, in every index
+     */
+    public class Collector
+    {
+        private final String[] names = keys.keySet().toArray(new String[0]);
+        private final IndexKey[] indexKeys = keys.values().toArray(new IndexKey[0]);
+        private final List<Map<Integer, List<BTree.Data>>> postings = new ArrayList<Map<Integer, List<BTree.Data>>>();
+        /** records without a key, by index */
+        private final long[] skipped = new long[names.length];
+
+        private Collector()
+        {
+            for(int i = 0; i < names.length; ++ i)
+                postings.add(new HashMap<Integer, List<BTree.Data>>());
+        }
+
+        /**
+         * @param scanner - scanner on the record
+         * @param data - address of the record in the heap file
+         */
+        public void add(CsvScanner scanner, BTree.Data data)
+        {
+            for(int i = 0; i < indexKeys.length; ++ i)
+            {
+                int key;
+                try
+                {
+                    key = indexKeys[i].key(scanner);
+                }
+                catch(IllegalArgumentException e)
+                {
+                    ++ skipped[i];
+                    continue;
+                }
+                Map<Integer, List<BTree.Data>> map = postings.get(i);
+                List<BTree.Data> list = map.get(key);
+                if(list == null)
+                {
+                    list = new Postings();
+                    map.put(key, list);
+                }
+                list.add(data);
+            }
+        }
+    }
+
+    /**
+     * append the postings of a collector to the indexes, the collectors of a parallel load are
+     * merged in the order of their chunks
+     */
+    public void merge(Collector collector)
+    {
+        if(maps == null)
+            throw new IllegalStateException("The indexes are built.");
+        for(int i = 0; i < collector.names.length; ++ i)
+        {
+            skipped.put(collector.names[i], skipped.get(collector.names[i]) + collector.skipped[i]);
+            Map<Integer, List<BTree.Data>> map = maps.get(collector.names[i]);
+            for(Map.Entry<Integer, List<BTree.Data>> entry : collector.postings.get(i).entrySet())
+            {
+                List<BTree.Data> list = map.get(entry.getKey());
+                if(list == null)
+                    map.put(entry.getKey(), entry.getValue());
+                else
+                    list.addAll(entry.getValue());
+            }
+        }
+        collector.postings.clear();
+    }
+
+    /**
+     * @param name - name of an index
+     * @return number of records left out of the index, their key couldn't be computed
+     */
+    public long skipped(String name)
+    {
+        Long count = skipped.get(name);
+        if(count != null)
+            return count;
+        // an index read from its file
+        index(name);
+        return 0;
+    }
+
+    /**
+     * build the B trees of the indexes from the postings merged, bottom-up
+     */
+    public void build()
+    {
+        if(maps == null)
+            throw new IllegalStateException("The indexes are already built.");
+        for(String name : keys.keySet())
+        {
+            SortedMap<Integer, List<BTree.Data>> sorted = new TreeMap<Integer, List<BTree.Data>>(maps.remove(name));
+            for(List<BTree.Data> list : sorted.values())
+                ((Postings) list).trimToSize();
+            BTree<Integer, List<BTree.Data>> btree = new BTree<Integer, List<BTree.Data>>(t);
+            btree.bulkLoad(sorted.entrySet().iterator());
+            indexes.put(name, btree);
+        }
+        maps = null;
+    }
+
+    /**
+     * @param name - name of an index
+     * @return the index
+     */
+    public BTree<Integer, List<BTree.Data>> index(String name)
+    {
+        BTree<Integer, List<BTree.Data>> btree = indexes.get(name);
+        if(btree == null)
+            throw new IllegalArgumentException(keys.containsKey(name) ? "Index " + name + " isn't built."
+                    : "No index " + name + ", the indexes are " + names() + ".");
+        return btree;
+    }
+
+    /**
+     * @param name - name of an index
+     * @param key - key
+     * @return the addresses of the records of the key, an empty list if there is none
+     */
+    public List<BTree.Data> search(String name, int key)
+    {
+        List<BTree.Data> list = index(name).search(key);
+        return list == null ? Collections.<BTree.Data>emptyList() : list;
+    }
+
+    /**
+     * write every index to the file prefix + "." + name
+     */
+    public void save(String prefix) throws IOException
+    {
+        for(Map.Entry<String, BTree<Integer, List<BTree.Data>>> entry : indexes.entrySet())
+            entry.getValue().writeTo(prefix + "." + entry.getKey(), Codecs.INTEGER, Codecs.POSTINGS);
+    }
+
+    /**
+     * read indexes saved by {@link #save(String)}
+     *
+     * @param prefix - prefix of the files
+     * @param names - names of the indexes
+     */
+    public static IndexManager read(String prefix, String... names) throws IOException
+    {
+        IndexManager manager = new IndexManager(2);
+        manager.maps = null;
+        for(String name : names)
+            manager.indexes.put(name, BTree.readFrom(prefix + "." + name, Codecs.INTEGER, Codecs.POSTINGS));
+        return manager;
+    }
+}
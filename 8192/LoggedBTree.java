@@ -0,0 +1,521 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link BTree} made durable by a write-ahead log.
+ * <p/>
+ * The B tree is kept in a checkpoint, a node file of {@link BTree#checkpoint(String, Codec, Codec)},
+ * and the insertions, puts and deletions since the checkpoint are appended to a log file,
+ * filename + ".log". A change is one record appended to the log, the B tree isn't written.
+ * When the log grows over a size, the nodes changed since the checkpoint are written to the
+ * node file and the log starts over. Opening the files recovers the B tree: the checkpoint
+ * is read and the log is replayed on it.
+ * <p/>
+ * A change returns once its record is forced to the disk. The records of the changes of
+ * several threads are forced together: the first thread waiting writes and forces the
+ * records appended so far, the others wait for it (group commit), then the next thread
+ * waiting forces the records appended meanwhile.
+ * <p/>
+ * The changes are applied one at a time, the B tree is concurrent so the searches go on
+ * meanwhile, see {@link #btree()}.
+ *
+ * @param <K> - Key
+ * @param <V> - Value
+ */
+public class LoggedBTree<K, V> implements Closeable
+{
+    /** "BWL1", first int of a log */
+    private static final int LOG_MAGIC = 0x42574C31;
+    private static final int LOG_VERSION = 1;
+    /** magic and version */
+    private static final int LOG_HEADER_SIZE = 8;
+    /** length and CRC of the payload of a record */
+    private static final int RECORD_HEADER_SIZE = 8;
+    /** operation of a record, the first byte of its payload */
+    private static final byte INSERT = 1;
+    private static final byte PUT = 2;
+    private static final byte DELETE = 3;
+    private static final int DEFAULT_T = 64;
+    private static final long DEFAULT_CHECKPOINT_BYTES = 64L << 20;
+    private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
+    private final String filename;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    /** size of the log starting a checkpoint */
+    private final long checkpointBytes;
+    private final BTree<K, V> btree;
+    private final FileChannel log;
+    private final CRC32 crc = new CRC32();
+
+    /** records appended, not written to the log yet */
+    private ByteBuffer pending;
+    /** buffer of the records written by the thread forcing the log, then the next pending one */
+    private ByteBuffer spare;
+    /** number of the last record appended */
+    private long appended;
+    /** number of the last record forced */
+    private long durable;
+    /** if a thread is writing and forcing records */
+    private boolean flushing;
+    /** bytes of the log written */
+    private long logSize;
+    /** failure of the log, the changes aren't durable any more */
+    private IOException failure;
+    private boolean closed;
+
+    public LoggedBTree(String filename, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException
+    {
+        this(filename, keyCodec, valueCodec, null, DEFAULT_T, DEFAULT_CHECKPOINT_BYTES);
+    }
+
+    /**
+     * Open the B tree, recovering it from the checkpoint and the log.
+     *
+     * @param filename - checkpoint, the log is filename + ".log"
+     * @param keyCodec - encoding of the keys
+     * @param valueCodec - encoding of the values
+     * @param kComparator - Comparator function, null if the keys are Comparable
+     * @param t - the minimum degree of a new B tree, a checkpoint keeps its own
+     * @param checkpointBytes - size of the log starting a checkpoint
+     */
+    public LoggedBTree(String filename, Codec<K> keyCodec, Codec<V> valueCodec, Comparator<K> kComparator,
+                       int t, long checkpointBytes) throws IOException
+    {
+        if(checkpointBytes <= LOG_HEADER_SIZE)
+            throw new IllegalArgumentException("Checkpoint size too small: " + checkpointBytes);
+        this.filename = filename;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.checkpointBytes = checkpointBytes;
+        this.pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+        if(new File(filename).exists())
+        {
+            // the node file keeps t, the next checkpoints append to it
+            this.btree = BTree.readCheckpoint(filename, keyCodec, valueCodec, kComparator, true);
+        }
+        else
+            this.btree = new BTree<K, V>(kComparator, t, true);
+
+        this.log = FileChannel.open(Paths.get(logFilename()), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try
+        {
+            if(log.size() < LOG_HEADER_SIZE)
+                startLog();
+            else
+                replay();
+        }
+        catch(IOException e)
+        {
+            log.close();
+            throw e;
+        }
+    }
+
+    private String logFilename()
+    {
+        return filename + ".log";
+    }
+
+    /**
+     * truncate the log to its header
+     */
+    private void startLog() throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        header.putInt(LOG_MAGIC).putInt(LOG_VERSION);
+        header.flip();
+        log.truncate(0);
+        while(header.hasRemaining())
+            log.write(header, header.position());
+        log.force(false);
+        logSize = LOG_HEADER_SIZE;
+    }
+
+    /**
+     * Apply the records of the log to the B tree. The records of a crash during a write, at the
+     * end of the log, are torn: their CRC doesn't match, the log is truncated before them.
+     * The records of a crash during a checkpoint are in the checkpoint too, replaying them
+     * again gives the same B tree.
+     */
+    private void replay() throws IOException
+    {
+        long size = log.size();
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Log " + logFilename() + " of " + size + " bytes, over 2 GB.");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while(buffer.hasRemaining())
+        {
+            if(log.read(buffer, buffer.position()) < 0)
+                throw new IOException("Log " + logFilename() + " is truncated.");
+        }
+        buffer.flip();
+        if(buffer.getInt() != LOG_MAGIC)
+            throw new IOException(logFilename() + " isn't a log.");
+        int version = buffer.getInt();
+        if(version != LOG_VERSION)
+            throw new IOException("Log " + logFilename() + " has version " + version + ", not " + LOG_VERSION + ".");
+
+        while(buffer.remaining() >= RECORD_HEADER_SIZE)
+        {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length <= 0 || length > buffer.remaining())
+            {
+                buffer.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.position(), length);
+            if((int) crc.getValue() != checksum)
+            {
+                buffer.position(start);
+                break;
+            }
+            ByteBuffer payload = buffer.slice();
+            payload.limit(length);
+            buffer.position(buffer.position() + length);
+            try
+            {
+                apply(payload);
+            }
+            catch(BufferUnderflowException e)
+            {
+                throw new IOException("Record at " + start + " of log " + logFilename() + " is truncated.", e);
+            }
+        }
+        logSize = buffer.position();
+        if(logSize < size)
+        {
+            log.truncate(logSize);
+            log.force(false);
+        }
+    }
+
+    /**
+     * apply the payload of a record to the B tree
+     */
+    private void apply(ByteBuffer payload) throws IOException
+    {
+        byte operation = payload.get();
+        K key = keyCodec.decode(payload);
+        switch(operation)
+        {
+            case INSERT:
+                btree.insert(key, valueCodec.decode(payload));
+                break;
+            case PUT:
+                btree.put(key, valueCodec.decode(payload));
+                break;
+            case DELETE:
+                btree.delete(key);
+                break;
+            default:
+                throw new IOException("Unknown operation " + operation + " in log " + logFilename() + ".");
+        }
+    }
+
+    /**
+     * @return the B tree, to search it. It must be changed through this class only.
+     */
+    public BTree<K, V> btree()
+    {
+        return btree;
+    }
+
+    public V search(K key)
+    {
+        return btree.search(key);
+    }
+
+    /**
+     * Insert a given key-value pair, once it is durable
+     *
+     * @param value - not null, a record holds no null value
+     * @return false if the key is already in the B tree, which is left unchanged
+     */
+    public boolean insert(K key, V value) throws IOException
+    {
+        checkValue(value);
+        long record;
+        synchronized(this)
+        {
+            int mark = append(INSERT, key, value);
+            boolean inserted;
+            try
+            {
+                inserted = btree.insert(key, value);
+            }
+            catch(RuntimeException e)
+            {
+                pending.position(mark);
+                throw e;
+            }
+            if(!inserted)
+            {
+                pending.position(mark);
+                return false;
+            }
+            record = ++ appended;
+        }
+        commit(record);
+        return true;
+    }
+
+    /**
+     * If a given key exists in the B tree, the value is updated, otherwise insert. It returns
+     * once the change is durable.
+     *
+     * @param value - not null, a record holds no null value
+     * @return the previous value of the key, null if it wasn't in the B tree
+     */
+    public V put(K key, V value) throws IOException
+    {
+        checkValue(value);
+        long record;
+        V previous;
+        synchronized(this)
+        {
+            int mark = append(PUT, key, value);
+            try
+            {
+                previous = btree.put(key, value);
+            }
+            catch(RuntimeException e)
+            {
+                pending.position(mark);
+                throw e;
+            }
+            record = ++ appended;
+        }
+        commit(record);
+        return previous;
+    }
+
+    /**
+     * Removes the key from the B tree, once it is durable
+     *
+     * @return the value of the key, null if the key isn't in the B tree
+     */
+    public V delete(K key) throws IOException
+    {
+        long record;
+        Map.Entry<K, V> deleted;
+        synchronized(this)
+        {
+            int mark = append(DELETE, key, null);
+            try
+            {
+                deleted = btree.delete(key);
+            }
+            catch(RuntimeException e)
+            {
+                pending.position(mark);
+                throw e;
+            }
+            if(deleted == null)
+            {
+                pending.position(mark);
+                return null;
+            }
+            record = ++ appended;
+        }
+        commit(record);
+        return deleted.getValue();
+    }
+
+    private static void checkValue(Object value)
+    {
+        if(value == null)
+            throw new IllegalArgumentException("A logged B tree can't hold a null value.");
+    }
+
+    /**
+     * encode a record at the end of the pending ones, the caller holds the monitor
+     *
+     * @param value - null for a deletion
+     * @return position of the record in the pending buffer, to drop it
+     */
+    private int append(byte operation, K key, V value) throws IOException
+    {
+        checkOpen();
+        int length = 1 + keyCodec.size(key) + (value == null ? 0 : valueCodec.size(value));
+        int mark = pending.position();
+        if(pending.remaining() < RECORD_HEADER_SIZE + length)
+        {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * pending.capacity(), mark + RECORD_HEADER_SIZE + length));
+            pending.flip();
+            larger.put(pending);
+            pending = larger;
+        }
+        pending.position(mark + RECORD_HEADER_SIZE);
+        pending.put(operation);
+        keyCodec.encode(key, pending);
+        if(value != null)
+            valueCodec.encode(value, pending);
+        crc.reset();
+        crc.update(pending.array(), mark + RECORD_HEADER_SIZE, length);
+        pending.putInt(mark, length);
+        pending.putInt(mark + 4, (int) crc.getValue());
+        return mark;
+    }
+
+    /**
+     * Wait until the record is forced. If no thread is forcing the log, this thread writes and
+     * forces the records appended so far, then a checkpoint if the log is over its size.
+     *
+     * @param record - number of the record
+     */
+    private void commit(long record) throws IOException
+    {
+        ByteBuffer batch;
+        long last;
+        synchronized(this)
+        {
+            while(true)
+            {
+                if(failure != null)
+                    throw new IOException("The log " + logFilename() + " failed, the change isn't durable.", failure);
+                if(durable >= record)
+                    return;
+                if(!flushing)
+                    break;
+                awaitFlush();
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            last = appended;
+        }
+
+        // the monitor is released, the other threads append to the next batch meanwhile
+        batch.flip();
+        long written = batch.remaining();
+        IOException error = null;
+        try
+        {
+            long position = logSize;
+            while(batch.hasRemaining())
+                position += log.write(batch, position);
+            log.force(false);
+        }
+        catch(IOException e)
+        {
+            error = e;
+        }
+
+        synchronized(this)
+        {
+            flushing = false;
+            batch.clear();
+            spare = batch;
+            if(error != null)
+                failure = error;
+            else
+            {
+                logSize += written;
+                durable = Math.max(durable, last);
+            }
+            notifyAll();
+            if(error != null)
+                throw error;
+            if(logSize + pending.position() >= checkpointBytes)
+                checkpoint();
+        }
+    }
+
+    /**
+     * wait for the thread forcing the log, the caller holds the monitor
+     */
+    private void awaitFlush() throws IOException
+    {
+        try
+        {
+            wait();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the log " + logFilename() + ".");
+        }
+    }
+
+    /**
+     * Write the nodes changed since the last checkpoint and start the log over. The changes wait
+     * meanwhile, the searches don't. The root of the checkpoint is written once its nodes are
+     * forced, so a crash leaves the previous checkpoint and its log, or the new one.
+     */
+    public synchronized void checkpoint() throws IOException
+    {
+        checkOpen();
+        while(flushing)
+            awaitFlush();
+        btree.checkpoint(filename, keyCodec, valueCodec);
+        // the pending records are in the checkpoint
+        startLog();
+        pending.clear();
+        durable = appended;
+        notifyAll();
+    }
+
+    /**
+     * @return bytes of the log, the records written and the pending ones
+     */
+    public synchronized long logSize()
+    {
+        return logSize + pending.position();
+    }
+
+    private void checkOpen() throws IOException
+    {
+        if(closed)
+            throw new IOException("The log " + logFilename() + " is closed.");
+        if(failure != null)
+            throw new IOException("The log " + logFilename() + " failed.", failure);
+    }
+
+    /**
+     * force the pending records and close the log
+     */
+    @Override
+    public void close() throws IOException
+    {
+        long record;
+        synchronized(this)
+        {
+            if(closed)
+                return;
+            // the changes aren't durable after a failure, the log is only closed
+            record = failure == null ? appended : 0;
+        }
+        try
+        {
+            commit(record);
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                while(flushing)
+                    awaitFlush();
+                closed = true;
+                log.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,469 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Parallel load of the CSV file into the heap file.
+ * <p/>
+ * The CSV file is split into chunks of whole lines, which are processed on a fork-join pool:
+ * <ol>
+ * <li>every chunk is scanned for the sizes of its records,</li>
+ * <li>the page and slot where every chunk starts are computed from the sizes,
+ * packing the pages exactly like the sequential load,</li>
+ * <li>every chunk writes its records from its start on and builds its own key to
+ * {@link BTree.Data} map. A page shared by two chunks gets the slots and records
+ * of both, its header is written by the chunk adding its last record,</li>
+ * <li>the maps of the chunks are merged in the order of the chunks.</li>
+ * </ol>
+ * The secondary indexes of an {@link IndexManager} get a collector per chunk too, merged
+ * in the same order.
+ * The heap file and the map are the same as the ones of {@link BTree#readFileAndSaveToHeap(Map)}.
+ * <p/>
+ * If the rows are encoded by a {@link RecordCodec}, the chunks first collect their texts,
+ * which are added to the dictionary in the order of the chunks, so every text gets the
+ * code of the sequential load. The sizes and the records are then the encoded ones.
+ */
+public class ParallelIngest
+{
+    /** chunks per thread, smaller chunks balance the load better */
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final int PAGES_PER_WRITE = 16;
+
+    private final String filename;
+    private final String heapfile;
+    private final int pageSize;
+    private final int threads;
+    /** codec of the records, null if they are stored as text */
+    private final RecordCodec codec;
+
+    public ParallelIngest(String filename, String heapfile, int pageSize, int threads)
+    {
+        this(filename, heapfile, pageSize, threads, null);
+    }
+
+    /**
+     * @param codec - an empty codec, which gets the dictionary of the rows, null to store the rows as text
+     */
+    public ParallelIngest(String filename, String heapfile, int pageSize, int threads, RecordCodec codec)
+    {
+        if(pageSize > HeapPage.MAX_PAGE_SIZE)
+            throw new IllegalArgumentException("Page size " + pageSize + " is larger than " + HeapPage.MAX_PAGE_SIZE + ".");
+        this.filename = filename;
+        this.heapfile = heapfile;
+        this.pageSize = pageSize;
+        this.threads = threads;
+        this.codec = codec;
+    }
+
+    /**
+     * A range of whole lines of the CSV file
+     */
+    private static class Chunk
+    {
+        private final long start;
+        private final long end;
+        /** sizes of the records */
+        private char[] sizes = new char[1024];
+        private int count;
+        /** page where the chunk starts, and the slots and records of the previous chunks in it */
+        private int blockNum;
+        private int slotCount;
+        private int freeEnd;
+        /** page of the first and of the last record */
+        private int firstBlock;
+        private int lastBlock;
+        /** if the chunk adds the last record of its last page */
+        private boolean writeTailHeader;
+        private Map<Integer, List<BTree.Data>> map;
+        /** postings of the secondary indexes of the chunk */
+        private IndexManager.Collector collector;
+        /** texts of the chunk, in the order of their first use */
+        private RecordCodec dictionary;
+
+        public Chunk(long start, long end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public void addSize(int size)
+        {
+            if(count == sizes.length)
+            {
+                char[] grown = new char[sizes.length * 2];
+                System.arraycopy(sizes, 0, grown, 0, count);
+                sizes = grown;
+            }
+            sizes[count ++] = (char) size;
+        }
+    }
+
+    /**
+     * load the CSV file into the heap file
+     *
+     * @param map - the key to records map to fill
+     * @return the last page
+     */
+    public int load(Map<Integer, List<BTree.Data>> map) throws IOException
+    {
+        return load(map, null);
+    }
+
+    /**
+     * load the CSV file into the heap file, and its records into secondary indexes
+     *
+     * @param map - the key to records map to fill
+     * @param indexes - the secondary indexes, null for none
+     * @return the last page
+     */
+    public int load(Map<Integer, List<BTree.Data>> map, IndexManager indexes) throws IOException
+    {
+        final List<Chunk> chunks = split();
+        if(indexes != null)
+            for(Chunk chunk : chunks)
+                chunk.collector = indexes.newCollector();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            if(codec != null)
+            {
+                List<RecursiveAction> collects = new ArrayList<RecursiveAction>();
+                for(final Chunk chunk : chunks)
+                    collects.add(new RecursiveAction() {
+                        @Override
+                        protected void compute()
+                        {
+                            collect(chunk);
+                        }
+                    });
+                runAll(pool, collects);
+                for(Chunk chunk : chunks)
+                {
+                    codec.addAll(chunk.dictionary);
+                    chunk.dictionary = null;
+                }
+                // the codec is only read from now on, by every thread
+                codec.freeze();
+            }
+
+            List<RecursiveAction> scans = new ArrayList<RecursiveAction>();
+            for(final Chunk chunk : chunks)
+                scans.add(new RecursiveAction() {
+                    @Override
+                    protected void compute()
+                    {
+                        scan(chunk);
+                    }
+                });
+            runAll(pool, scans);
+
+            boolean empty = true;
+            for(Chunk chunk : chunks)
+                empty &= chunk.count == 0;
+            int blockNum = place(chunks);
+
+            final FileChannel channel = FileChannel.open(Paths.get(heapfile), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try
+            {
+                // without a record, the heap file is the empty page of the sequential load
+                if(empty)
+                    new HeapFileWriter(channel, pageSize, 1, 0, 0, pageSize, true).close();
+                List<RecursiveAction> writes = new ArrayList<RecursiveAction>();
+                for(final Chunk chunk : chunks)
+                    writes.add(new RecursiveAction() {
+                        @Override
+                        protected void compute()
+                        {
+                            write(chunk, channel);
+                        }
+                    });
+                runAll(pool, writes);
+            }
+            finally
+            {
+                channel.close();
+            }
+
+            merge(chunks, map, indexes);
+            return blockNum;
+        }
+        catch(UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static void runAll(ForkJoinPool pool, List<? extends ForkJoinTask<?>> tasks)
+    {
+        for(ForkJoinTask<?> task : tasks)
+            pool.execute(task);
+        for(ForkJoinTask<?> task : tasks)
+            task.join();
+    }
+
+    /**
+     * split the CSV file, after the title line, into chunks which start at the start of a line.
+     * The title line and the chunk boundaries are found in the same file, reading the start of
+     * the file and a few bytes at every boundary only.
+     */
+    private List<Chunk> split() throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try
+        {
+            long size = file.length();
+            // the records start after the title line
+            long first = titleEnd(file);
+            long count = Math.max(1, Math.min((long) threads * CHUNKS_PER_THREAD, (size - first) / MIN_CHUNK_SIZE));
+            List<Chunk> chunks = new ArrayList<Chunk>();
+            long start = first;
+            for(long i = 1; i <= count; ++ i)
+            {
+                long end = i == count ? size : lineEnd(file, Math.max(start, first + (size - first) * i / count - 1));
+                if(end > start)
+                    chunks.add(new Chunk(start, end));
+                start = end;
+            }
+            return chunks;
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /**
+     * @return offset of the line after the title line, the first line which isn't empty like
+     * for {@link CsvScanner#next()}, or the end of the file
+     */
+    private static long titleEnd(RandomAccessFile file) throws IOException
+    {
+        byte[] bytes = new byte[8192];
+        file.seek(0);
+        long position = 0;
+        // bytes of the current line, and its last byte
+        long length = 0;
+        byte last = 0;
+        int n;
+        while((n = file.read(bytes)) > 0)
+        {
+            for(int i = 0; i < n; ++ i)
+            {
+                if(bytes[i] != '\n')
+                {
+                    ++ length;
+                    last = bytes[i];
+                }
+                // a line of a '\r' only is empty
+                else if(length > (last == '\r' ? 1 : 0))
+                    return position + i + 1;
+                else
+                    length = 0;
+            }
+            position += n;
+        }
+        return position;
+    }
+
+    /**
+     * @return offset of the byte after the first '\n' at or after position, or the end of the file
+     */
+    private static long lineEnd(RandomAccessFile file, long position) throws IOException
+    {
+        byte[] bytes = new byte[8192];
+        file.seek(position);
+        int n;
+        while((n = file.read(bytes)) > 0)
+        {
+            for(int i = 0; i < n; ++ i)
+                if(bytes[i] == '\n')
+                    return position + i + 1;
+            position += n;
+        }
+        return position;
+    }
+
+    /**
+     * collect the texts of the rows of the chunk into its own dictionary
+     */
+    private void collect(Chunk chunk)
+    {
+        try
+        {
+            chunk.dictionary = new RecordCodec();
+            RecordCodec.Encoder encoder = chunk.dictionary.newEncoder();
+            CsvScanner scanner = new CsvScanner(filename, chunk.start, chunk.end);
+            try
+            {
+                while(scanner.next())
+                    encoder.encode(scanner);
+            }
+            finally
+            {
+                scanner.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void scan(Chunk chunk)
+    {
+        try
+        {
+            CsvScanner scanner = new CsvScanner(filename, chunk.start, chunk.end);
+            RecordCodec.Encoder encoder = codec == null ? null : codec.newEncoder();
+            try
+            {
+                while(scanner.next())
+                {
+                    int size = encoder == null ? scanner.length() : encoder.encode(scanner).length();
+                    if(size > HeapPage.maxRecordSize(pageSize))
+                        throw new IllegalArgumentException("Record of " + size + " bytes at " + scanner.position()
+                                + " doesn't fit in a page of " + pageSize + " bytes.");
+                    chunk.addSize(size);
+                }
+            }
+            finally
+            {
+                scanner.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * compute the start of every chunk, packing the records like {@link HeapFileWriter#append(byte[], int, int)}
+     *
+     * @return the last page
+     */
+    private int place(List<Chunk> chunks)
+    {
+        int blockNum = 0;
+        int slotCount = 0;
+        int freeEnd = pageSize;
+        Chunk previous = null;
+        for(Chunk chunk : chunks)
+        {
+            chunk.blockNum = blockNum;
+            chunk.slotCount = slotCount;
+            chunk.freeEnd = freeEnd;
+            for(int i = 0; i < chunk.count; ++ i)
+            {
+                if(freeEnd - HeapPage.HEADER_SIZE - slotCount * HeapPage.SLOT_SIZE < chunk.sizes[i] + HeapPage.SLOT_SIZE)
+                {
+                    blockNum ++;
+                    slotCount = 0;
+                    freeEnd = pageSize;
+                }
+                if(i == 0)
+                    chunk.firstBlock = blockNum;
+                slotCount ++;
+                freeEnd -= chunk.sizes[i];
+            }
+            chunk.lastBlock = blockNum;
+            chunk.sizes = null;
+            if(chunk.count == 0)
+                continue;
+            // the previous chunk writes the header of its last page, unless this one continues it
+            if(previous != null)
+                previous.writeTailHeader = previous.lastBlock != chunk.firstBlock;
+            previous = chunk;
+        }
+        if(previous != null)
+            previous.writeTailHeader = true;
+        return blockNum;
+    }
+
+    private void write(Chunk chunk, FileChannel channel)
+    {
+        Map<Integer, List<BTree.Data>> map = new HashMap<Integer, List<BTree.Data>>();
+        chunk.map = map;
+        // a chunk without records, only empty lines, writes nothing
+        if(chunk.count == 0)
+            return;
+        try
+        {
+            CsvScanner scanner = new CsvScanner(filename, chunk.start, chunk.end);
+            HeapFileWriter writer = new HeapFileWriter(channel, pageSize, PAGES_PER_WRITE, chunk.blockNum,
+                    chunk.slotCount, chunk.freeEnd, chunk.writeTailHeader);
+            RecordCodec.Encoder encoder = codec == null ? null : codec.newEncoder();
+            try
+            {
+                while(scanner.next())
+                {
+                    int hourly_counts = scanner.lastIntField();
+                    List<BTree.Data> list = map.get(hourly_counts);
+                    if(list == null)
+                    {
+                        list = new Postings();
+                        map.put(hourly_counts, list);
+                    }
+                    BTree.Data data;
+                    if(encoder == null)
+                        data = writer.append(scanner.record());
+                    else
+                    {
+                        encoder.encode(scanner);
+                        data = writer.append(encoder.bytes(), 0, encoder.length());
+                    }
+                    list.add(data);
+                    if(chunk.collector != null)
+                        chunk.collector.add(scanner, data);
+                }
+            }
+            finally
+            {
+                writer.close();
+                scanner.close();
+            }
+        }
+        catch(IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * merge the maps of the chunks in order, so every list is in the order of the file
+     */
+    private static void merge(List<Chunk> chunks, Map<Integer, List<BTree.Data>> map, IndexManager indexes)
+    {
+        for(Chunk chunk : chunks)
+        {
+            for(Map.Entry<Integer, List<BTree.Data>> entry : chunk.map.entrySet())
+            {
+                List<BTree.Data> list = map.get(entry.getKey());
+                if(list == null)
+                    map.put(entry.getKey(), entry.getValue());
+                else
+                    list.addAll(entry.getValue());
+            }
+            chunk.map = null;
+            if(indexes != null)
+                indexes.merge(chunk.collector);
+            chunk.collector = null;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Postings of a key: the addresses of its records, packed in a byte array.
+ * <p/>
+ * An address (blockNum, slot) is stored as the difference of its blockNum with the previous one,
+ * then its slot: the difference with the previous slot in the same page, the slot itself in
+ * another page. The numbers are zigzag and varint encoded, so the addresses appended in the
+ * order of the heap file take two or three bytes each instead of a {@link BTree.Data} object.
+ * An address can also be packed in a long, blockNum in the high int, see {@link #rid(int, int)}.
+ * <p/>
+ * The postings are a list of {@link BTree.Data}, built on the fly. A {@link Cursor} reads
+ * the addresses without building them. get(index) starts from a skip point, the state of the
+ * decoding kept every {@link #SKIP_INTERVAL} addresses, so it decodes at most that many.
+ */
+public class Postings extends AbstractList<BTree.Data> implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CAPACITY = 16;
+    /** addresses between two skip points */
+    private static final int SKIP_INTERVAL = 64;
+
+    private byte[] bytes;
+    /** number of bytes used */
+    private int length;
+    private int size;
+    /** the last address appended */
+    private int lastBlockNum;
+    private int lastSlot;
+    /**
+     * skip points, built by the first get(index) and dropped by a change: for every
+     * SKIP_INTERVAL addresses, the offset of the address and the address before it
+     */
+    private transient volatile int[] skips;
+
+    public Postings()
+    {
+        bytes = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * @param bytes - encoded addresses, used without a copy
+     * @param length - number of bytes of the addresses
+     * @param size - number of addresses
+     */
+    private Postings(byte[] bytes, int length, int size)
+    {
+        this.bytes = bytes;
+        this.length = length;
+        this.size = size;
+        Cursor cursor = cursor();
+        int count = 0;
+        try
+        {
+            while(cursor.next())
+            {
+                lastBlockNum = cursor.blockNum();
+                lastSlot = cursor.slot();
+                ++ count;
+            }
+        }
+        catch(ArrayIndexOutOfBoundsException e)
+        {
+            throw new IllegalArgumentException("The last address of the postings is truncated.", e);
+        }
+        if(count != size)
+            throw new IllegalArgumentException("Postings of " + count + " addresses, not " + size + ".");
+    }
+
+    public static long rid(int blockNum, int slot)
+    {
+        return (long) blockNum << 32 | (slot & 0xFFFFFFFFL);
+    }
+
+    public static int blockNum(long rid)
+    {
+        return (int) (rid >>> 32);
+    }
+
+    public static int slot(long rid)
+    {
+        return (int) rid;
+    }
+
+    /**
+     * append an address
+     */
+    public void add(int blockNum, int slot)
+    {
+        if(skips != null)
+            skips = null;
+        int delta = blockNum - lastBlockNum;
+        ensureCapacity(length + 10);
+        length = putVarint(bytes, length, zigzag(delta));
+        length = putVarint(bytes, length, delta == 0 ? zigzag(slot - lastSlot) : slot);
+        lastBlockNum = blockNum;
+        lastSlot = slot;
+        ++ size;
+    }
+
+    @Override
+    public boolean add(BTree.Data data)
+    {
+        add(data.blockNum, data.slot);
+        return true;
+    }
+
+    /**
+     * append addresses, the bytes of other postings are copied as they are but the first address
+     */
+    @Override
+    public boolean addAll(Collection<? extends BTree.Data> c)
+    {
+        if(!(c instanceof Postings))
+            return super.addAll(c);
+        Postings other = (Postings) c;
+        // read before appending, other may be this
+        int otherLength = other.length;
+        int otherSize = other.size;
+        int otherLastBlockNum = other.lastBlockNum;
+        int otherLastSlot = other.lastSlot;
+        if(otherSize == 0)
+            return false;
+        Cursor cursor = other.cursor();
+        cursor.next();
+        add(cursor.blockNum(), cursor.slot());
+        int rest = otherLength - cursor.position;
+        ensureCapacity(length + rest);
+        System.arraycopy(other.bytes, cursor.position, bytes, length, rest);
+        length += rest;
+        size += otherSize - 1;
+        lastBlockNum = otherLastBlockNum;
+        lastSlot = otherLastSlot;
+        return true;
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if(capacity > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+    }
+
+    /**
+     * release the unused capacity
+     */
+    public void trimToSize()
+    {
+        if(length < bytes.length)
+            bytes = Arrays.copyOf(bytes, length);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return number of bytes of the encoded addresses
+     */
+    public int byteSize()
+    {
+        return length;
+    }
+
+    @Override
+    public BTree.Data get(int index)
+    {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        int[] points = skips;
+        if(points == null)
+            skips = points = skips();
+        int skip = index / SKIP_INTERVAL;
+        Cursor cursor = new Cursor(points[3 * skip], points[3 * skip + 1], points[3 * skip + 2]);
+        for(int i = skip * SKIP_INTERVAL; i <= index; ++ i)
+            cursor.next();
+        return new BTree.Data(cursor.blockNum(), cursor.slot());
+    }
+
+    /**
+     * @return the skip points of the addresses, see {@link #skips}
+     */
+    private int[] skips()
+    {
+        int[] points = new int[3 * ((size + SKIP_INTERVAL - 1) / SKIP_INTERVAL)];
+        Cursor cursor = cursor();
+        for(int i = 0; i < size; ++ i)
+        {
+            if(i % SKIP_INTERVAL == 0)
+            {
+                int point = 3 * (i / SKIP_INTERVAL);
+                points[point] = cursor.position;
+                points[point + 1] = cursor.blockNum;
+                points[point + 2] = cursor.slot;
+            }
+            cursor.next();
+        }
+        return points;
+    }
+
+    @Override
+    public Iterator<BTree.Data> iterator()
+    {
+        final Cursor cursor = cursor();
+        return new Iterator<BTree.Data>() {
+            private int remaining = size;
+
+            @Override
+            public boolean hasNext()
+            {
+                return remaining > 0;
+            }
+
+            @Override
+            public BTree.Data next()
+            {
+                if(remaining == 0)
+                    throw new NoSuchElementException();
+                -- remaining;
+                cursor.next();
+                return new BTree.Data(cursor.blockNum(), cursor.slot());
+            }
+        };
+    }
+
+    /**
+     * @return a cursor before the first address
+     */
+    public Cursor cursor()
+    {
+        return new Cursor();
+    }
+
+    /**
+     * Reads the addresses in order, without building objects
+     */
+    public class Cursor
+    {
+        private final int end = length;
+        private int position;
+        private int blockNum;
+        private int slot;
+
+        private Cursor()
+        {
+        }
+
+        /**
+         * a cursor after the address (blockNum, slot), the next one is at position
+         */
+        private Cursor(int position, int blockNum, int slot)
+        {
+            this.position = position;
+            this.blockNum = blockNum;
+            this.slot = slot;
+        }
+
+        /**
+         * move to the next address
+         *
+         * @return false if there is no more address
+         */
+        public boolean next()
+        {
+            if(position >= end)
+                return false;
+            int delta = unzigzag(readVarint());
+            blockNum += delta;
+            slot = delta == 0 ? slot + unzigzag(readVarint()) : readVarint();
+            return true;
+        }
+
+        private int readVarint()
+        {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                if(shift > 28)
+                    throw new IllegalArgumentException("Varint longer than 5 bytes at " + position + ".");
+                b = bytes[position ++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            while(b < 0);
+            return value;
+        }
+
+        /**
+         * @return the address packed in a long
+         */
+        public long rid()
+        {
+            return Postings.rid(blockNum, slot);
+        }
+
+        public int blockNum()
+        {
+            return blockNum;
+        }
+
+        public int slot()
+        {
+            return slot;
+        }
+    }
+
+    /**
+     * @return the encoded addresses, the array may be longer than {@link #byteSize()}
+     */
+    byte[] bytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * postings over encoded addresses, the bytes aren't copied
+     */
+    static Postings wrap(byte[] bytes, int length, int size)
+    {
+        return new Postings(bytes, length, size);
+    }
+
+    private static int zigzag(int value)
+    {
+        return value << 1 ^ value >> 31;
+    }
+
+    private static int unzigzag(int value)
+    {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    private static int putVarint(byte[] dst, int off, int value)
+    {
+        while((value & ~0x7F) != 0)
+        {
+            dst[off ++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[off ++] = (byte) value;
+        return off;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        trimToSize();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        if(length > bytes.length)
+            throw new IOException("Postings of " + length + " bytes in an array of " + bytes.length + ".");
+    }
+}
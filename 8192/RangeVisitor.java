@@ -0,0 +1,15 @@
+/**
+ * Receives the entries of a range query in increasing order of their keys
+ *
+ * @param <K> - Key
+ * @param <V> - Value
+ */
+public interface RangeVisitor<K, V>
+{
+    /**
+     * @param key - key in the range
+     * @param value - value of the key
+     * @return true to get the next entry, false to stop the query
+     */
+    boolean visit(K key, V value);
+}
@@ -0,0 +1,13 @@
+/**
+ * Receives the records read from the heap file
+ */
+public interface RecordCallback
+{
+    /**
+     * @param data - address of the record
+     * @param record - buffer holding the record, only valid during the call
+     * @param offset - start of the record in the buffer
+     * @param len - size of the record
+     */
+    void record(BTree.Data data, byte[] record, int offset, int len);
+}
@@ -0,0 +1,420 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the CSV rows stored in the heap file.
+ * <p/>
+ * A row is stored as the number of its fields followed by one varint token per field:
+ * <ul>
+ * <li>a field holding a decimal int (ID, Year, Mdate, Time, Sensor_ID, Hourly_Counts) is
+ * stored as its zigzag encoded value, token = value &lt;&lt; 1,</li>
+ * <li>any other field (Date_Time, Month, Day, Sensor_Name) is stored as a code in a
+ * dictionary of the distinct texts, token = code &lt;&lt; 1 | 1.</li>
+ * </ul>
+ * Every value repeats across the sensors and the hours, so the dictionary stays small and
+ * a row takes a few bytes per field instead of its text. Decoding gives back the exact text
+ * of the row.
+ * <p/>
+ * The dictionary is built while the heap file is written and saved next to it.
+ */
+public class RecordCodec
+{
+    /** largest varint of a token */
+    private static final int MAX_TOKEN_SIZE = 5;
+
+    /** the texts, by code */
+    private final List<byte[]> values = new ArrayList<byte[]>();
+    /** open addressing table of code + 1, 0 for an empty bucket */
+    private int[] table = new int[1024];
+    /** no new text can be added, the dictionary is shared by several threads */
+    private boolean frozen = false;
+
+    /**
+     * @return the largest encoding of a row of len bytes
+     */
+    public static int maxEncodedSize(int len)
+    {
+        return MAX_TOKEN_SIZE * (len + 2);
+    }
+
+    /**
+     * encode a row
+     *
+     * @param row - text of the row
+     * @param offset - start of the row
+     * @param len - size of the row
+     * @param dst - destination, at least {@link #maxEncodedSize(int)} bytes
+     * @return size of the encoding
+     */
+    public int encode(byte[] row, int offset, int len, byte[] dst)
+    {
+        int end = offset + len;
+        int fields = 1;
+        for(int i = offset; i < end; ++ i)
+            if(row[i] == ',')
+                ++ fields;
+        int n = putVarint(dst, 0, fields);
+        int start = offset;
+        for(int i = offset; i <= end; ++ i)
+        {
+            if(i < end && row[i] != ',')
+                continue;
+            long token;
+            if(isInt(row, start, i))
+                token = zigzag(parseInt(row, start, i)) << 1;
+            else
+                token = ((long) code(row, start, i - start) << 1) | 1;
+            n = putVarint(dst, n, token);
+            start = i + 1;
+        }
+        return n;
+    }
+
+    /**
+     * @return an encoder of the rows of a {@link CsvScanner}, one per thread
+     */
+    public Encoder newEncoder()
+    {
+        return new Encoder();
+    }
+
+    /**
+     * Encodes the current row of a scanner into a buffer reused for every row
+     */
+    public class Encoder
+    {
+        private byte[] row = new byte[256];
+        private byte[] encoded = new byte[maxEncodedSize(row.length)];
+        private int length;
+
+        /**
+         * encode the current row of the scanner
+         *
+         * @return this, the encoding is valid until the next call
+         */
+        public Encoder encode(CsvScanner scanner)
+        {
+            int len = scanner.length();
+            if(len > row.length)
+            {
+                row = new byte[Math.max(len, row.length * 2)];
+                encoded = new byte[maxEncodedSize(row.length)];
+            }
+            scanner.copyTo(row, 0);
+            length = RecordCodec.this.encode(row, 0, len, encoded);
+            return this;
+        }
+
+        public byte[] bytes()
+        {
+            return encoded;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+    }
+
+    /**
+     * @return size of the text of an encoded row
+     */
+    public int decodedLength(byte[] src, int offset, int len)
+    {
+        long[] cursor = {offset};
+        long fields = getVarint(src, cursor);
+        int n = (int) fields - 1;
+        for(long i = 0; i < fields; ++ i)
+        {
+            long token = getVarint(src, cursor);
+            if((token & 1) == 0)
+                n += stringSize(unzigzag(token >>> 1));
+            else
+                n += values.get((int) (token >>> 1)).length;
+        }
+        return n;
+    }
+
+    /**
+     * decode a row
+     *
+     * @param src - encoded row
+     * @param offset - start of the encoding
+     * @param len - size of the encoding
+     * @param dst - destination, at least {@link #decodedLength(byte[], int, int)} bytes
+     * @param dstOffset - offset in dst
+     * @return size of the text
+     */
+    public int decode(byte[] src, int offset, int len, byte[] dst, int dstOffset)
+    {
+        long[] cursor = {offset};
+        long fields = getVarint(src, cursor);
+        int n = dstOffset;
+        for(long i = 0; i < fields; ++ i)
+        {
+            if(i > 0)
+                dst[n ++] = ',';
+            long token = getVarint(src, cursor);
+            if((token & 1) == 0)
+                n = putInt(dst, n, unzigzag(token >>> 1));
+            else
+            {
+                byte[] value = values.get((int) (token >>> 1));
+                System.arraycopy(value, 0, dst, n, value.length);
+                n += value.length;
+            }
+        }
+        if(cursor[0] != offset + len)
+            throw new IllegalArgumentException("Bad encoded row at " + offset + ".");
+        return n - dstOffset;
+    }
+
+    /**
+     * @return the text of an encoded row
+     */
+    public byte[] decode(byte[] src, int offset, int len)
+    {
+        byte[] row = new byte[decodedLength(src, offset, len)];
+        decode(src, offset, len, row, 0);
+        return row;
+    }
+
+    /**
+     * a canonical decimal int, which decodes to the same text
+     */
+    private static boolean isInt(byte[] row, int from, int to)
+    {
+        int i = from;
+        if(i < to && row[i] == '-')
+            ++ i;
+        int digits = to - i;
+        if(digits == 0 || digits > 10)
+            return false;
+        if(row[i] == '0' && (digits > 1 || i > from))
+            return false;
+        long value = 0;
+        for(; i < to; ++ i)
+        {
+            if(row[i] < '0' || row[i] > '9')
+                return false;
+            value = value * 10 + row[i] - '0';
+        }
+        return row[from] == '-' ? -value >= Integer.MIN_VALUE : value <= Integer.MAX_VALUE;
+    }
+
+    private static int parseInt(byte[] row, int from, int to)
+    {
+        boolean negative = row[from] == '-';
+        long value = 0;
+        for(int i = negative ? from + 1 : from; i < to; ++ i)
+            value = value * 10 + row[i] - '0';
+        return (int) (negative ? -value : value);
+    }
+
+    private static long zigzag(int value)
+    {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    private static int unzigzag(long value)
+    {
+        int v = (int) value;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int stringSize(int value)
+    {
+        return Long.toString(value).length();
+    }
+
+    private static int putInt(byte[] dst, int offset, int value)
+    {
+        if(value < 0)
+        {
+            dst[offset ++] = '-';
+            if(value == Integer.MIN_VALUE)
+            {
+                byte[] min = "2147483648".getBytes();
+                System.arraycopy(min, 0, dst, offset, min.length);
+                return offset + min.length;
+            }
+            value = -value;
+        }
+        int end = offset + stringSize(value);
+        for(int i = end - 1; i >= offset; -- i)
+        {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return end;
+    }
+
+    public static int putVarint(byte[] dst, int offset, long value)
+    {
+        while((value & ~0x7FL) != 0)
+        {
+            dst[offset ++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset ++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * read a varint
+     *
+     * @param src - bytes
+     * @param cursor - cursor[0] is the offset of the varint, moved after it
+     * @return the value
+     */
+    public static long getVarint(byte[] src, long[] cursor)
+    {
+        int offset = (int) cursor[0];
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = src[offset ++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while(b < 0);
+        cursor[0] = offset;
+        return value;
+    }
+
+    /**
+     * the code of a text, a new text gets the next code
+     */
+    private int code(byte[] bytes, int offset, int len)
+    {
+        int hash = 0;
+        for(int i = offset; i < offset + len; ++ i)
+            hash = 31 * hash + bytes[i];
+        int mask = table.length - 1;
+        int bucket = mix(hash) & mask;
+        while(table[bucket] != 0)
+        {
+            byte[] value = values.get(table[bucket] - 1);
+            if(equals(value, bytes, offset, len))
+                return table[bucket] - 1;
+            bucket = (bucket + 1) & mask;
+        }
+        if(frozen)
+            throw new IllegalStateException("Text \"" + new String(bytes, offset, len) + "\" isn't in the dictionary.");
+        byte[] value = new byte[len];
+        System.arraycopy(bytes, offset, value, 0, len);
+        values.add(value);
+        table[bucket] = values.size();
+        if(values.size() * 2 > table.length)
+            rehash();
+        return values.size() - 1;
+    }
+
+    private static int mix(int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equals(byte[] value, byte[] bytes, int offset, int len)
+    {
+        if(value.length != len)
+            return false;
+        for(int i = 0; i < len; ++ i)
+            if(value[i] != bytes[offset + i])
+                return false;
+        return true;
+    }
+
+    private void rehash()
+    {
+        table = new int[table.length * 2];
+        int mask = table.length - 1;
+        for(int code = 0; code < values.size(); ++ code)
+        {
+            byte[] value = values.get(code);
+            int hash = 0;
+            for(byte b : value)
+                hash = 31 * hash + b;
+            int bucket = mix(hash) & mask;
+            while(table[bucket] != 0)
+                bucket = (bucket + 1) & mask;
+            table[bucket] = code + 1;
+        }
+    }
+
+    /**
+     * add the texts of the rows encoded by another codec, in their order
+     *
+     * @param other - codec of a part of the rows
+     */
+    public void addAll(RecordCodec other)
+    {
+        for(byte[] value : other.values)
+            code(value, 0, value.length);
+    }
+
+    /**
+     * no text can be added any more, so the codec can be shared by threads encoding known texts
+     */
+    public void freeze()
+    {
+        frozen = true;
+    }
+
+    /**
+     * @return number of texts in the dictionary
+     */
+    public int size()
+    {
+        return values.size();
+    }
+
+    public void save(String filename) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)));
+        try
+        {
+            out.writeInt(values.size());
+            for(byte[] value : values)
+            {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public static RecordCodec load(String filename) throws IOException
+    {
+        RecordCodec codec = new RecordCodec();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+        try
+        {
+            int count = in.readInt();
+            for(int i = 0; i < count; ++ i)
+            {
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                codec.code(value, 0, value.length);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        codec.freeze();
+        return codec;
+    }
+}
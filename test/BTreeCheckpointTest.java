@@ -0,0 +1,166 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Incremental checkpoints of {@link BTree}: the B tree read back is the one written, a
+ * checkpoint writes the nodes changed only, the changes which change nothing write nothing,
+ * and the changes of concurrent writers, optimistic or latched, are all written.
+ * <p/>
+ * Run with java -ea BTreeCheckpointTest, see {@link Check}.
+ */
+public class BTreeCheckpointTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        File dir = Check.tempDir("checkpoint");
+        for(boolean concurrent : new boolean[] {false, true})
+        {
+            String filename = new File(dir, "nodes" + concurrent).getPath();
+            incremental(filename, concurrent);
+            crash(filename, concurrent);
+        }
+        concurrentWriters(new File(dir, "concurrent").getPath());
+        System.out.println("BTreeCheckpointTest OK");
+    }
+
+    private static void incremental(String filename, boolean concurrent) throws IOException
+    {
+        Random random = new Random(1);
+        BTree<Integer, Integer> btree = new BTree<Integer, Integer>(null, 16, concurrent);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        for(int i = 0; i < 100000; ++ i)
+        {
+            int key = random.nextInt(1000000);
+            btree.put(key, i);
+            expected.put(key, i);
+        }
+        long full = btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+        check(filename, expected, concurrent);
+
+        // keys already in the B tree, keys which aren't in it
+        for(Integer key : new ArrayList<Integer>(expected.keySet()).subList(0, 1000))
+            Check.isTrue(!btree.insert(key, 0), "insert of a key in the B tree");
+        for(int i = 0; i < 1000; ++ i)
+            if(!expected.containsKey(-1 - i))
+                Check.equal(null, btree.delete(-1 - i), "delete of a key which isn't in the B tree");
+        Check.equal(0L, btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER), "bytes of a checkpoint without a change");
+
+        btree.put(5, 5);
+        expected.put(5, 5);
+        long one = btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+        Check.isTrue(one > 0 && one * 100 < full, "bytes of a checkpoint of a change: " + one + " of " + full);
+        check(filename, expected, concurrent);
+
+        // the B tree read back goes on incrementally
+        BTree<Integer, Integer> read = BTree.readCheckpoint(filename, Codecs.INTEGER, Codecs.INTEGER, null, concurrent);
+        for(int i = 0; i < 1000; ++ i)
+        {
+            int key = random.nextInt(1000000);
+            if(random.nextBoolean())
+            {
+                read.put(key, -i);
+                expected.put(key, -i);
+            }
+            else
+                Check.equal(expected.remove(key), value(read.delete(key)), "delete of " + key);
+        }
+        long some = read.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+        Check.isTrue(some < full, "bytes of a checkpoint of 1000 changes: " + some + " of " + full);
+        check(filename, expected, concurrent);
+    }
+
+    /** a crash after the frames and before the root leaves the previous checkpoint */
+    private static void crash(String filename, boolean concurrent) throws IOException
+    {
+        BTree<Integer, Integer> btree = BTree.readCheckpoint(filename, Codecs.INTEGER, Codecs.INTEGER, null, concurrent);
+        TreeMap<Integer, Integer> expected = contents(btree);
+        byte[] header = new byte[96];
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try
+        {
+            file.readFully(header);
+        }
+        finally
+        {
+            file.close();
+        }
+        for(int i = 0; i < 3000; ++ i)
+            btree.put(i, 7);
+        btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+        file = new RandomAccessFile(filename, "rw");
+        try
+        {
+            file.write(header);
+        }
+        finally
+        {
+            file.close();
+        }
+        check(filename, expected, concurrent);
+    }
+
+    /** writers on disjoint keys, the B tree checkpointed between the rounds */
+    private static void concurrentWriters(String filename) throws Exception
+    {
+        final BTree<Integer, Integer> btree = new BTree<Integer, Integer>(null, 3, true);
+        for(int i = 0; i < 20000; ++ i)
+            btree.put(i, i);
+        btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+        final int writers = 4;
+        for(int round = 0; round < 5; ++ round)
+        {
+            final int seed = round;
+            List<Thread> threads = new ArrayList<Thread>();
+            for(int w = 0; w < writers; ++ w)
+            {
+                final int writer = w;
+                threads.add(new Thread() {
+                    @Override
+                    public void run()
+                    {
+                        Random random = new Random(seed * writers + writer);
+                        for(int i = 0; i < 5000; ++ i)
+                        {
+                            int key = random.nextInt(30000) / writers * writers + writer;
+                            if(random.nextInt(3) == 0)
+                                btree.delete(key);
+                            else
+                                btree.put(key, i);
+                        }
+                    }
+                });
+            }
+            for(Thread thread : threads)
+                thread.start();
+            for(Thread thread : threads)
+                thread.join();
+            btree.checkpoint(filename, Codecs.INTEGER, Codecs.INTEGER);
+            check(filename, contents(btree), true);
+        }
+    }
+
+    private static void check(String filename, TreeMap<Integer, Integer> expected, boolean concurrent) throws IOException
+    {
+        BTree<Integer, Integer> read = BTree.readCheckpoint(filename, Codecs.INTEGER, Codecs.INTEGER, null, concurrent);
+        Check.equal(expected, contents(read), "B tree read back from " + filename);
+    }
+
+    private static TreeMap<Integer, Integer> contents(BTree<Integer, Integer> btree)
+    {
+        TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+        for(Map.Entry<Integer, Integer> entry : btree)
+            map.put(entry.getKey(), entry.getValue());
+        return map;
+    }
+
+    private static Integer value(Map.Entry<Integer, Integer> entry)
+    {
+        return entry == null ? null : entry.getValue();
+    }
+}
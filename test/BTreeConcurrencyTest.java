@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A concurrent {@link BTree} changed by several writers at once, optimistic or latched, keeps
+ * its keys in order. The writers insert, put and delete disjoint keys, which interleave in the
+ * nodes, so a deletion from an internal node replaces it by a neighbour which another writer
+ * is inserting next to. Every writer checks the results of its changes against its own
+ * TreeMap, readers meanwhile search and range search keys which never change, and at the end
+ * the entries of the B tree are in increasing order and are the ones of the writers.
+ * <p/>
+ * Run with java -ea BTreeConcurrencyTest, see {@link Check}.
+ */
+public class BTreeConcurrencyTest
+{
+    private static final int WRITERS = 6;
+    private static final int READERS = 2;
+    /** keys of every writer, the keys of the writer w are congruent to w modulo WRITERS + 1 */
+    private static final int KEYS = 300;
+
+    public static void main(String[] args) throws Exception
+    {
+        for(int t = 2; t <= 3; ++ t)
+            for(int round = 0; round < 10; ++ round)
+                round(t, round);
+        System.out.println("BTreeConcurrencyTest OK");
+    }
+
+    private static void round(int t, final int round) throws Exception
+    {
+        final BTree<Integer, Integer> btree = new BTree<Integer, Integer>(null, t, true);
+        // the keys congruent to WRITERS never change
+        final TreeMap<Integer, Integer> stable = new TreeMap<Integer, Integer>();
+        for(int i = 0; i < KEYS; ++ i)
+        {
+            int key = i * (WRITERS + 1) + WRITERS;
+            btree.put(key, -key);
+            stable.put(key, -key);
+        }
+        final List<TreeMap<Integer, Integer>> owned = new ArrayList<TreeMap<Integer, Integer>>();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        List<Thread> writers = new ArrayList<Thread>();
+        List<Thread> readers = new ArrayList<Thread>();
+        for(int w = 0; w < WRITERS; ++ w)
+        {
+            final int writer = w;
+            final TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+            owned.add(expected);
+            writers.add(new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(round * WRITERS + writer);
+                        for(int i = 0; i < 30000 && failure.get() == null; ++ i)
+                        {
+                            int key = random.nextInt(KEYS) * (WRITERS + 1) + writer;
+                            // the deletions only take the keys present, they are mostly in the internal nodes
+                            if(expected.containsKey(key) && random.nextInt(5) < 2)
+                            {
+                                Map.Entry<Integer, Integer> entry = btree.delete(key);
+                                Check.equal(expected.remove(key), entry.getValue(), "delete " + key);
+                            }
+                            else if(random.nextBoolean())
+                                Check.equal(expected.put(key, i), btree.put(key, i), "put " + key);
+                            else
+                            {
+                                Check.equal(!expected.containsKey(key), btree.insert(key, i), "insert " + key);
+                                if(!expected.containsKey(key))
+                                    expected.put(key, i);
+                            }
+                        }
+                    }
+                    catch(Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for(int r = 0; r < READERS; ++ r)
+        {
+            final int reader = r;
+            readers.add(new Thread() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Random random = new Random(-1 - reader);
+                        while(writing.get() && failure.get() == null)
+                        {
+                            int key = random.nextInt(KEYS) * (WRITERS + 1) + WRITERS;
+                            Check.equal(-key, btree.search(key), "search of an unchanged key " + key);
+                            int hi = key + random.nextInt(20) * (WRITERS + 1);
+                            List<Map.Entry<Integer, Integer>> range = btree.rangeSearch(key, hi);
+                            checkOrder(range, "range [" + key + ", " + hi + "]");
+                            int found = 0;
+                            for(Map.Entry<Integer, Integer> entry : range)
+                                if(entry.getKey() % (WRITERS + 1) == WRITERS)
+                                    ++ found;
+                            Check.equal(stable.subMap(key, true, hi, true).size(), found, "unchanged keys in [" + key + ", " + hi + "]");
+                        }
+                    }
+                    catch(Throwable e)
+                    {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        for(Thread thread : readers)
+            thread.start();
+        for(Thread thread : writers)
+            thread.start();
+        for(Thread thread : writers)
+            thread.join();
+        writing.set(false);
+        for(Thread thread : readers)
+            thread.join();
+        if(failure.get() != null)
+            throw new AssertionError("t = " + t + ", round " + round, failure.get());
+
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>(stable);
+        for(TreeMap<Integer, Integer> map : owned)
+            expected.putAll(map);
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>();
+        for(Map.Entry<Integer, Integer> entry : btree)
+            entries.add(entry);
+        checkOrder(entries, "entries of the B tree, t = " + t + ", round " + round);
+        Check.equal(new ArrayList<Map.Entry<Integer, Integer>>(expected.entrySet()), entries, "entries of the B tree, t = " + t + ", round " + round);
+        for(Map.Entry<Integer, Integer> entry : expected.entrySet())
+            Check.equal(entry.getValue(), btree.search(entry.getKey()), "search " + entry.getKey());
+    }
+
+    private static void checkOrder(List<Map.Entry<Integer, Integer>> entries, String message)
+    {
+        for(int i = 1; i < entries.size(); ++ i)
+            Check.isTrue(entries.get(i - 1).getKey() < entries.get(i).getKey(),
+                    message + ": key " + entries.get(i).getKey() + " after key " + entries.get(i - 1).getKey());
+    }
+}
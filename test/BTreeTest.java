@@ -0,0 +1,115 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * {@link BTree} holds the entries of a TreeMap through random insertions, puts and deletions,
+ * with the keys Comparable or ordered by a comparator, latched or not: the searches, the
+ * iterator and the range searches give the entries of the TreeMap, and so do the B trees bulk
+ * loaded from them and written to a file and read back.
+ * <p/>
+ * Run with java -ea BTreeTest, see {@link Check}.
+ */
+public class BTreeTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(17);
+        String filename = new File(Check.tempDir("btree"), "index").getPath();
+        for(int t = 2; t <= 6; t += 2)
+            for(Comparator<Integer> comparator : Arrays.asList(null, Collections.<Integer>reverseOrder()))
+                for(boolean concurrent : new boolean[] {false, true})
+                {
+                    String name = "B tree t = " + t + (comparator == null ? "" : " in reverse order") + (concurrent ? ", concurrent" : "");
+                    BTree<Integer, Integer> btree = new BTree<Integer, Integer>(comparator, t, concurrent);
+                    TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>(comparator);
+                    for(int i = 0; i < 30000; ++ i)
+                    {
+                        int key = random.nextInt(3000) - 1500;
+                        int value = random.nextInt();
+                        switch(random.nextInt(3))
+                        {
+                            case 0:
+                                Check.equal(!expected.containsKey(key), btree.insert(key, value), "insert " + key + " in the " + name);
+                                if(!expected.containsKey(key))
+                                    expected.put(key, value);
+                                break;
+                            case 1:
+                                Check.equal(expected.put(key, value), btree.put(key, value), "put " + key + " in the " + name);
+                                break;
+                            default:
+                                Integer removed = expected.remove(key);
+                                Map.Entry<Integer, Integer> entry = btree.delete(key);
+                                Check.equal(removed, entry == null ? null : entry.getValue(), "delete " + key + " in the " + name);
+                        }
+                        if(i % 5000 == 0)
+                            check(expected, btree, random, name);
+                    }
+                    check(expected, btree, random, name);
+
+                    BTree<Integer, Integer> loaded = new BTree<Integer, Integer>(comparator, t, concurrent);
+                    loaded.bulkLoad(expected.entrySet().iterator(), 0.5 + random.nextDouble() / 2);
+                    check(expected, loaded, random, "bulk loaded " + name);
+                    for(Integer key : new ArrayList<Integer>(expected.keySet()))
+                        if(random.nextBoolean())
+                        {
+                            Map.Entry<Integer, Integer> entry = loaded.delete(key);
+                            Check.equal(expected.remove(key), entry.getValue(), "delete " + key + " in the bulk loaded " + name);
+                            Check.equal(true, loaded.insert(key + 10000, key), "insert " + (key + 10000) + " in the bulk loaded " + name);
+                            expected.put(key + 10000, key);
+                        }
+                    check(expected, loaded, random, "bulk loaded " + name);
+
+                    if(comparator == null)
+                    {
+                        loaded.writeTo(filename, Codecs.INTEGER, Codecs.INTEGER);
+                        check(expected, BTree.readFrom(filename, Codecs.INTEGER, Codecs.INTEGER), random, "read " + name);
+                    }
+                }
+        System.out.println("BTreeTest OK");
+    }
+
+    private static void check(TreeMap<Integer, Integer> expected, BTree<Integer, Integer> btree, Random random, String name)
+    {
+        Check.equal(new ArrayList<Map.Entry<Integer, Integer>>(expected.entrySet()), copy(btree), "entries of the " + name);
+        for(int key = -1600; key < 1600; ++ key)
+            Check.equal(expected.get(key), btree.search(key), "search " + key + " in the " + name);
+        for(int q = 0; q < 200; ++ q)
+        {
+            Integer lo = random.nextInt(10) == 0 ? null : random.nextInt(3200) - 1600;
+            Integer hi = random.nextInt(10) == 0 ? null : random.nextInt(3200) - 1600;
+            boolean loInclusive = random.nextBoolean();
+            boolean hiInclusive = random.nextBoolean();
+            NavigableMap<Integer, Integer> range = expected;
+            Comparator<? super Integer> comparator = expected.comparator();
+            if(lo != null && hi != null && (comparator == null ? lo.compareTo(hi) : comparator.compare(lo, hi)) > 0)
+                range = new TreeMap<Integer, Integer>(comparator);
+            else if(lo != null && lo.equals(hi) && !(loInclusive && hiInclusive))
+                range = new TreeMap<Integer, Integer>(comparator);
+            else
+            {
+                if(lo != null)
+                    range = range.tailMap(lo, loInclusive);
+                if(hi != null)
+                    range = range.headMap(hi, hiInclusive);
+            }
+            Check.equal(new ArrayList<Map.Entry<Integer, Integer>>(range.entrySet()), btree.rangeSearch(lo, loInclusive, hi, hiInclusive),
+                    "range " + (loInclusive ? "[" : "(") + lo + ", " + hi + (hiInclusive ? "]" : ")") + " of the " + name);
+        }
+    }
+
+    private static List<Map.Entry<Integer, Integer>> copy(BTree<Integer, Integer> btree)
+    {
+        List<Map.Entry<Integer, Integer>> entries = new ArrayList<Map.Entry<Integer, Integer>>();
+        for(Map.Entry<Integer, Integer> entry : btree)
+            entries.add(entry);
+        return entries;
+    }
+}
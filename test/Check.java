@@ -0,0 +1,52 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Checks of the tests. The tests are plain programs, without a test framework: every test
+ * class has a main method which throws an AssertionError at the first failure.
+ * <p/>
+ * The tests are run against the sources of a page size, from the root of the repository:
+ * <pre>
+ * javac -d out 4096/*.java test/*.java
+ * java -ea -cp out BTreeTest
+ * </pre>
+ */
+public final class Check
+{
+    private Check()
+    {
+    }
+
+    public static void equal(Object expected, Object actual, String message)
+    {
+        if(expected == null ? actual != null : !expected.equals(actual))
+            throw new AssertionError(message + ": expected " + expected + ", got " + actual);
+    }
+
+    public static void isTrue(boolean condition, String message)
+    {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * @return a new temporary directory, deleted at exit with its files
+     */
+    public static File tempDir(String prefix) throws IOException
+    {
+        final File dir = Files.createTempDirectory(prefix).toFile();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run()
+            {
+                File[] files = dir.listFiles();
+                if(files != null)
+                    for(File file : files)
+                        file.delete();
+                dir.delete();
+            }
+        });
+        return dir;
+    }
+}
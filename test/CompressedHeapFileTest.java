@@ -0,0 +1,132 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Round trip of the compression: {@link PageCompressor} gives back the bytes compressed, and a
+ * {@link CompressedHeapFile} gives back the records of the heap file, which {@link HeapFile}
+ * refuses to change.
+ * <p/>
+ * Run with java -ea CompressedHeapFileTest, see {@link Check}.
+ */
+public class CompressedHeapFileTest
+{
+    private static final int PAGE_SIZE = 4096;
+
+    public static void main(String[] args) throws IOException
+    {
+        pages();
+        heapFile(Check.tempDir("compressed"));
+        System.out.println("CompressedHeapFileTest OK");
+    }
+
+    /** pages of repeated text, of random bytes, of zeros and empty ones */
+    private static void pages()
+    {
+        Random random = new Random(7);
+        PageCompressor compressor = new PageCompressor();
+        for(int i = 0; i < 200; ++ i)
+        {
+            byte[] page = new byte[i == 0 ? 0 : 1 + random.nextInt(PAGE_SIZE)];
+            switch(i % 3)
+            {
+                case 0:
+                    random.nextBytes(page);
+                    break;
+                case 1:
+                    byte[] row = ("" + random.nextInt(1000) + ",11/01/2019 05:00:00 PM,Sensor " + i + "\n").getBytes(StandardCharsets.UTF_8);
+                    for(int j = 0; j < page.length; ++ j)
+                        page[j] = row[j % row.length];
+                    break;
+                default:
+                    break;
+            }
+            byte[] compressed = new byte[PageCompressor.maxCompressedSize(page.length) + 3];
+            int length = compressor.compress(page, 0, page.length, compressed);
+            Check.isTrue(length <= PageCompressor.maxCompressedSize(page.length), "compressed size of page " + i);
+            byte[] decompressed = new byte[page.length + 2];
+            PageCompressor.decompress(compressed, 0, length, decompressed, 1, page.length);
+            Check.isTrue(Arrays.equals(page, Arrays.copyOfRange(decompressed, 1, page.length + 1)), "page " + i + " decompressed");
+        }
+    }
+
+    private static void heapFile(File dir) throws IOException
+    {
+        String filename = new File(dir, "heapfile").getPath();
+        Random random = new Random(11);
+        List<String> records = new ArrayList<String>();
+        List<BTree.Data> addresses = new ArrayList<BTree.Data>();
+        HeapFileWriter writer = new HeapFileWriter(filename, PAGE_SIZE);
+        try
+        {
+            for(int i = 0; i < 20000; ++ i)
+            {
+                String record = i + "," + (random.nextInt(24) + 1) + "/11/2019 0" + random.nextInt(10) + ":00:00 PM,2019,November,"
+                        + random.nextInt(40) + ",Sensor " + random.nextInt(40) + "," + random.nextInt(3000);
+                byte[] bytes = record.getBytes(StandardCharsets.UTF_8);
+                records.add(record);
+                addresses.add(writer.append(bytes, 0, bytes.length));
+            }
+        }
+        finally
+        {
+            writer.close();
+        }
+        List<String> before = scan(filename);
+        Check.equal(records, before, "records of the heap file");
+
+        long size = new File(filename).length();
+        long compressedSize = CompressedHeapFile.compress(filename, PAGE_SIZE);
+        Check.isTrue(compressedSize < size, "compressed size " + compressedSize + " of " + size + " bytes");
+        Check.equal(before, scan(filename), "records of the compressed heap file");
+        HeapFileReader reader = new HeapFileReader(filename, PAGE_SIZE);
+        try
+        {
+            Check.isTrue(reader.isCompressed(), "compressed heap file");
+            for(int i = 0; i < records.size(); i += 97)
+                Check.equal(records.get(i), new String(reader.read(addresses.get(i)), StandardCharsets.UTF_8), "record " + i);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        byte[] compressed = Files.readAllBytes(new File(filename).toPath());
+        try
+        {
+            new HeapFile(filename, PAGE_SIZE).close();
+            throw new AssertionError("a compressed heap file opened read-write");
+        }
+        catch(IOException expected)
+        {
+        }
+        Check.isTrue(Arrays.equals(compressed, Files.readAllBytes(new File(filename).toPath())),
+                "compressed heap file unchanged");
+    }
+
+    private static List<String> scan(String filename) throws IOException
+    {
+        final List<String> records = new ArrayList<String>();
+        HeapFileReader reader = new HeapFileReader(filename, PAGE_SIZE);
+        try
+        {
+            reader.scan(new RecordCallback() {
+                @Override
+                public void record(BTree.Data data, byte[] record, int offset, int len)
+                {
+                    records.add(new String(record, offset, len, StandardCharsets.UTF_8));
+                }
+            });
+        }
+        finally
+        {
+            reader.close();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The secondary indexes of {@link IndexManager}: every record is in every index under the key
+ * computed by java.time, the records with a bad Date_Time are left out of the date indexes
+ * only, and the parallel load gives the indexes of the sequential one.
+ * <p/>
+ * Run with java -ea IndexManagerTest, see {@link Check}.
+ */
+public class IndexManagerTest
+{
+    private static final String[] INDEXES = {"sensor_id", "date_hour", "hour", "weekday"};
+    private static final String[] BAD_DATE_TIMES = {"Nov 1 2019 05:00 PM", "2019-11-01", "11/01/2019 05:00:00 XM",
+            "13/01/2019 05:00:00 PM", "11/01/2019 00:00:00 AM", ""};
+
+    public static void main(String[] args) throws IOException
+    {
+        File dir = Check.tempDir("indexes");
+        List<LocalDateTime> times = new ArrayList<LocalDateTime>();
+        BTree.filename = writeCsv(new File(dir, "pedestrian.csv"), times);
+        BTree.heapfile = new File(dir, "heapfile").getPath();
+        BTree.indexfile = new File(dir, "index").getPath();
+
+        Map<String, List<String>> sequential = null;
+        for(int threads : new int[] {1, 4})
+        {
+            BTree.ingestThreads = threads;
+            IndexManager indexes = IndexManager.pedestrian(BTree.filename, 3);
+            BTree.readFileAndSaveToHeap(new HashMap<Integer, List<BTree.Data>>(), indexes);
+            indexes.build();
+            Map<String, List<String>> contents = check(indexes, times);
+            if(sequential == null)
+                sequential = contents;
+            else
+                Check.equal(sequential, contents, "indexes of the parallel load");
+
+            indexes.save(BTree.indexfile);
+            IndexManager read = IndexManager.read(BTree.indexfile, "hour");
+            Check.equal(indexes.search("hour", 7).size(), read.search("hour", 7).size(), "postings of an index read back");
+        }
+        BTree.closeHeapReader();
+        System.out.println("IndexManagerTest OK");
+    }
+
+    /**
+     * @return the contents of the indexes, the records as their IDs
+     */
+    private static Map<String, List<String>> check(IndexManager indexes, List<LocalDateTime> times) throws IOException
+    {
+        Map<String, List<String>> contents = new HashMap<String, List<String>>();
+        int bad = 0;
+        for(LocalDateTime time : times)
+            if(time == null)
+                ++ bad;
+        for(String name : INDEXES)
+        {
+            Check.equal(name.equals("sensor_id") ? 0L : (long) bad, indexes.skipped(name), "records without a key in " + name);
+            List<String> ids = new ArrayList<String>();
+            int records = 0;
+            for(Map.Entry<Integer, List<BTree.Data>> entry : indexes.index(name))
+            {
+                for(BTree.Data data : entry.getValue())
+                {
+                    int id = Integer.parseInt(new String(BTree.getHeapReader().read(data), StandardCharsets.UTF_8).split(",")[0]);
+                    Check.equal(entry.getKey(), key(name, id, times.get(id)), "key of record " + id + " in " + name);
+                    ids.add(entry.getKey() + ":" + id);
+                    ++ records;
+                }
+            }
+            Check.equal(name.equals("sensor_id") ? times.size() : times.size() - bad, records, "records in " + name);
+            contents.put(name, ids);
+        }
+        return contents;
+    }
+
+    private static int key(String name, int id, LocalDateTime time)
+    {
+        if(name.equals("sensor_id"))
+            return id % 40;
+        if(name.equals("hour"))
+            return time.getHour();
+        if(name.equals("weekday"))
+            return time.getDayOfWeek().getValue();
+        return ((time.getYear() * 100 + time.getMonthValue()) * 100 + time.getDayOfMonth()) * 100 + time.getHour();
+    }
+
+    /**
+     * write rows of both formats of Date_Time, and rows of bad ones
+     *
+     * @param times - filled with the time of every row, null for a bad one
+     */
+    private static String writeCsv(File file, List<LocalDateTime> times) throws IOException
+    {
+        Random random = new Random(3);
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try
+        {
+            out.println("ID,Date_Time,Year,Month,Mdate,Day,Time,Sensor_ID,Sensor_Name,Hourly_Counts");
+            LocalDateTime time = LocalDateTime.of(2009, 5, 1, 0, 0);
+            for(int id = 0; id < 60000; ++ id)
+            {
+                if(id % 40 == 0)
+                    time = time.plusHours(1 + random.nextInt(30));
+                String dateTime;
+                if(id % 997 == 0)
+                {
+                    dateTime = BAD_DATE_TIMES[id / 997 % BAD_DATE_TIMES.length];
+                    times.add(null);
+                }
+                else
+                {
+                    int hour = time.getHour() % 12 == 0 ? 12 : time.getHour() % 12;
+                    dateTime = id % 3 == 0
+                            ? String.format("%d-%02d-%02dT%02d:00:00", time.getYear(), time.getMonthValue(), time.getDayOfMonth(), time.getHour())
+                            : String.format("%02d/%02d/%d %02d:00:00 %s", time.getMonthValue(), time.getDayOfMonth(), time.getYear(),
+                                    hour, time.getHour() < 12 ? "AM" : "PM");
+                    times.add(time);
+                }
+                out.println(id + "," + dateTime + "," + time.getYear() + "," + time.getMonth() + "," + time.getDayOfMonth() + ","
+                        + time.getDayOfWeek() + "," + time.getHour() + "," + id % 40 + ",Sensor " + id % 40 + "," + random.nextInt(3000));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return file.getPath();
+    }
+}
@@ -0,0 +1,133 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * {@link IntBTree} holds the entries of a TreeMap through random insertions, puts and
+ * deletions, after a bulk load of every size around the node boundaries, and once read from a
+ * {@link BTree} file like {@link Search} does.
+ * <p/>
+ * Run with java -ea IntBTreeTest, see {@link Check}.
+ */
+public class IntBTreeTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(14);
+        for(int t = 2; t <= 5; ++ t)
+        {
+            IntBTree<Integer> btree = new IntBTree<Integer>(t);
+            TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+            for(int i = 0; i < 20000; ++ i)
+            {
+                int key = random.nextInt(2000) - 1000;
+                int value = random.nextInt();
+                switch(random.nextInt(3))
+                {
+                    case 0:
+                        Check.equal(!expected.containsKey(key), btree.insert(key, value), "insert " + key);
+                        if(!expected.containsKey(key))
+                            expected.put(key, value);
+                        break;
+                    case 1:
+                        Check.equal(expected.put(key, value), btree.put(key, value), "put " + key);
+                        break;
+                    default:
+                        Check.equal(expected.remove(key), btree.delete(key), "delete " + key);
+                }
+                Check.equal(expected.size(), btree.size(), "size, t = " + t);
+            }
+            check(expected, btree, -1100, 1100);
+        }
+
+        // bulk load, then every key deleted: the nodes must hold t - 1 keys at least
+        for(int t = 2; t <= 4; ++ t)
+            for(int n = 0; n < 300; ++ n)
+            {
+                TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+                for(int i = 0; i < n; ++ i)
+                    expected.put(3 * i, i);
+                IntBTree<Integer> btree = new IntBTree<Integer>(t);
+                btree.put(1, 1);
+                btree.bulkLoad(expected.entrySet().iterator());
+                Check.equal(n, btree.size(), "bulk load size");
+                check(expected, btree, -3, 3 * n + 3);
+                Check.equal(true, btree.insert(-1, -1), "insert after the bulk load");
+                Check.equal(-1, btree.delete(-1), "delete after the bulk load");
+                for(int i = 0; i < n; ++ i)
+                {
+                    int key = 3 * ((i * 7919) % n);
+                    Check.equal(expected.remove(key), btree.delete(key), "delete " + key + " of " + n);
+                }
+                Check.equal(0, btree.size(), "empty after the deletions");
+            }
+
+        TreeMap<Integer, Integer> unsorted = new TreeMap<Integer, Integer>();
+        unsorted.put(1, 1);
+        unsorted.put(2, 2);
+        Iterator<Map.Entry<Integer, Integer>> reversed = unsorted.descendingMap().entrySet().iterator();
+        try
+        {
+            new IntBTree<Integer>().bulkLoad(reversed);
+            Check.isTrue(false, "bulk load of decreasing keys");
+        }
+        catch(IllegalArgumentException e)
+        {
+            // expected
+        }
+
+        // read from a B tree file, with its t, then changed
+        File dir = Check.tempDir("intbtree");
+        String filename = new File(dir, "index").getPath();
+        for(int t : new int[] {2, 3, 16})
+        {
+            BTree<Integer, Integer> source = new BTree<Integer, Integer>(t);
+            TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+            for(int i = 0; i < 5000; ++ i)
+            {
+                int key = random.nextInt(100000);
+                source.put(key, i);
+                expected.put(key, i);
+            }
+            source.writeTo(filename, Codecs.INTEGER, Codecs.INTEGER);
+            IntBTree<Integer> read = IntBTree.readFrom(filename, Codecs.INTEGER);
+            Check.equal(expected.size(), read.size(), "size read, t = " + t);
+            check(expected, read, -1, 100001);
+            for(int i = 0; i < 5000; ++ i)
+            {
+                int key = random.nextInt(100000);
+                if(random.nextBoolean())
+                    Check.equal(expected.put(key, -i), read.put(key, -i), "put " + key + " after the read");
+                else
+                    Check.equal(expected.remove(key), read.delete(key), "delete " + key + " after the read");
+            }
+            Check.equal(expected.size(), read.size(), "size after the changes, t = " + t);
+            check(expected, read, -1, 100001);
+        }
+
+        byte[] bytes = Files.readAllBytes(Paths.get(filename));
+        Files.write(Paths.get(filename), Arrays.copyOf(bytes, bytes.length - 3));
+        try
+        {
+            IntBTree.readFrom(filename, Codecs.INTEGER);
+            Check.isTrue(false, "read of a truncated file");
+        }
+        catch(IOException e)
+        {
+            // expected
+        }
+        System.out.println("IntBTreeTest OK");
+    }
+
+    private static void check(TreeMap<Integer, Integer> expected, IntBTree<Integer> btree, int from, int to)
+    {
+        for(int key = from; key < to; ++ key)
+            Check.equal(expected.get(key), btree.search(key), "search " + key);
+    }
+}
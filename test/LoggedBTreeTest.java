@@ -0,0 +1,140 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Recovery of {@link LoggedBTree}: the B tree reopened from the checkpoint and the log is the
+ * one written, after a close, a crash, a torn record and a rejected change.
+ * <p/>
+ * Run with java -ea LoggedBTreeTest, see {@link Check}.
+ */
+public class LoggedBTreeTest
+{
+    public static void main(String[] args) throws IOException
+    {
+        File dir = Check.tempDir("logged");
+        String filename = new File(dir, "x.idx").getPath();
+
+        nullValues(filename);
+        reopen(filename);
+        tornTail(filename);
+        System.out.println("LoggedBTreeTest OK");
+    }
+
+    /** a null value is refused before it is logged, the log still opens */
+    private static void nullValues(String filename) throws IOException
+    {
+        delete(filename);
+        LoggedBTree<Integer, String> btree = new LoggedBTree<Integer, String>(filename, Codecs.INTEGER, Codecs.STRING);
+        try
+        {
+            btree.insert(1, null);
+            throw new AssertionError("insert of a null value");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+        try
+        {
+            btree.put(1, null);
+            throw new AssertionError("put of a null value");
+        }
+        catch(IllegalArgumentException expected)
+        {
+        }
+        btree.insert(2, "b");
+        btree.close();
+
+        btree = new LoggedBTree<Integer, String>(filename, Codecs.INTEGER, Codecs.STRING);
+        Check.equal(null, btree.search(1), "key of a null value");
+        Check.equal("b", btree.search(2), "key after a null value");
+        btree.close();
+    }
+
+    /** random changes with checkpoints on the way, reopened after a close or a crash */
+    private static void reopen(String filename) throws IOException
+    {
+        delete(filename);
+        Random random = new Random(5);
+        TreeMap<Integer, Integer> expected = new TreeMap<Integer, Integer>();
+        for(int round = 0; round < 4; ++ round)
+        {
+            LoggedBTree<Integer, Integer> btree = open(filename);
+            Check.equal(expected, contents(btree), "B tree reopened in round " + round);
+            for(int i = 0; i < 20000; ++ i)
+            {
+                int key = random.nextInt(5000);
+                switch(random.nextInt(3))
+                {
+                    case 0:
+                        Check.equal(!expected.containsKey(key), btree.insert(key, i), "insert of " + key);
+                        if(!expected.containsKey(key))
+                            expected.put(key, i);
+                        break;
+                    case 1:
+                        Check.equal(expected.put(key, i), btree.put(key, i), "put of " + key);
+                        break;
+                    default:
+                        Check.equal(expected.remove(key), btree.delete(key), "delete of " + key);
+                        break;
+                }
+            }
+            // the odd rounds crash: the records are forced, the log isn't closed
+            if(round % 2 == 0)
+                btree.close();
+        }
+        LoggedBTree<Integer, Integer> btree = open(filename);
+        Check.equal(expected, contents(btree), "B tree reopened");
+        btree.close();
+    }
+
+    /** a record torn by a crash at the end of the log is dropped */
+    private static void tornTail(String filename) throws IOException
+    {
+        LoggedBTree<Integer, Integer> btree = open(filename);
+        TreeMap<Integer, Integer> expected = contents(btree);
+        btree.put(-1, -1);
+        expected.put(-1, -1);
+        btree.close();
+        FileOutputStream out = new FileOutputStream(filename + ".log", true);
+        try
+        {
+            out.write(new byte[] {0, 0, 0, 20, 1, 2, 3, 4, 5, 6});
+        }
+        finally
+        {
+            out.close();
+        }
+        btree = open(filename);
+        Check.equal(expected, contents(btree), "B tree reopened after a torn record");
+        btree.put(-2, -2);
+        expected.put(-2, -2);
+        btree.close();
+        btree = open(filename);
+        Check.equal(expected, contents(btree), "B tree reopened after a change on a torn log");
+        btree.close();
+    }
+
+    private static LoggedBTree<Integer, Integer> open(String filename) throws IOException
+    {
+        // a small log, so the changes go through several checkpoints
+        return new LoggedBTree<Integer, Integer>(filename, Codecs.INTEGER, Codecs.INTEGER, null, 8, 200000);
+    }
+
+    private static TreeMap<Integer, Integer> contents(LoggedBTree<Integer, Integer> btree)
+    {
+        TreeMap<Integer, Integer> map = new TreeMap<Integer, Integer>();
+        for(Map.Entry<Integer, Integer> entry : btree.btree())
+            map.put(entry.getKey(), entry.getValue());
+        return map;
+    }
+
+    private static void delete(String filename)
+    {
+        for(String name : new String[] {filename, filename + ".log", filename + ".tmp"})
+            new File(name).delete();
+    }
+}
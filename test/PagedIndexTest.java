@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * The disk-resident B+tree of {@link PagedIndex}, read through its buffer pool or its mapping,
+ * finds the postings of a TreeMap: every key and the keys between them, and the ranges with
+ * every kind of bound, for indexes of one page up to several levels.
+ * <p/>
+ * Run with java -ea PagedIndexTest, see {@link Check}.
+ */
+public class PagedIndexTest
+{
+    public static void main(String[] args) throws IOException
+    {
+        Random random = new Random(11);
+        String filename = new File(Check.tempDir("paged"), "index.pages").getPath();
+        for(int pageSize : new int[] {512, 4096})
+            for(int n : new int[] {0, 1, 2, 30, 31, 32, 33, 1000, 40000})
+            {
+                TreeMap<Integer, List<BTree.Data>> expected = new TreeMap<Integer, List<BTree.Data>>();
+                int key = n > 2 ? Integer.MIN_VALUE : -5;
+                for(int i = 0; i < n; ++ i)
+                {
+                    Postings postings = new Postings();
+                    for(int j = random.nextInt(4); j >= 0; -- j)
+                        postings.add(random.nextInt(100000), random.nextInt(60));
+                    expected.put(key, postings);
+                    key = i == n - 2 && n > 2 ? Integer.MAX_VALUE : i == 0 && n > 2 ? -n : key + 1 + random.nextInt(5);
+                }
+                PagedIndex.write(filename, pageSize, expected);
+                for(PagedIndex index : new PagedIndex[] {new PagedIndex(filename, pageSize, 4), PagedIndex.map(filename, pageSize)})
+                {
+                    String name = (index.isMapped() ? "mapped" : "cached") + " index of " + n + " keys, page size " + pageSize;
+                    try
+                    {
+                        Check.equal(n, index.size(), "size of the " + name);
+                        check(expected, index, random, name);
+                    }
+                    finally
+                    {
+                        index.close();
+                    }
+                }
+            }
+        System.out.println("PagedIndexTest OK");
+    }
+
+    private static void check(TreeMap<Integer, List<BTree.Data>> expected, PagedIndex index, Random random, String name)
+            throws IOException
+    {
+        for(Map.Entry<Integer, List<BTree.Data>> entry : expected.entrySet())
+        {
+            int key = entry.getKey();
+            Check.equal(text(entry.getValue()), text(index.search(key)), "postings of " + key + " in the " + name);
+            if(key != Integer.MAX_VALUE && !expected.containsKey(key + 1))
+                Check.equal(null, index.search(key + 1), "key " + (key + 1) + " in the " + name);
+        }
+        Check.equal(null, index.search(-6 - expected.size()), "key below the keys in the " + name);
+
+        // the ranges are drawn between the keys, Integer.MIN_VALUE and MAX_VALUE aside
+        int first = expected.size() > 2 ? expected.higherKey(expected.firstKey()) : -5;
+        int last = expected.size() > 2 ? expected.lowerKey(expected.lastKey()) : 5;
+        for(int q = 0; q < 300; ++ q)
+        {
+            int lo = first - 5 + random.nextInt(last - first + 10);
+            int hi = lo - 3 + random.nextInt(Math.max(1, (last - first) / 4) + 6);
+            boolean loInclusive = random.nextBoolean();
+            boolean hiInclusive = random.nextBoolean();
+            if(q == 0)
+            {
+                lo = Integer.MIN_VALUE;
+                hi = Integer.MAX_VALUE;
+                loInclusive = hiInclusive = true;
+            }
+            NavigableMap<Integer, List<BTree.Data>> range = lo > hi || lo == hi && !(loInclusive && hiInclusive)
+                    ? new TreeMap<Integer, List<BTree.Data>>() : expected.subMap(lo, loInclusive, hi, hiInclusive);
+            List<String> want = new ArrayList<String>();
+            for(Map.Entry<Integer, List<BTree.Data>> entry : range.entrySet())
+                want.add(entry.getKey() + "=" + text(entry.getValue()));
+            final List<String> got = new ArrayList<String>();
+            index.rangeSearch(lo, loInclusive, hi, hiInclusive, new RangeVisitor<Integer, List<BTree.Data>>()
+            {
+                @Override
+                public boolean visit(Integer key, List<BTree.Data> value)
+                {
+                    got.add(key + "=" + text(value));
+                    return true;
+                }
+            });
+            String query = (loInclusive ? "[" : "(") + lo + ", " + hi + (hiInclusive ? "]" : ")") + " in the " + name;
+            Check.equal(want, got, "range " + query);
+
+            // the visitor stops the query after two entries
+            final int[] visited = {0};
+            index.rangeSearch(lo, loInclusive, hi, hiInclusive, new RangeVisitor<Integer, List<BTree.Data>>()
+            {
+                @Override
+                public boolean visit(Integer key, List<BTree.Data> value)
+                {
+                    return ++ visited[0] < 2;
+                }
+            });
+            Check.equal(Math.min(2, want.size()), visited[0], "entries visited by the stopped range " + query);
+        }
+    }
+
+    /**
+     * @return the postings as (blockNum:slot) pairs, null for null
+     */
+    private static String text(List<BTree.Data> postings)
+    {
+        if(postings == null)
+            return null;
+        StringBuilder builder = new StringBuilder();
+        for(BTree.Data data : postings)
+            builder.append(data.blockNum).append(':').append(data.slot).append(' ');
+        return builder.toString();
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * The parallel load of {@link BTree#readFileAndSaveToHeap(Map, IndexManager)} writes the heap
+ * file and the dictionary of the sequential load byte for byte, and maps every key to the same
+ * addresses in the same order, with rows stored as text or by a {@link RecordCodec}.
+ * <p/>
+ * The CSV file spans several chunks of {@link ParallelIngest}, its rows have every length, so
+ * the chunks end anywhere in a page. Files without a record give the same single empty page,
+ * and blank lines before the title line are skipped alike.
+ * <p/>
+ * Run with java -ea ParallelIngestTest, see {@link Check}.
+ */
+public class ParallelIngestTest
+{
+    /** CSV files without a record, or with a few records after blank lines or CRLF line ends */
+    private static final String[] SMALL_FILES = {"", "\n\n", "ID,Hourly_Counts", "ID,Hourly_Counts\n", "ID,Hourly_Counts\r\n\r\n\n",
+            "\n\r\nID,Hourly_Counts\n1,5\n2,7", "\r\n\nID,Hourly_Counts\r\n1,5\r\n\r\n2,5\r\n"};
+
+    public static void main(String[] args) throws IOException
+    {
+        File dir = Check.tempDir("ingest");
+        BTree.heapfile = new File(dir, "heapfile").getPath();
+        BTree.dictfile = new File(dir, "heapfile.dict").getPath();
+        int threads = BTree.ingestThreads;
+        boolean compactRecords = BTree.compactRecords;
+        try
+        {
+            BTree.filename = writeCsv(new File(dir, "pedestrian.csv"));
+            compare("pedestrian.csv", 4);
+            for(int i = 0; i < SMALL_FILES.length; ++ i)
+            {
+                File file = new File(dir, "small" + i + ".csv");
+                Files.write(file.toPath(), SMALL_FILES[i].getBytes(StandardCharsets.UTF_8));
+                BTree.filename = file.getPath();
+                compare("file " + i, 0);
+            }
+        }
+        finally
+        {
+            BTree.ingestThreads = threads;
+            BTree.compactRecords = compactRecords;
+            BTree.closeHeapReader();
+        }
+        System.out.println("ParallelIngestTest OK");
+    }
+
+    /**
+     * load BTree.filename sequentially then in parallel, as text and as compact records
+     *
+     * @param pages - fewest pages of the heap file
+     */
+    private static void compare(String name, int pages) throws IOException
+    {
+        for(boolean compact : new boolean[] {false, true})
+        {
+            BTree.compactRecords = compact;
+            byte[] heap = null;
+            byte[] dictionary = null;
+            Map<Integer, String> postings = null;
+            for(int ingestThreads : new int[] {1, 2, 3, 8})
+            {
+                BTree.ingestThreads = ingestThreads;
+                Map<Integer, List<BTree.Data>> map = new HashMap<Integer, List<BTree.Data>>();
+                BTree.readFileAndSaveToHeap(map, null);
+                String load = (compact ? "compact" : "text") + " load of " + name + " with " + ingestThreads + " threads";
+                Map<Integer, String> addresses = addresses(map);
+                byte[] bytes = Files.readAllBytes(Paths.get(BTree.heapfile));
+                byte[] dict = compact ? Files.readAllBytes(Paths.get(BTree.dictfile)) : null;
+                if(heap == null)
+                {
+                    heap = bytes;
+                    dictionary = dict;
+                    postings = addresses;
+                    Check.isTrue(heap.length > pages * BTree.pageSize, "pages of the " + load);
+                    continue;
+                }
+                Check.equal(heap.length, bytes.length, "heap file size of the " + load);
+                Check.isTrue(Arrays.equals(heap, bytes), "heap file of the " + load);
+                Check.isTrue(Arrays.equals(dictionary, dict), "dictionary of the " + load);
+                Check.equal(postings, addresses, "addresses of the " + load);
+            }
+            if(compact)
+                Files.delete(Paths.get(BTree.dictfile));
+        }
+    }
+
+    /**
+     * @return the addresses of every key, in the order of the postings
+     */
+    private static Map<Integer, String> addresses(Map<Integer, List<BTree.Data>> map)
+    {
+        Map<Integer, String> addresses = new TreeMap<Integer, String>();
+        for(Map.Entry<Integer, List<BTree.Data>> entry : map.entrySet())
+        {
+            StringBuilder builder = new StringBuilder();
+            for(BTree.Data data : entry.getValue())
+                builder.append(data.blockNum).append(':').append(data.slot).append(' ');
+            addresses.put(entry.getKey(), builder.toString());
+        }
+        return addresses;
+    }
+
+    /**
+     * write rows of every length, a few MB so that the load is split into chunks
+     */
+    private static String writeCsv(File file) throws IOException
+    {
+        Random random = new Random(4);
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try
+        {
+            out.println("ID,Date_Time,Year,Month,Mdate,Day,Time,Sensor_ID,Sensor_Name,Hourly_Counts");
+            char[] name = new char[300];
+            for(int id = 0; id < 80000; ++ id)
+            {
+                int length = random.nextInt(10) == 0 ? random.nextInt(name.length) : random.nextInt(20);
+                Arrays.fill(name, 0, length, (char) ('a' + id % 26));
+                int hour = id / 40 % 24;
+                out.println(id + "," + String.format("11/%02d/2019 %02d:00:00 %s", 1 + id / 960 % 28, hour % 12 == 0 ? 12 : hour % 12,
+                        hour < 12 ? "AM" : "PM") + ",2019,November," + (1 + id / 960 % 28) + ",Friday," + hour + "," + id % 40
+                        + ",Sensor " + new String(name, 0, length) + "," + random.nextInt(3000));
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return file.getPath();
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * {@link Postings} behaves like a list of the addresses added: size, get, the iterator, the
+ * cursor, addAll, the codec and the serialization. get(index) in a loop stays linear.
+ * <p/>
+ * Run with java -ea PostingsTest, see {@link Check}.
+ */
+public class PostingsTest
+{
+    public static void main(String[] args) throws Exception
+    {
+        Random random = new Random(9);
+        for(int round = 0; round < 50; ++ round)
+        {
+            List<Long> expected = new ArrayList<Long>();
+            Postings postings = new Postings();
+            int count = round == 0 ? 0 : random.nextInt(round * 40);
+            for(int i = 0; i < count; ++ i)
+                add(random, postings, expected);
+            check(expected, postings);
+
+            // get builds the skip points, an addition drops them
+            if(count > 0)
+                postings.get(count - 1);
+            add(random, postings, expected);
+            check(expected, postings);
+
+            Postings other = new Postings();
+            List<Long> otherExpected = new ArrayList<Long>();
+            for(int i = random.nextInt(200); i > 0; -- i)
+                add(random, other, otherExpected);
+            postings.addAll(other);
+            expected.addAll(otherExpected);
+            check(expected, postings);
+            postings.addAll(postings);
+            expected.addAll(new ArrayList<Long>(expected));
+            check(expected, postings);
+
+            ByteBuffer buffer = ByteBuffer.allocate(Codecs.POSTINGS.size(postings));
+            Codecs.POSTINGS.encode(postings, buffer);
+            Check.equal(0, buffer.remaining(), "size of the encoding");
+            buffer.flip();
+            check(expected, (Postings) Codecs.POSTINGS.decode(buffer));
+            check(expected, serialized(postings));
+        }
+        sequentialGet();
+        System.out.println("PostingsTest OK");
+    }
+
+    /** add an address in the order of a heap file, or anywhere */
+    private static void add(Random random, Postings postings, List<Long> expected)
+    {
+        int blockNum;
+        int slot;
+        if(expected.isEmpty() || random.nextInt(10) == 0)
+        {
+            blockNum = random.nextInt(100000);
+            slot = random.nextInt(300);
+        }
+        else
+        {
+            long last = expected.get(expected.size() - 1);
+            blockNum = Postings.blockNum(last) + random.nextInt(3);
+            slot = blockNum == Postings.blockNum(last) ? Postings.slot(last) + 1 + random.nextInt(5) : random.nextInt(300);
+        }
+        if(random.nextBoolean())
+            postings.add(blockNum, slot);
+        else
+            postings.add(new BTree.Data(blockNum, slot));
+        expected.add(Postings.rid(blockNum, slot));
+    }
+
+    private static void check(List<Long> expected, Postings postings)
+    {
+        Check.equal(expected.size(), postings.size(), "size");
+        for(int i = 0; i < expected.size(); ++ i)
+            Check.equal(expected.get(i), rid(postings.get(i)), "get(" + i + ")");
+        // out of order
+        for(int i = expected.size() - 1; i >= 0; i -= 7)
+            Check.equal(expected.get(i), rid(postings.get(i)), "get(" + i + ") backwards");
+        for(int index : new int[] {-1, expected.size()})
+        {
+            try
+            {
+                postings.get(index);
+                throw new AssertionError("get(" + index + ") of " + expected.size());
+            }
+            catch(IndexOutOfBoundsException e)
+            {
+            }
+        }
+
+        Iterator<BTree.Data> iterator = postings.iterator();
+        Postings.Cursor cursor = postings.cursor();
+        for(Long rid : expected)
+        {
+            Check.equal(rid, rid(iterator.next()), "iterator");
+            Check.isTrue(cursor.next(), "cursor before the end");
+            Check.equal(rid, cursor.rid(), "cursor");
+        }
+        Check.isTrue(!iterator.hasNext() && !cursor.next(), "end of the postings");
+        try
+        {
+            iterator.next();
+            throw new AssertionError("next() after the end");
+        }
+        catch(NoSuchElementException e)
+        {
+        }
+    }
+
+    private static Postings serialized(Postings postings) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(postings);
+        out.close();
+        return (Postings) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+    }
+
+    /** get(i) from 0 to size decodes every address a bounded number of times */
+    private static void sequentialGet()
+    {
+        Postings postings = new Postings();
+        int count = 1000000;
+        for(int i = 0; i < count; ++ i)
+            postings.add(i / 50, i % 50);
+        long start = System.nanoTime();
+        long sum = 0;
+        for(int i = 0; i < count; ++ i)
+            sum += postings.get(i).slot;
+        long millis = (System.nanoTime() - start) / 1000000;
+        Check.equal((long) count / 50 * (49 * 50 / 2), sum, "sum of the slots");
+        // quadratic would be about 10^12 decodings
+        Check.isTrue(millis < 20000, "get(i) of " + count + " addresses in " + millis + " ms");
+    }
+
+    private static Long rid(BTree.Data data)
+    {
+        return Postings.rid(data.blockNum, data.slot);
+    }
+}